@@ -16,6 +16,7 @@
  */
 package org.apache.servicemix.jbi.cluster.engine;
 
+import java.io.IOException;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Map;
@@ -27,23 +28,27 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jbi.servicedesc.ServiceEndpoint;
 import javax.jbi.messaging.MessageExchange;
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.ObjectMessage;
 import javax.xml.namespace.QName;
 
+import org.apache.servicemix.nmr.api.AbortedException;
 import org.apache.servicemix.nmr.api.Endpoint;
 import org.apache.servicemix.nmr.api.Channel;
 import org.apache.servicemix.nmr.api.Exchange;
 import org.apache.servicemix.nmr.api.Role;
 import org.apache.servicemix.nmr.api.Status;
 import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.PropertyKey;
 import org.apache.servicemix.nmr.api.Message;
 import org.apache.servicemix.nmr.api.EndpointRegistry;
 import org.apache.servicemix.nmr.api.service.ServiceHelper;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 import org.apache.servicemix.nmr.api.internal.InternalExchange;
-import org.apache.servicemix.nmr.api.event.EndpointListener;
+import org.apache.servicemix.nmr.api.event.EndpointBatchListener;
 import org.apache.servicemix.nmr.api.event.ExchangeListener;
+import org.apache.servicemix.nmr.core.ExchangeCodec;
 import org.apache.servicemix.nmr.core.ServiceRegistryImpl;
 import org.apache.servicemix.jbi.runtime.impl.MessageExchangeImpl;
 import org.apache.servicemix.jbi.runtime.impl.ServiceEndpointImpl;
@@ -166,7 +171,7 @@ import org.slf4j.LoggerFactory;
  *
  */
 public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
-                             implements Endpoint, EndpointListener, ExchangeListener {
+                             implements Endpoint, EndpointBatchListener, ExchangeListener {
 
     /**
      * Default maximum number of pending exchanges
@@ -259,7 +264,11 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
     protected final Logger logger = LoggerFactory.getLogger(ClusterEngine.class);
 
     protected boolean rollbackOnErrors = true;
+    protected boolean binaryFormat;
     protected String name;
+    // exchange property keys are suffixed with the cluster name, "null" until it is set
+    protected PropertyKey<String> corrIdKey = corrIdKey(name);
+    protected PropertyKey<Boolean> rollbackOnErrorsKey = rollbackOnErrorsKey(name);
     protected JmsRequestorPool pool;
 
     protected Channel channel;
@@ -299,6 +308,23 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
         this.rollbackOnErrors = rollbackOnErrors;
     }
 
+    public boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
+    /**
+     * Send normalized messages using the compact binary format of {@link ExchangeCodec}
+     * instead of java serialization.
+     * Messages in both formats are always accepted, but nodes running older versions
+     * can only read serialized messages, so this should only be enabled once all the
+     * nodes of the cluster have been upgraded.
+     *
+     * @param binaryFormat <code>true</code> to send messages in the binary format
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        this.binaryFormat = binaryFormat;
+    }
+
     public String getName() {
         return name;
     }
@@ -310,6 +336,16 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
      */
     public void setName(String name) {
         this.name = name;
+        this.corrIdKey = corrIdKey(name);
+        this.rollbackOnErrorsKey = rollbackOnErrorsKey(name);
+    }
+
+    private static PropertyKey<String> corrIdKey(String name) {
+        return PropertyKey.get(PROPERTY_CORR_ID, String.class).child(String.valueOf(name));
+    }
+
+    private static PropertyKey<Boolean> rollbackOnErrorsKey(String name) {
+        return PropertyKey.get(PROPERTY_ROLLBACK_ON_ERRORS, Boolean.class).child(String.valueOf(name));
     }
 
     public int getMaxPendingExchanges() {
@@ -387,6 +423,10 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
         invalidateSelector();
     }
 
+    public void endpointsChanged(List<InternalEndpoint> registered, List<InternalEndpoint> unregistered) {
+        invalidateSelector();
+    }
+
     //-------------------------------------------------------------------------
     // Exchange listener
     //-------------------------------------------------------------------------
@@ -411,6 +451,40 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
     }
 
     public void exchangeFailed(Exchange exchange) {
+        // Release exchanges that have been aborted, for example because they expired
+        if (exchange.getError() instanceof AbortedException && exchanges.remove(exchange.getId()) != null) {
+            // Exchanges received from the cluster are counted as pending
+            String corrId = exchange.getProperty(corrIdKey);
+            if (corrId != null) {
+                // The late reply will be dropped, so the suspended requestor would never be resumed
+                rollback(corrId);
+                if (pendingExchanges.decrementAndGet() < maxPendingExchanges) {
+                    if (pauseConsumption.compareAndSet(true, false)) {
+                        invalidateSelector();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Roll back the transaction suspended for the given exchange and release its requestor.
+     *
+     * @param corrId the id the requestor has been suspended with
+     */
+    protected void rollback(String corrId) {
+        try {
+            JmsRequestor item = pool.resume(corrId);
+            synchronized (item) {
+                try {
+                    item.setRollbackOnly();
+                } finally {
+                    item.close();
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to roll back the transaction of exchange " + corrId, e);
+        }
     }
 
     public void invalidateSelector() {
@@ -544,7 +618,7 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
 
     public void process(Exchange exchange) {
         try {
-            String corrId = (String) exchange.getProperty(PROPERTY_CORR_ID + "." + name);
+            String corrId = exchange.getProperty(corrIdKey);
             if (corrId != null) {
                 JmsRequestor item = pool.resume(corrId);
                 synchronized (item) {
@@ -611,7 +685,7 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
                     throw new IllegalStateException("Exchange MEP not found for JMS message " + message.getJMSMessageID());
                 }
                 Exchange exchange = getChannel().createExchange(Pattern.fromWsdlUri(mep));
-                exchange.setProperty(PROPERTY_ROLLBACK_ON_ERRORS + "." + name, message.getBooleanProperty(PROPERTY_ROLLBACK_ON_ERRORS));
+                exchange.setProperty(rollbackOnErrorsKey, message.getBooleanProperty(PROPERTY_ROLLBACK_ON_ERRORS));
                 if (message.propertyExists(JBI_INTERFACE)) {
                     exchange.setProperty(MessageExchangeImpl.INTERFACE_NAME_PROP, QName.valueOf(message.getStringProperty(JBI_INTERFACE)));
                 }
@@ -640,7 +714,7 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
                         invalidateSelector();
                     }
                 }
-                exchange.setProperty(PROPERTY_CORR_ID + "." + name, exchange.getId());
+                exchange.setProperty(corrIdKey, exchange.getId());
                 requestor.suspend(exchange.getId());
                 if (requestor.getTransaction() != null) {
                     exchange.setProperty(MessageExchange.JTA_TRANSACTION_PROPERTY_NAME, requestor.getTransaction());
@@ -660,7 +734,7 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
                 Message msg = unmarshallMessage(message);
                 exchange.setOut(msg);
                 exchanges.put(exchange.getId(), exchange);
-                exchange.setProperty(PROPERTY_CORR_ID + "." + name, exchange.getId());
+                exchange.setProperty(corrIdKey, exchange.getId());
                 requestor.suspend(exchange.getId());
                 if (requestor.getTransaction() != null) {
                     exchange.setProperty(MessageExchange.JTA_TRANSACTION_PROPERTY_NAME, requestor.getTransaction());
@@ -680,7 +754,7 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
                 Message msg = unmarshallMessage(message);
                 exchange.setFault(msg);
                 exchanges.put(exchange.getId(), exchange);
-                exchange.setProperty(PROPERTY_CORR_ID + "." + name, exchange.getId());
+                exchange.setProperty(corrIdKey, exchange.getId());
                 requestor.suspend(exchange.getId());
                 if (requestor.getTransaction() != null) {
                     exchange.setProperty(MessageExchange.JTA_TRANSACTION_PROPERTY_NAME, requestor.getTransaction());
@@ -706,7 +780,7 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
             decrementPendingExchangeIfNeeded(exchange);
             boolean rollbackOnErrors;
             if (exchange.getRole() == Role.Consumer) {
-                rollbackOnErrors = Boolean.TRUE.equals(exchange.getProperty(PROPERTY_ROLLBACK_ON_ERRORS + "." + name));
+                rollbackOnErrors = Boolean.TRUE.equals(exchange.getProperty(rollbackOnErrorsKey));
             } else {
                 rollbackOnErrors = this.rollbackOnErrors;
             }
@@ -728,11 +802,11 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
                         }
                     }
                 }
-                javax.jms.Message message = requestor.getSession().createObjectMessage(msg);
+                javax.jms.Message message = marshallMessage(requestor, msg);
                 message.setIntProperty(JBI_MESSAGE, type);
                 if (type == JBI_MESSAGE_IN) {
                     rollbackOnErrors = this.rollbackOnErrors;
-                    exchange.setProperty(PROPERTY_ROLLBACK_ON_ERRORS + "." + name, rollbackOnErrors);
+                    exchange.setProperty(rollbackOnErrorsKey, rollbackOnErrors);
                     message.setStringProperty(JBI_MEP, exchange.getPattern().getWsdlUri());
                     if (exchange.getProperty(MessageExchangeImpl.INTERFACE_NAME_PROP) != null) {
                         message.setStringProperty(JBI_INTERFACE, exchange.getProperty(MessageExchangeImpl.INTERFACE_NAME_PROP).toString());
@@ -882,12 +956,39 @@ public class ClusterEngine extends ServiceRegistryImpl<ClusterRegistration>
         }
     }
 
+    protected javax.jms.Message marshallMessage(JmsRequestor requestor, Message msg) throws JMSException {
+        if (!binaryFormat) {
+            return requestor.getSession().createObjectMessage(msg);
+        }
+        byte[] data;
+        try {
+            data = ExchangeCodec.encode(msg);
+        } catch (IOException e) {
+            throw (JMSException) new JMSException("Unable to marshall message: " + e).initCause(e);
+        }
+        BytesMessage message = requestor.getSession().createBytesMessage();
+        message.writeBytes(data);
+        return message;
+    }
+
     protected Message unmarshallMessage(javax.jms.Message message) throws JMSException {
         Message msg = null;
         ClassLoader oldCl = Thread.currentThread().getContextClassLoader();
         try {
             Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
-            msg = (Message) ((ObjectMessage) message).getObject();
+            if (message instanceof BytesMessage) {
+                BytesMessage bytes = (BytesMessage) message;
+                byte[] data = new byte[(int) bytes.getBodyLength()];
+                bytes.readBytes(data);
+                msg = ExchangeCodec.decodeMessage(data);
+            } else {
+                // sent by a node using java serialization
+                msg = (Message) ((ObjectMessage) message).getObject();
+            }
+        } catch (IOException e) {
+            throw (JMSException) new JMSException("Unable to unmarshall message: " + e).initCause(e);
+        } catch (ClassNotFoundException e) {
+            throw (JMSException) new JMSException("Unable to unmarshall message: " + e).initCause(e);
         } finally {
             Thread.currentThread().setContextClassLoader(oldCl);
         }
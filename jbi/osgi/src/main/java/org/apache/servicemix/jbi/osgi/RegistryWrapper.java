@@ -76,6 +76,12 @@ public class RegistryWrapper implements EndpointRegistry {
         }
     }
 
+    public void batch(Runnable changes) {
+        // OSGi service events are delivered synchronously, so registrations
+        // performed by the callback reach the underlying registry in this batch
+        registry.batch(changes);
+    }
+
     public List<Endpoint> query(Map<String, ?> properties) {
         return registry.query(properties);
     }
@@ -19,20 +19,17 @@ package org.apache.servicemix.jbi.runtime.impl.utils;
 import java.io.StringWriter;
 import java.io.InputStream;
 import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Properties;
 
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.apache.servicemix.nmr.core.util.XmlUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
@@ -53,9 +50,6 @@ public final class DOMUtil {
     
     private final static Logger logger = LoggerFactory.getLogger(DOMUtil.class);
 
-    private static DocumentBuilderFactory dbf;
-    private static Queue<DocumentBuilder> builders = new ConcurrentLinkedQueue<DocumentBuilder>();
-
     
     private DOMUtil() {
     }
@@ -104,20 +98,17 @@ public final class DOMUtil {
      * A helper method useful for debugging and logging which will convert the given DOM node into XML text
      */
     public static String asXML(Node node) throws TransformerException {
-        Transformer transformer = TransformerFactory.newInstance().newTransformer();
-        StringWriter buffer = new StringWriter();
-        transformer.transform(new DOMSource(node), new StreamResult(buffer));
-        return buffer.toString();
+        return XmlUtils.toString(new DOMSource(node));
     }
 
     /**
      * A helper method useful for debugging and logging which will convert the given DOM node into XML text
      */
     public static String asIndentedXML(Node node) throws TransformerException {
-        Transformer transformer = TransformerFactory.newInstance().newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        Properties props = new Properties();
+        props.setProperty(OutputKeys.INDENT, "yes");
         StringWriter buffer = new StringWriter();
-        transformer.transform(new DOMSource(node), new StreamResult(buffer));
+        XmlUtils.transform(new DOMSource(node), new StreamResult(buffer), props);
         return buffer.toString();
     }
 
@@ -224,20 +215,12 @@ public final class DOMUtil {
     }
 
     public static DocumentBuilder getBuilder() throws ParserConfigurationException {
-        DocumentBuilder builder = (DocumentBuilder) builders.poll();
-        if (builder == null) {
-            if (dbf == null) {
-                dbf = DocumentBuilderFactory.newInstance();
-                dbf.setNamespaceAware(true);
-            }
-            builder = dbf.newDocumentBuilder();
-        }
-        return builder;
+        return XmlUtils.borrowDocumentBuilder();
     }
 
     public static void releaseBuilder(DocumentBuilder builder) {
         if (builder != null) {
-            builders.add(builder);
+            XmlUtils.releaseDocumentBuilder(builder);
         }
     }
 
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api;
+
+import java.util.List;
+
+/**
+ * An {@link Endpoint} able to process several exchanges at once.
+ *
+ * When exchanges are sent together using {@link Channel#sendBatch(java.util.Collection)},
+ * the new exchanges targeted at such an endpoint are handed to it in a single call,
+ * from a single executor task, instead of one task per exchange.  Exchanges sent
+ * back by the consumer (done or error statuses) are still given one by one to
+ * {@link #process(Exchange)}.
+ *
+ * @version $Revision: $
+ * @since 4.0
+ */
+public interface BatchEndpoint extends Endpoint {
+
+    /**
+     * Process the given exchanges.  Each exchange must be sent back
+     * on the endpoint channel, just like when they are given to
+     * {@link #process(Exchange)}.
+     *
+     * @param exchanges the exchanges to process, in the order they have been sent
+     */
+    void process(List<Exchange> exchanges);
+
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.servicemix.nmr.api;
 
+import java.util.Collection;
+
 /**
  * Creates a channel to perform invocations through the NMR.
  * Channels are created by the {@link NMR}.  They are used
@@ -68,6 +70,30 @@ public interface Channel {
      */
     boolean sendSync(Exchange exchange, long timeout);
 
+    /**
+     * Asynchronously send the exchange, without blocking the calling thread.
+     * The returned future completes when the exchange is returned, so
+     * that a single thread can drive several exchanges at the same time.
+     *
+     * @param exchange the exchange to send
+     * @return a future for the exchange
+     */
+    ExchangeFuture sendAsync(Exchange exchange);
+
+    /**
+     * An asynchronous invocation of several exchanges at once.
+     * Targets are resolved once per distinct reference, listeners are
+     * notified in bulk and exchanges for a given {@link BatchEndpoint}
+     * are delivered together.
+     *
+     * If some exchanges can not be dispatched, their error is set and
+     * the first failure is rethrown once all the other exchanges
+     * have been sent.
+     *
+     * @param exchanges the exchanges to send
+     */
+    void sendBatch(Collection<? extends Exchange> exchanges);
+
     /**
      * Closes the channel, freeing up any resources (like sockets, threads etc).
      * Channel that are injected onto Endpoints will be closed automatically by
@@ -78,6 +78,34 @@ public interface Endpoint {
      */
     String RUN_AS_SUBJECT = "RUN_AS_SUBJECT";
 
+    /**
+     * Maximum number of exchanges that can be delivered to the endpoint
+     * and not yet sent back by it.  When this limit is reached, the
+     * {@link #OVERFLOW_POLICY} applies to new exchanges.
+     */
+    String MAX_IN_FLIGHT = "MAX_IN_FLIGHT";
+
+    /**
+     * Maximum number of exchanges waiting for a thread to be processed
+     * by the endpoint.  When this limit is reached, the
+     * {@link #OVERFLOW_POLICY} applies to new exchanges.
+     */
+    String MAX_QUEUED = "MAX_QUEUED";
+
+    /**
+     * What to do with exchanges exceeding the {@link #MAX_IN_FLIGHT}
+     * or {@link #MAX_QUEUED} limits: <code>block</code> the sender (the default),
+     * <code>fail</code> immediately, or <code>divert</code> the exchange
+     * to the {@link #OVERFLOW_ENDPOINT}.
+     */
+    String OVERFLOW_POLICY = "OVERFLOW_POLICY";
+
+    /**
+     * Name of the endpoint receiving the exchanges diverted by the
+     * <code>divert</code> {@link #OVERFLOW_POLICY}.
+     */
+    String OVERFLOW_ENDPOINT = "OVERFLOW_ENDPOINT";
+
     /**
      * Set the channel so that the endpoint can send exchanges back
      * when they are processed or act as a consumer itself.
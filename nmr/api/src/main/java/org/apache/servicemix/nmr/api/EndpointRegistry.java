@@ -52,6 +52,21 @@ public interface EndpointRegistry extends ServiceRegistry<Endpoint> {
      */
     void unregister(Endpoint endpoint, Map<String, ?> properties);
 
+    /**
+     * Apply a set of registrations and unregistrations as a single change.
+     * All calls to {@link #register(Endpoint, Map)} and {@link #unregister(Endpoint, Map)}
+     * made by the current thread while the given callback runs are grouped together:
+     * listeners are notified once the callback has returned, and cached references
+     * are invalidated once for all the registrations.  The changes themselves are
+     * applied to the registry immediately, so they are visible to queries made
+     * during the callback, and unregistered endpoints stop being used right away.
+     * Nested batches are merged into the outermost one.
+     *
+     * @param changes the callback performing the registry changes
+     * @see org.apache.servicemix.nmr.api.event.EndpointBatchListener
+     */
+    void batch(Runnable changes);
+
     /**
      * Query the registry for a list of registered endpoints.
      *
@@ -32,6 +32,13 @@ import java.util.Map;
  */
 public interface Exchange extends Serializable {
 
+    /**
+     * Property holding the time to live of the exchange in milliseconds.
+     * If the exchange is not done when this time elapses, it is aborted
+     * with an {@link AbortedException}.
+     */
+    String TIME_TO_LIVE = "org.apache.servicemix.nmr.timeToLive";
+
     /**
      * The unique id of this exchange
      * @return
@@ -118,6 +125,14 @@ public interface Exchange extends Serializable {
      */
     <T> T getProperty(String name, Class<T> type);
 
+    /**
+     * Get a property using its typed key.
+     *
+     * @param key the key of the property
+     * @return the value of the property or <code>null</code> if none has been set
+     */
+    <T> T getProperty(PropertyKey<T> key);
+
     /**
      * Return all the properties associated with this exchange
      *
@@ -142,6 +157,14 @@ public interface Exchange extends Serializable {
      */
     <T> void setProperty(Class<T> type, T value);
 
+    /**
+     * Set a property on this exchange using its typed key.
+     *
+     * @param key the key of the property
+     * @param value the value for this property or <code>null</code>
+     */
+    <T> void setProperty(PropertyKey<T> key, T value);
+
     /**
      * Remove the given property and returns its value.
      *
@@ -158,6 +181,14 @@ public interface Exchange extends Serializable {
      */
     <T> T removeProperty(Class<T> type);
 
+    /**
+     * Remove the property with the given key and returns its value.
+     *
+     * @param key the key of the property
+     * @return the previous value
+     */
+    <T> T removeProperty(PropertyKey<T> key);
+
     /**
      * Set all the properties
      *
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api;
+
+/**
+ * A callback invoked when an exchange sent using {@link Channel#sendAsync(Exchange)}
+ * comes back to the consumer.
+ *
+ * @see ExchangeFuture#addCallback(ExchangeCallback)
+ * @version $Revision: $
+ * @since 4.0
+ */
+public interface ExchangeCallback {
+
+    /**
+     * The exchange has come back to the consumer.
+     * Its status should be checked to know if it succeeded.
+     *
+     * @param exchange the exchange
+     */
+    void exchangeCompleted(Exchange exchange);
+
+    /**
+     * The exchange has been aborted because the future has been cancelled.
+     *
+     * @param exchange the exchange
+     */
+    void exchangeAborted(Exchange exchange);
+
+}
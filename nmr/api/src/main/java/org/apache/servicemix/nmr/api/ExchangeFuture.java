@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api;
+
+import java.util.concurrent.Future;
+
+/**
+ * The result of an exchange sent using {@link Channel#sendAsync(Exchange)}.
+ *
+ * The future completes when the exchange comes back to the consumer, or
+ * when it has been cancelled.  Cancelling the future aborts the exchange,
+ * the same way a {@link Channel#sendSync(Exchange, long)} timeout does.
+ *
+ * @version $Revision: $
+ * @since 4.0
+ */
+public interface ExchangeFuture extends Future<Exchange> {
+
+    /**
+     * Access to the exchange that has been sent
+     *
+     * @return the exchange
+     */
+    Exchange getExchange();
+
+    /**
+     * Register a callback to be invoked when the exchange comes back.
+     * If the exchange is already back, the callback is invoked immediately
+     * by the calling thread.  Otherwise, it will be invoked by the thread
+     * delivering the exchange, so it should not block.
+     *
+     * @param callback the callback to invoke
+     */
+    void addCallback(ExchangeCallback callback);
+
+}
@@ -66,6 +66,14 @@ public interface Message extends Serializable {
      */
     <T> T getHeader(String name, Class<T> type);
 
+    /**
+     * Get a header using its typed key.
+     *
+     * @param key the key of the header
+     * @return the value of the header or <code>null</code> if none has been set
+     */
+    <T> T getHeader(PropertyKey<T> key);
+
     /**
      * Set a header for this message
      * @param name the name of the header
@@ -84,6 +92,14 @@ public interface Message extends Serializable {
      */
     <T> void setHeader(Class<T> type, T value);
 
+    /**
+     * Set a header for this message using its typed key.
+     *
+     * @param key the key of the header
+     * @param value the value of the header
+     */
+    <T> void setHeader(PropertyKey<T> key, T value);
+
     /**
      * Remove the given header and returns its value.
      *
@@ -100,6 +116,14 @@ public interface Message extends Serializable {
      */
     <T> T removeHeader(Class<T> type);
 
+    /**
+     * Remove the header with the given key and returns its value.
+     *
+     * @param key the key of the header
+     * @return the previous value
+     */
+    <T> T removeHeader(PropertyKey<T> key);
+
     /**
      * Get a map of all the headers for this message
      *
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A typed key for exchange properties and message headers.
+ *
+ * Keys are interned: there is a single instance for a given name, which
+ * should be kept in a constant so that the name does not need to be
+ * built and hashed each time a property is accessed.  Values set using
+ * a key can still be retrieved using its name.
+ *
+ * @version $Revision: $
+ * @since 4.0
+ */
+public final class PropertyKey<T> {
+
+    private static final ConcurrentMap<String, PropertyKey<?>> KEYS = new ConcurrentHashMap<String, PropertyKey<?>>();
+
+    private final String name;
+    private final Class<T> type;
+    private final int hash;
+    private final ConcurrentMap<String, PropertyKey<T>> children = new ConcurrentHashMap<String, PropertyKey<T>>();
+
+    private PropertyKey(String name, Class<T> type) {
+        this.name = name.intern();
+        this.type = type;
+        this.hash = name.hashCode();
+    }
+
+    /**
+     * Retrieve the key for the given name.
+     *
+     * @param name the name of the property
+     * @param type the type of the property values
+     * @return the key
+     * @throws IllegalArgumentException if the key already exists with another type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PropertyKey<T> get(String name, Class<T> type) {
+        PropertyKey<?> key = KEYS.get(name);
+        if (key == null) {
+            PropertyKey<?> created = new PropertyKey<T>(name, type);
+            key = KEYS.putIfAbsent(name, created);
+            if (key == null) {
+                key = created;
+            }
+        }
+        if (key.type != type) {
+            throw new IllegalArgumentException("Property " + name + " is already defined with type " + key.type.getName());
+        }
+        return (PropertyKey<T>) key;
+    }
+
+    /**
+     * Retrieve the key named after this key followed by a dot and the given suffix,
+     * with the same type.  The derived key is cached by this key.
+     *
+     * @param suffix the suffix of the derived key
+     * @return the derived key
+     */
+    public PropertyKey<T> child(String suffix) {
+        PropertyKey<T> key = children.get(suffix);
+        if (key == null) {
+            key = get(name + "." + suffix, type);
+            children.putIfAbsent(suffix, key);
+        }
+        return key;
+    }
+
+    /**
+     * @return the name of the property, which is an interned string
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
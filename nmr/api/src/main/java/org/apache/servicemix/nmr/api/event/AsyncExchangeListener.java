@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api.event;
+
+/**
+ * Marker interface for {@link ExchangeListener}s that do not need to be
+ * called on the thread sending or delivering the exchange.
+ *
+ * Events for such listeners are queued and delivered by a dedicated thread,
+ * so a slow listener does not add latency to exchanges.  As a consequence,
+ * such listeners receive a snapshot of the exchange taken when the event was
+ * fired, and must not modify it.  The message contents are shared with the
+ * exchange: listeners reading them must be registered with the
+ * <code>async.content</code> property set to <code>true</code>, so that
+ * streamed bodies are made re-readable before the snapshot is taken.
+ *
+ * The same behavior can be obtained for any listener by registering it with
+ * the <code>async</code> property set to <code>true</code>.
+ */
+public interface AsyncExchangeListener extends ExchangeListener {
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api.event;
+
+import java.util.List;
+
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+
+/**
+ * An {@link EndpointListener} that can handle a group of endpoint
+ * changes at once.
+ * When endpoints are registered or unregistered inside a
+ * {@link org.apache.servicemix.nmr.api.EndpointRegistry#batch(Runnable)} call,
+ * listeners implementing this interface receive a single event for the whole
+ * batch instead of one event per endpoint.
+ */
+public interface EndpointBatchListener extends EndpointListener {
+
+    /**
+     * A group of endpoints has been registered and / or unregistered
+     *
+     * @param registered the registered endpoints, in registration order
+     * @param unregistered the unregistered endpoints, in unregistration order
+     */
+    void endpointsChanged(List<InternalEndpoint> registered, List<InternalEndpoint> unregistered);
+
+}
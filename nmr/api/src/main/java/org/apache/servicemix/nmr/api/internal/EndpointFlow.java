@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api.internal;
+
+/**
+ * A {@link Flow} that can tell in advance whether it will accept
+ * all the exchanges for a given endpoint.
+ *
+ * When a flow accepts all exchanges for an endpoint, the {@link FlowRegistry}
+ * can remember its decision and avoid asking every flow for each exchange.
+ * Such flows are only used when no other flow can dispatch the exchange.
+ *
+ * @version $Revision: $
+ * @since 4.0
+ */
+public interface EndpointFlow extends Flow {
+
+    /**
+     * Check if this flow can be used to dispatch any exchange to the given endpoint.
+     * The result must not change as long as the flow and the endpoint are registered.
+     *
+     * @param endpoint the endpoint where exchanges are to be dispatched
+     * @return <code>true</code> if the flow can dispatch all the exchanges to this endpoint
+     */
+    boolean canDispatchAll(InternalEndpoint endpoint);
+
+}
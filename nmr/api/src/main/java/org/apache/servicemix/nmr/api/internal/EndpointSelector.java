@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api.internal;
+
+import java.util.List;
+
+/**
+ * Strategy used to choose the endpoint that will receive an exchange
+ * when several endpoints match the target of this exchange.
+ *
+ * The {@link FlowRegistry} will first try to dispatch the exchange to the
+ * selected endpoint and will fall back to the following ones (wrapping
+ * around at the end of the list) if the exchange can not be dispatched
+ * to it.
+ *
+ * @version $Revision: $
+ * @since 4.0
+ */
+public interface EndpointSelector {
+
+    /**
+     * Choose the endpoint to try first for the given exchange.
+     *
+     * @param exchange the exchange to dispatch
+     * @param endpoints the matching endpoints, which contains at least two elements
+     * @return the index in the list of the endpoint to try first
+     */
+    int select(InternalExchange exchange, List<InternalEndpoint> endpoints);
+
+}
@@ -74,7 +74,82 @@ public interface InternalExchange extends Exchange {
      */
     void setDestination(InternalEndpoint destination);
 
+    /**
+     * Retrieve the expiry scheduled for this exchange, if any
+     *
+     * @return the expiry timeout or <code>null</code>
+     */
+    Timeout getExpiry();
+
+    /**
+     * Set the expiry scheduled for this exchange.  The timeout will be
+     * cancelled when the exchange is done.
+     *
+     * @param expiry the expiry timeout
+     */
+    void setExpiry(Timeout expiry);
+
+    /**
+     * Prepare the current thread to wait for this exchange to come back
+     * to the given role.  This method must be called before sending the
+     * exchange, and followed by a call to {@link #awaitSync(long)}.
+     *
+     * @param role the role of the waiting side
+     */
+    void beginSync(Role role);
+
+    /**
+     * Wait until the exchange comes back to the role given to
+     * {@link #beginSync(Role)} or until it is cancelled.
+     *
+     * @param timeout the maximum time to wait in milliseconds, or <code>0</code> to wait forever
+     * @return <code>true</code> if the exchange came back, <code>false</code> if the timeout elapsed
+     * @throws InterruptedException if the waiting thread has been interrupted
+     */
+    boolean awaitSync(long timeout) throws InterruptedException;
+
+    /**
+     * Register a completion to be run when this exchange comes back to
+     * the given role.  This method must be called before sending the exchange.
+     * The completion is run by the thread calling {@link #completeSync(Role)}.
+     *
+     * @param role the role of the waiting side
+     * @param completion the completion to run
+     */
+    void beginAsync(Role role, Runnable completion);
+
+    /**
+     * Stop waiting for this exchange to come back to the given role.
+     *
+     * @param role the role of the waiting side
+     * @return <code>true</code> if the exchange was still awaited
+     */
+    boolean abortSync(Role role);
+
+    /**
+     * Check if a thread is waiting for this exchange to come back to the given role.
+     *
+     * @param role the role of the waiting side
+     * @return <code>true</code> if a thread is waiting
+     */
+    boolean isSyncPending(Role role);
+
+    /**
+     * Wake up the thread waiting for this exchange to come back to the given role.
+     *
+     * @param role the role of the waiting side
+     * @return <code>true</code> if a thread was waiting, in which case the exchange
+     *         must not be delivered to the endpoint
+     */
+    boolean completeSync(Role role);
+
+    /**
+     * @deprecated use {@link #beginSync(Role)} and {@link #awaitSync(long)} instead
+     */
     Semaphore getConsumerLock(boolean create);
 
+    /**
+     * @deprecated use {@link #beginSync(Role)} and {@link #awaitSync(long)} instead
+     */
     Semaphore getProviderLock(boolean create);
 }
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.api.internal;
+
+/**
+ * A handle on a task scheduled to run after a given delay,
+ * such as the expiry of an exchange.
+ *
+ * @see InternalExchange#setExpiry(Timeout)
+ * @version $Revision: $
+ * @since 4.0
+ */
+public interface Timeout {
+
+    /**
+     * Cancel the task if it has not run yet.
+     *
+     * @return <code>true</code> if the task has been cancelled,
+     *         <code>false</code> if it has already run or been cancelled
+     */
+    boolean cancel();
+
+    /**
+     * Check if the task has run
+     *
+     * @return <code>true</code> if the task has run
+     */
+    boolean isExpired();
+
+}
@@ -17,10 +17,8 @@
 package org.apache.servicemix.nmr.audit.jdbc;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.SQLException;
@@ -40,6 +38,7 @@ import org.apache.servicemix.nmr.api.Type;
 import org.apache.servicemix.nmr.api.Message;
 import org.apache.servicemix.nmr.audit.AbstractAuditor;
 import org.apache.servicemix.nmr.audit.AuditorException;
+import org.apache.servicemix.nmr.core.ExchangeCodec;
 
 /**
  * Basic implementation of ServiceMix auditor on a jdbc store.
@@ -131,11 +130,7 @@ public class JdbcAuditor extends AbstractAuditor {
     }
 
     protected byte[] getDataForExchange(Exchange exchange) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream os = new ObjectOutputStream(baos);
-        os.writeObject(checkSerializable(exchange));
-        os.close();
-        return baos.toByteArray();
+        return ExchangeCodec.encode(checkSerializable(exchange));
     }
 
     protected Exchange checkSerializable(Exchange exchange) {
@@ -311,6 +306,10 @@ public class JdbcAuditor extends AbstractAuditor {
         ClassLoader oldCl = Thread.currentThread().getContextClassLoader();
         try {
             Thread.currentThread().setContextClassLoader(tccl);
+            if (ExchangeCodec.isEncoded(data)) {
+                return ExchangeCodec.decodeExchange(data);
+            }
+            // exchanges stored using java serialization
             ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(data));
             return (Exchange) is.readObject();
         } catch (Exception e) {
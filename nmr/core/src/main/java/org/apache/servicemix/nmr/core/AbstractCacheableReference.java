@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.servicemix.nmr.api.Endpoint;
+import org.apache.servicemix.nmr.api.EndpointRegistry;
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+
+/**
+ * Base class for references that cache the list of matching endpoints.
+ *
+ * The matching endpoints are kept in an immutable snapshot stamped with
+ * the generation of the {@link EndpointRegistryImpl} it has been computed
+ * from.  The registry increments its generation each time an endpoint is
+ * registered or unregistered, so that stale snapshots are lazily recomputed
+ * on the next call to {@link #choose(EndpointRegistry)}, without the registry
+ * having to keep track of the live references.  When the snapshot is up to
+ * date, choosing endpoints is a simple volatile read.  Other registries
+ * do not have a generation, so the endpoints are resolved on each call.
+ */
+public abstract class AbstractCacheableReference implements CacheableReference {
+
+    private transient volatile Snapshot snapshot;
+
+    public Iterable<InternalEndpoint> choose(EndpointRegistry registry) {
+        // Read the generation before resolving so that any concurrent change
+        // will invalidate the computed snapshot
+        long generation = getGeneration(registry);
+        if (generation < 0) {
+            return Collections.unmodifiableList(resolve(registry));
+        }
+        Snapshot s = snapshot;
+        if (s == null || s.registry != registry || s.generation != generation) {
+            s = new Snapshot(registry, generation, resolve(registry));
+            snapshot = s;
+        }
+        return s.matches;
+    }
+
+    public void setDirty() {
+        snapshot = null;
+    }
+
+    /**
+     * Compute the list of endpoints matching this reference.
+     *
+     * @param registry the registry to use
+     * @return the matching endpoints
+     */
+    protected List<InternalEndpoint> resolve(EndpointRegistry registry) {
+        List<InternalEndpoint> result = new ArrayList<InternalEndpoint>();
+        for (Endpoint ep : candidates(registry)) {
+            InternalEndpoint iep = (InternalEndpoint) ep;
+            if (Boolean.valueOf((String) iep.getMetaData().get(Endpoint.UNTARGETABLE))) {
+                continue;
+            }
+            if (match(registry, iep)) {
+                result.add(iep);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retrieve the endpoints that need to be checked against this reference.
+     *
+     * @param registry the registry to use
+     * @return the candidate endpoints
+     */
+    protected List<? extends Endpoint> candidates(EndpointRegistry registry) {
+        return registry.query(null);
+    }
+
+    /**
+     * Check if the given endpoint matches this reference.
+     *
+     * @param registry the registry to use
+     * @param endpoint the endpoint to check
+     * @return <code>true</code> if the endpoint matches
+     */
+    protected abstract boolean match(EndpointRegistry registry, InternalEndpoint endpoint);
+
+    /*
+     * Registries that do not support generations return -1,
+     * as a snapshot computed from them could never be invalidated
+     */
+    private static long getGeneration(EndpointRegistry registry) {
+        if (registry instanceof EndpointRegistryImpl) {
+            return ((EndpointRegistryImpl) registry).getGeneration();
+        }
+        return -1;
+    }
+
+    /**
+     * Immutable list of matching endpoints
+     */
+    private static class Snapshot {
+
+        private final EndpointRegistry registry;
+        private final long generation;
+        private final List<InternalEndpoint> matches;
+
+        public Snapshot(EndpointRegistry registry, long generation, List<InternalEndpoint> matches) {
+            this.registry = registry;
+            this.generation = generation;
+            this.matches = Collections.unmodifiableList(matches);
+        }
+    }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.event.AsyncExchangeListener;
+import org.apache.servicemix.nmr.api.event.ExchangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link ExchangeListener} that queues events in a bounded ring buffer
+ * and delivers them to another listener from a dedicated thread.
+ *
+ * The listener receives a snapshot of the exchange taken when the event
+ * was fired, so that it never reads the exchange while an endpoint is
+ * processing it.  Message contents are shared with the snapshot and are
+ * only made re-readable for listeners registered with the
+ * {@link #ASYNC_CONTENT} property, as this requires reading streamed
+ * bodies fully on the thread firing the event.  Other listeners must not
+ * read streamed bodies.
+ *
+ * The buffer does not use any lock: threads firing events claim a slot
+ * with a compare-and-set on the tail sequence and publish it through the
+ * sequence of the slot, which is then read by the single delivery thread.
+ *
+ * When the buffer is full, the configured {@link Overflow} policy is applied:
+ * <ul>
+ *   <li><code>block</code>: the thread firing the event waits for some room in the buffer</li>
+ *   <li><code>drop</code>: the event is discarded</li>
+ *   <li><code>sample</code>: only one event out of <code>sampleRate</code> is kept
+ *       (waiting for some room), the others are discarded</li>
+ * </ul>
+ */
+public class AsyncListenerDispatcher implements ExchangeListener {
+
+    /**
+     * Listener property used to request asynchronous delivery of events
+     */
+    public static final String ASYNC = "async";
+
+    /**
+     * Listener property for the size of the ring buffer
+     */
+    public static final String ASYNC_CAPACITY = "async.capacity";
+
+    /**
+     * Listener property for the overflow policy: <code>block</code>, <code>drop</code>
+     * or <code>sample</code>
+     */
+    public static final String ASYNC_OVERFLOW = "async.overflow";
+
+    /**
+     * Listener property for the sampling rate used by the <code>sample</code> overflow policy
+     */
+    public static final String ASYNC_SAMPLE_RATE = "async.sampleRate";
+
+    /**
+     * Listener property to set to <code>true</code> if the listener reads the message contents
+     */
+    public static final String ASYNC_CONTENT = "async.content";
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+
+    public enum Overflow {
+        Block, Drop, Sample
+    }
+
+    private static final byte SENT = 0;
+    private static final byte DELIVERED = 1;
+    private static final byte FAILED = 2;
+
+    private final Logger logger = LoggerFactory.getLogger(AsyncListenerDispatcher.class);
+
+    private final ExchangeListener listener;
+    private final Overflow overflow;
+    private final int sampleRate;
+    private final boolean content;
+
+    /*
+     * Slot i holds 2 * p when it is free for the event at position p,
+     * and 2 * p + 1 once that event has been published
+     */
+    private final AtomicLongArray sequences;
+    private final Exchange[] exchanges;
+    private final byte[] types;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+    private final Thread thread;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private volatile int maxLag;
+
+    private static final long PRODUCER_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long CONSUMER_WAIT = TimeUnit.SECONDS.toNanos(1);
+
+    public AsyncListenerDispatcher(ExchangeListener listener, int capacity, Overflow overflow, int sampleRate) {
+        this(listener, capacity, overflow, sampleRate, false);
+    }
+
+    public AsyncListenerDispatcher(ExchangeListener listener, int capacity, Overflow overflow, int sampleRate,
+                                   boolean content) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.listener = listener;
+        this.overflow = overflow;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.content = content;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, 2L * i);
+        }
+        this.exchanges = new Exchange[capacity];
+        this.types = new byte[capacity];
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "nmr.listener." + listener);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Create a dispatcher configured from the listener registration properties
+     *
+     * @param listener the listener to call
+     * @param properties the registration properties
+     * @return a new dispatcher
+     */
+    public static AsyncListenerDispatcher create(ExchangeListener listener, Map<String, ?> properties) {
+        int capacity = DEFAULT_CAPACITY;
+        Overflow overflow = Overflow.Block;
+        int sampleRate = DEFAULT_SAMPLE_RATE;
+        boolean content = false;
+        if (properties != null) {
+            capacity = getInt(properties.get(ASYNC_CAPACITY), capacity);
+            sampleRate = getInt(properties.get(ASYNC_SAMPLE_RATE), sampleRate);
+            content = getBoolean(properties.get(ASYNC_CONTENT));
+            Object o = properties.get(ASYNC_OVERFLOW);
+            if (o != null) {
+                String s = o.toString();
+                for (Overflow ov : Overflow.values()) {
+                    if (ov.name().equalsIgnoreCase(s)) {
+                        overflow = ov;
+                    }
+                }
+            }
+        }
+        return new AsyncListenerDispatcher(listener, capacity, overflow, sampleRate, content);
+    }
+
+    /**
+     * Check if the given listener should receive events asynchronously
+     *
+     * @param listener the listener
+     * @param properties the registration properties
+     * @return <code>true</code> if events should be delivered asynchronously
+     */
+    public static boolean isAsync(Object listener, Map<String, ?> properties) {
+        if (!(listener instanceof ExchangeListener)) {
+            return false;
+        }
+        if (listener instanceof AsyncExchangeListener) {
+            return true;
+        }
+        return getBoolean(properties != null ? properties.get(ASYNC) : null);
+    }
+
+    public ExchangeListener getListener() {
+        return listener;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public boolean isContent() {
+        return content;
+    }
+
+    public int getCapacity() {
+        return exchanges.length;
+    }
+
+    /**
+     * Number of events waiting to be delivered to the listener
+     */
+    public int getLag() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Maximum number of events that have been waiting to be delivered
+     */
+    public int getMaxLag() {
+        return maxLag;
+    }
+
+    /**
+     * Number of events delivered to the listener
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * Number of events discarded because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void exchangeSent(Exchange exchange) {
+        enqueue(SENT, exchange);
+    }
+
+    public void exchangeDelivered(Exchange exchange) {
+        enqueue(DELIVERED, exchange);
+    }
+
+    public void exchangeFailed(Exchange exchange) {
+        enqueue(FAILED, exchange);
+    }
+
+    /**
+     * Stop the delivery thread once the pending events have been delivered.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Wait for the delivery thread to stop.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     */
+    public void join(long timeout) throws InterruptedException {
+        thread.join(timeout);
+    }
+
+    protected void enqueue(byte type, Exchange exchange) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+        // take the snapshot before claiming a slot, so that a failure can not
+        // leave a claimed slot unpublished and stall the delivery thread
+        Exchange snapshot;
+        try {
+            snapshot = snapshot(exchange);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to copy exchange for listener {}, event dropped", listener, e);
+            dropped.incrementAndGet();
+            return;
+        }
+        long pos = claim();
+        if (pos < 0) {
+            boolean wait = overflow == Overflow.Block
+                    || (overflow == Overflow.Sample && overflows.getAndIncrement() % sampleRate == 0);
+            if (!wait) {
+                dropped.incrementAndGet();
+                return;
+            }
+            while ((pos = claim()) < 0) {
+                if (closed || Thread.currentThread().isInterrupted()) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(PRODUCER_WAIT);
+            }
+        }
+        int index = (int) (pos % exchanges.length);
+        exchanges[index] = snapshot;
+        types[index] = type;
+        sequences.set(index, 2 * pos + 1);
+        int lag = (int) (pos + 1 - head);
+        if (lag > maxLag) {
+            maxLag = lag;
+        }
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /*
+     * Claim the next slot of the buffer, or return -1 if the buffer is full
+     */
+    private long claim() {
+        while (true) {
+            long pos = tail.get();
+            long seq = sequences.get((int) (pos % exchanges.length));
+            if (seq == 2 * pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+            } else if (seq < 2 * pos) {
+                return -1;
+            }
+        }
+    }
+
+    /*
+     * The exchange will be read by the delivery thread while the endpoints
+     * keep processing it, so hand over a snapshot
+     */
+    private Exchange snapshot(Exchange exchange) {
+        if (exchange instanceof ExchangeImpl) {
+            try {
+                return ((ExchangeImpl) exchange).snapshot(content);
+            } catch (NmrRuntimeException e) {
+                logger.warn("Unable to copy exchange {} for listener {}", exchange.getId(), listener);
+                return exchange.copy();
+            }
+        }
+        return exchange;
+    }
+
+    protected void drain() {
+        long pos = head;
+        while (true) {
+            int index = (int) (pos % exchanges.length);
+            if (sequences.get(index) != 2 * pos + 1) {
+                if (closed && tail.get() == pos) {
+                    return;
+                }
+                waiting = true;
+                if (sequences.get(index) != 2 * pos + 1) {
+                    LockSupport.parkNanos(closed ? PRODUCER_WAIT : CONSUMER_WAIT);
+                }
+                waiting = false;
+                if (Thread.interrupted()) {
+                    return;
+                }
+                continue;
+            }
+            Exchange exchange = exchanges[index];
+            byte type = types[index];
+            exchanges[index] = null;
+            sequences.set(index, 2 * (pos + exchanges.length));
+            head = ++pos;
+            try {
+                switch (type) {
+                    case SENT:
+                        listener.exchangeSent(exchange);
+                        break;
+                    case DELIVERED:
+                        listener.exchangeDelivered(exchange);
+                        break;
+                    default:
+                        listener.exchangeFailed(exchange);
+                        break;
+                }
+            } catch (Throwable t) {
+                logger.warn("Error calling listener {}", listener, t);
+            }
+            processed.incrementAndGet();
+        }
+    }
+
+    private static boolean getBoolean(Object o) {
+        if (o instanceof Boolean) {
+            return (Boolean) o;
+        }
+        return o != null && Boolean.valueOf(o.toString());
+    }
+
+    private static int getInt(Object o, int defaultValue) {
+        if (o instanceof Number) {
+            return ((Number) o).intValue();
+        } else if (o != null) {
+            try {
+                return Integer.parseInt(o.toString());
+            } catch (NumberFormatException e) {
+                // use default value
+            }
+        }
+        return defaultValue;
+    }
+
+    public String toString() {
+        return "AsyncListenerDispatcher[" + listener + "]";
+    }
+}
@@ -22,10 +22,13 @@ import org.apache.servicemix.nmr.api.internal.InternalReference;
 
 /**
  * An internal reference that keeps an internal cache of matching endpoints.
- * Such references need to be notified when the endpoint list changed to
- * update this cache.
+ * The cache is refreshed when the endpoint list changed, or when it has
+ * been explicitely invalidated.
  */
 public interface CacheableReference extends InternalReference {
 
+    /**
+     * Invalidate the cache of matching endpoints.
+     */
     void setDirty();
 }
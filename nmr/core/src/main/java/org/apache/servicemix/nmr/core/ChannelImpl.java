@@ -20,21 +20,31 @@ import org.apache.servicemix.executors.Executor;
 import org.apache.servicemix.executors.ExecutorAwareRunnable;
 import org.apache.servicemix.nmr.api.*;
 import org.apache.servicemix.nmr.api.event.ExchangeListener;
+import org.apache.servicemix.nmr.api.event.ListenerRegistry;
+import org.apache.servicemix.nmr.api.internal.FlowRegistry;
 import org.apache.servicemix.nmr.api.internal.InternalChannel;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.apache.servicemix.nmr.api.internal.Timeout;
+import org.apache.servicemix.nmr.core.overflow.BlockPolicy;
+import org.apache.servicemix.nmr.core.overflow.OverflowPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.security.auth.Subject;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The {@link org.apache.servicemix.nmr.api.Channel} implementation.
@@ -46,6 +56,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class ChannelImpl implements InternalChannel {
 
+    public static final String SYSTEM_PROPERTY_DECORATE_THREAD_NAME = "servicemix.nmr.decorateThreadName";
+
+    private static final boolean DEFAULT_DECORATE_THREAD_NAME
+            = Boolean.parseBoolean(System.getProperty(SYSTEM_PROPERTY_DECORATE_THREAD_NAME, "false"));
+
     private final Logger logger = LoggerFactory.getLogger(NMR.class);
 
     private final InternalEndpoint endpoint;
@@ -53,8 +68,18 @@ public class ChannelImpl implements InternalChannel {
     private final NMR nmr;
     private String name;
     private AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<InternalExchange, Boolean> reserved = new ConcurrentHashMap<InternalExchange, Boolean>();
+    private final Map<InternalExchange, Boolean> unanswered = new ConcurrentHashMap<InternalExchange, Boolean>();
+    private final AtomicInteger capacityWaiters = new AtomicInteger();
+    private final Object capacityLock = new Object();
+    private int maxInFlight;
+    private int maxQueued;
+    private OverflowPolicy overflowPolicy = new BlockPolicy();
     private boolean shouldRunSynchronously;
     private boolean runAsSubject;
+    private boolean decorateThreadName = DEFAULT_DECORATE_THREAD_NAME;
 
     public ChannelImpl(InternalEndpoint endpoint, Executor executor, NMR nmr) {
         this.endpoint = endpoint;
@@ -94,6 +119,130 @@ public class ChannelImpl implements InternalChannel {
         this.runAsSubject = runAsSubject;
     }
 
+    /**
+     * Will the name of a thread blocked in {@link #sendSync(Exchange)} be changed
+     * to show the exchange it is waiting for?
+     */
+    public boolean isDecorateThreadName() {
+        return decorateThreadName;
+    }
+
+    /**
+     * Configure whether the name of a thread blocked in {@link #sendSync(Exchange)}
+     * is changed to show the exchange it is waiting for.  Defaults to <code>false</code>,
+     * unless the <code>servicemix.nmr.decorateThreadName</code> system property is set.
+     *
+     * @param decorateThreadName
+     */
+    public void setDecorateThreadName(boolean decorateThreadName) {
+        this.decorateThreadName = decorateThreadName;
+    }
+
+    /**
+     * Number of exchanges that have been delivered to this endpoint as a provider
+     * and that have not been sent back to the consumer yet.
+     *
+     * @return the number of exchanges in flight
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * Number of exchanges that have been delivered to this endpoint and
+     * are waiting for a thread to be processed.
+     *
+     * @return the number of queued exchanges
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Limit the number of exchanges in flight for this endpoint.
+     * Defaults to <code>0</code>, which means no limit.
+     *
+     * @param maxInFlight the maximum number of exchanges in flight
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        signalCapacity();
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Limit the number of exchanges waiting for a thread to be processed.
+     * Defaults to <code>0</code>, which means no limit.
+     *
+     * @param maxQueued the maximum number of queued exchanges
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+        signalCapacity();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Configure what to do with exchanges exceeding the limits of this channel.
+     * Defaults to a {@link BlockPolicy} without timeout.
+     *
+     * @param overflowPolicy the policy to use
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Check if a new exchange can be delivered without exceeding the limits of this channel.
+     */
+    public boolean hasCapacity() {
+        return (maxInFlight <= 0 || inFlight.get() < maxInFlight)
+                && (maxQueued <= 0 || queued.get() < maxQueued);
+    }
+
+    /**
+     * Wait until a new exchange can be delivered without exceeding the limits of this channel.
+     *
+     * @param timeout the maximum time to wait in milliseconds, or <code>0</code> to wait forever
+     * @return <code>true</code> if there is some capacity left, <code>false</code> if the timeout elapsed
+     * @throws InterruptedException if the thread has been interrupted
+     */
+    public boolean awaitCapacity(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        capacityWaiters.incrementAndGet();
+        try {
+            synchronized (capacityLock) {
+                while (!hasCapacity()) {
+                    if (closed.get()) {
+                        throw new ChannelClosedException();
+                    }
+                    if (timeout > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        capacityLock.wait(remaining);
+                    } else {
+                        capacityLock.wait();
+                    }
+                }
+            }
+            return true;
+        } finally {
+            capacityWaiters.decrementAndGet();
+        }
+    }
+
     /**
      * Access to the bus
      *
@@ -151,39 +300,119 @@ public class ChannelImpl implements InternalChannel {
      */
     public boolean sendSync(Exchange exchange, long timeout) {
         InternalExchange e = (InternalExchange) exchange;
-        Semaphore lock = e.getRole() == Role.Consumer ? e.getConsumerLock(true)
-                : e.getProviderLock(true);
-        dispatch(e);
-        Thread thread = Thread.currentThread();
-        String original = thread.getName();
+        e.beginSync(e.getRole());
+        Thread thread = null;
+        String original = null;
+        if (decorateThreadName && timeout <= 0) {
+            thread = Thread.currentThread();
+            original = thread.getName();
+            thread.setName(original + " (waiting for exchange " + exchange.getId() + ")");
+        }
         try {
-            if (timeout > 0) {
-                if (!lock.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
-                    throw new TimeoutException();
-                }
-            } else {
-                thread.setName(original + " (waiting for exchange " + exchange.getId() + ")");
-                lock.acquire();
+            dispatch(e);
+            if (!e.awaitSync(timeout)) {
+                throw new TimeoutException();
             }
             e.setRole(e.getRole() == Role.Consumer ? Role.Provider : Role.Consumer);
         } catch (InterruptedException ex) {
-            exchange.setError(ex);
-            for (ExchangeListener l : nmr.getListenerRegistry().getListeners(ExchangeListener.class)) {
-                l.exchangeFailed(exchange);
-            }
+            abort(e, ex);
             return false;
         } catch (TimeoutException ex) {
-            exchange.setError(new AbortedException(ex));
-            for (ExchangeListener l : nmr.getListenerRegistry().getListeners(ExchangeListener.class)) {
-                l.exchangeFailed(exchange);
-            }
+            abort(e, new AbortedException(ex));
             return false;
         } finally {
-            thread.setName(original);
+            if (thread != null) {
+                thread.setName(original);
+            }
         }
         return true;
     }
 
+    /**
+     * Asynchronously send the exchange, without blocking the calling thread.
+     *
+     * @param exchange the exchange to send
+     * @return a future for the exchange
+     */
+    public ExchangeFuture sendAsync(Exchange exchange) {
+        InternalExchange e = (InternalExchange) exchange;
+        ExchangeFutureImpl future = new ExchangeFutureImpl(this, e, e.getRole());
+        e.beginAsync(e.getRole(), future);
+        dispatch(e);
+        return future;
+    }
+
+    /**
+     * An asynchronous invocation of several exchanges at once.
+     *
+     * @param exchanges the exchanges to send
+     */
+    public void sendBatch(Collection<? extends Exchange> exchanges) {
+        if (closed.get()) {
+            throw new ChannelClosedException();
+        }
+        List<InternalExchange> batch = new ArrayList<InternalExchange>(exchanges.size());
+        for (Exchange exchange : exchanges) {
+            InternalExchange e = (InternalExchange) exchange;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Channel {} dispatching exchange: {}", name, e.display(false));
+            }
+            if (e.getSource() == null) {
+                e.setSource(endpoint);
+            }
+            answered(e);
+            batch.add(e);
+        }
+        // Call listeners
+        for (ExchangeListener l : getExchangeListeners()) {
+            for (InternalExchange e : batch) {
+                l.exchangeSent(e);
+            }
+        }
+        for (InternalExchange e : batch) {
+            scheduleExpiry(e);
+        }
+        // Dispatch in NMR
+        FlowRegistry flows = nmr.getFlowRegistry();
+        Map<InternalExchange, RuntimeException> failures;
+        if (flows instanceof FlowRegistryImpl) {
+            failures = ((FlowRegistryImpl) flows).dispatchBatch(batch);
+        } else {
+            failures = new LinkedHashMap<InternalExchange, RuntimeException>();
+            for (InternalExchange e : batch) {
+                try {
+                    flows.dispatch(e);
+                } catch (RuntimeException ex) {
+                    failures.put(e, ex);
+                }
+            }
+        }
+        RuntimeException first = null;
+        for (Map.Entry<InternalExchange, RuntimeException> failure : failures.entrySet()) {
+            try {
+                handleFailure(failure.getKey(), failure.getValue(), true);
+            } catch (RuntimeException e) {
+                if (first == null) {
+                    first = e;
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    /*
+     * The exchange is not awaited anymore
+     */
+    void abort(InternalExchange exchange, Exception cause) {
+        cancelExpiry(exchange);
+        exchange.setError(cause);
+        for (ExchangeListener l : getExchangeListeners()) {
+            l.exchangeFailed(exchange);
+        }
+    }
+
     /**
      * Closes the channel, freeing up any resources (like sockets, threads etc).
      * Channel that are injected onto Endpoints will be closed automatically by
@@ -194,6 +423,7 @@ public class ChannelImpl implements InternalChannel {
             Map<String,?> props = nmr.getEndpointRegistry().getProperties(endpoint);
             nmr.getEndpointRegistry().unregister(endpoint, props);
             executor.shutdown();
+            signalCapacity();
         }
     }
 
@@ -203,6 +433,10 @@ public class ChannelImpl implements InternalChannel {
      * @param exchange the exchange to delivery
      */
     public void deliver(final InternalExchange exchange) {
+        // The provider is done with the exchange, even if it can not be delivered back
+        if (exchange.getRole() == Role.Provider) {
+            release(exchange);
+        }
         if (closed.get()) {
             throw new ChannelClosedException();
         }
@@ -213,21 +447,47 @@ public class ChannelImpl implements InternalChannel {
         if (logger.isDebugEnabled()) {
             logger.debug("Channel {} delivering exchange: {}", name, exchange.display(false));
         }
+        // The exchange is done, so it can not expire anymore
+        if (exchange.getRole() == Role.Consumer && exchange.getStatus() != Status.Active) {
+            cancelExpiry(exchange);
+        }
+        // Keep track of the exchanges being processed by the provider
+        boolean incoming = exchange.getRole() == Role.Consumer && exchange.getStatus() == Status.Active;
+        if (incoming) {
+            if (!reserve(exchange)) {
+                return;
+            }
+        } else if (exchange.getRole() == Role.Provider) {
+            // The exchange has already been failed when it expired, so drop the late reply
+            if (!cancelExpiry(exchange)) {
+                logger.debug("Channel {} dropping reply for expired exchange {}", name, exchange.getId());
+                return;
+            }
+        }
         // Handle case where the exchange has been sent synchronously
-        Semaphore lock = exchange.getRole() == Role.Provider ? exchange.getConsumerLock(false)
-                : exchange.getProviderLock(false);
-        if (lock != null) {
+        Role waiter = exchange.getRole() == Role.Provider ? Role.Consumer : Role.Provider;
+        Semaphore lock = getLegacyLock(exchange);
+        if (exchange.isSyncPending(waiter) || lock != null) {
             // Call listeners
-            for (ExchangeListener l : nmr.getListenerRegistry().getListeners(ExchangeListener.class)) {
+            for (ExchangeListener l : getExchangeListeners()) {
                 l.exchangeDelivered(exchange);
             }
-            lock.release();
+            if (!exchange.completeSync(waiter) && lock != null) {
+                lock.release();
+            }
+            if (incoming) {
+                exchangeDequeued();
+            }
             return;
         }
         // Delegate processing to the executor
         try {
+            final boolean queuedExchange = incoming;
             this.executor.execute(new ExecutorAwareRunnable() {
                 public void run() {
+                    if (queuedExchange) {
+                        exchangeDequeued();
+                    }
                     process(exchange);
                 }
                 public boolean shouldRunSynchronously() {
@@ -235,6 +495,10 @@ public class ChannelImpl implements InternalChannel {
                 }
             });
         } catch (RejectedExecutionException e) {
+            if (incoming) {
+                exchangeDequeued();
+                release(exchange);
+            }
             if (closed.get()) {
                 throw new ChannelClosedException();
             } else {
@@ -243,6 +507,152 @@ public class ChannelImpl implements InternalChannel {
         }
     }
 
+    /**
+     * Deliver several new exchanges to the endpoint using this channel.
+     * If the endpoint is a {@link BatchEndpoint}, the exchanges are processed
+     * together in a single executor task, else they are delivered one by one.
+     *
+     * @param exchanges the exchanges to deliver
+     * @param failures the map to add the exchanges that could not be delivered to
+     */
+    public void deliverBatch(List<InternalExchange> exchanges, Map<InternalExchange, RuntimeException> failures) {
+        List<InternalExchange> batch = new ArrayList<InternalExchange>(exchanges.size());
+        boolean batchEndpoint = endpoint.getEndpoint() instanceof BatchEndpoint && !runAsSubject;
+        for (InternalExchange exchange : exchanges) {
+            try {
+                if (!batchEndpoint || exchange.getRole() != Role.Consumer || exchange.getStatus() != Status.Active
+                        || exchange.isSyncPending(Role.Provider) || getLegacyLock(exchange) != null) {
+                    deliver(exchange);
+                    continue;
+                }
+                if (closed.get()) {
+                    throw new ChannelClosedException();
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Channel {} delivering exchange: {}", name, exchange.display(false));
+                }
+                if (reserve(exchange)) {
+                    batch.add(exchange);
+                }
+            } catch (RuntimeException e) {
+                failures.put(exchange, e);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        // Delegate processing of the whole batch to the executor
+        final List<InternalExchange> queuedExchanges = batch;
+        try {
+            this.executor.execute(new ExecutorAwareRunnable() {
+                public void run() {
+                    for (int i = 0; i < queuedExchanges.size(); i++) {
+                        exchangeDequeued();
+                    }
+                    process(queuedExchanges);
+                }
+                public boolean shouldRunSynchronously() {
+                    return shouldRunSynchronously;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            RuntimeException cause = closed.get() ? new ChannelClosedException() : e;
+            for (InternalExchange exchange : batch) {
+                exchangeDequeued();
+                release(exchange);
+                failures.put(exchange, cause);
+            }
+        }
+    }
+
+    /*
+     * Reserve room for an incoming exchange, applying the overflow policy
+     * while the channel limits are reached
+     */
+    private boolean reserve(InternalExchange exchange) {
+        while (!tryReserve()) {
+            if (!overflowPolicy.overflow(this, exchange)) {
+                return false;
+            }
+        }
+        reserved.put(exchange, Boolean.TRUE);
+        // the destination is used to find the reservation when the exchange expires
+        if (exchange.getDestination() == null) {
+            exchange.setDestination(endpoint);
+        }
+        return true;
+    }
+
+    /*
+     * Release the room reserved by an exchange.  The exchange may be released
+     * by its reply, by its expiry or when it is not processed, but only once.
+     */
+    private void release(InternalExchange exchange) {
+        InternalEndpoint provider = exchange.getDestination();
+        if (provider != null && provider.getChannel() instanceof ChannelImpl) {
+            ChannelImpl channel = (ChannelImpl) provider.getChannel();
+            if (channel.reserved.remove(exchange) != null) {
+                channel.exchangeCompleted();
+            }
+        }
+    }
+
+    private boolean tryReserve() {
+        if (!increment(inFlight, maxInFlight)) {
+            return false;
+        }
+        if (!increment(queued, maxQueued)) {
+            exchangeCompleted();
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean increment(AtomicInteger counter, int max) {
+        if (max <= 0) {
+            counter.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int current = counter.get();
+            if (current >= max) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /*
+     * An exchange in flight has been sent back by the provider
+     */
+    private void exchangeCompleted() {
+        while (true) {
+            int current = inFlight.get();
+            if (current <= 0 || inFlight.compareAndSet(current, current - 1)) {
+                break;
+            }
+        }
+        signalCapacity();
+    }
+
+    /*
+     * A queued exchange is about to be processed
+     */
+    private void exchangeDequeued() {
+        queued.decrementAndGet();
+        signalCapacity();
+    }
+
+    private void signalCapacity() {
+        if (capacityWaiters.get() > 0) {
+            synchronized (capacityLock) {
+                capacityLock.notifyAll();
+            }
+        }
+    }
+
     /**
      * Processes the exchange.  Delegate to the endpoint for actual processing.
      *
@@ -252,6 +662,7 @@ public class ChannelImpl implements InternalChannel {
         try {
             // Check for aborted exchanges
             if (exchange.getError() instanceof AbortedException) {
+                release(exchange);
                 return;
             }
             // Set destination endpoint
@@ -261,7 +672,7 @@ public class ChannelImpl implements InternalChannel {
             // Change role
             exchange.setRole(exchange.getRole() == Role.Provider ? Role.Consumer : Role.Provider);
             // Call listeners
-            for (ExchangeListener l : nmr.getListenerRegistry().getListeners(ExchangeListener.class)) {
+            for (ExchangeListener l : getExchangeListeners()) {
                 l.exchangeDelivered(exchange);
             }
             // Check if sendSync was used, in which case we need to unblock the other side
@@ -279,6 +690,66 @@ public class ChannelImpl implements InternalChannel {
         }
     }
 
+    /**
+     * Processes several exchanges at once.  Delegate to the {@link BatchEndpoint}
+     * for actual processing.
+     *
+     * @param batch the exchanges to process
+     */
+    protected void process(List<InternalExchange> batch) {
+        List<Exchange> exchanges = new ArrayList<Exchange>(batch.size());
+        for (InternalExchange exchange : batch) {
+            // Check for aborted exchanges
+            if (exchange.getError() instanceof AbortedException) {
+                release(exchange);
+                continue;
+            }
+            // Set destination endpoint
+            if (exchange.getDestination() == null) {
+                exchange.setDestination(endpoint);
+            }
+            // Change role
+            exchange.setRole(Role.Provider);
+            exchanges.add(exchange);
+        }
+        if (exchanges.isEmpty()) {
+            return;
+        }
+        // Call listeners
+        for (ExchangeListener l : getExchangeListeners()) {
+            for (Exchange exchange : exchanges) {
+                l.exchangeDelivered(exchange);
+            }
+        }
+        // Track the exchanges the endpoint has not sent back yet, as the role of the
+        // exchanges only changes once they are delivered to the consumer
+        for (Exchange exchange : exchanges) {
+            unanswered.put((InternalExchange) exchange, Boolean.TRUE);
+        }
+        try {
+            ((BatchEndpoint) endpoint.getEndpoint()).process(exchanges);
+        } catch (RuntimeException e) {
+            for (Exchange exchange : exchanges) {
+                if (unanswered.remove(exchange) != null) {
+                    handleFailure((InternalExchange) exchange, e, false);
+                }
+            }
+        } finally {
+            for (Exchange exchange : exchanges) {
+                unanswered.remove(exchange);
+            }
+        }
+    }
+
+    /*
+     * The exchange is being sent back by the endpoint
+     */
+    private void answered(InternalExchange exchange) {
+        if (!unanswered.isEmpty()) {
+            unanswered.remove(exchange);
+        }
+    }
+
     /**
      * Dispatch the exchange to the NMR
      *
@@ -288,6 +759,7 @@ public class ChannelImpl implements InternalChannel {
         if (closed.get()) {
             throw new ChannelClosedException();
         }
+        answered(exchange);
         // Log the exchange
         if (logger.isTraceEnabled()) {
             logger.trace("Channel {} dispatching exchange: {}", name, exchange.display(true));
@@ -300,9 +772,10 @@ public class ChannelImpl implements InternalChannel {
             exchange.setSource(endpoint);
         }
         // Call listeners
-        for (ExchangeListener l : nmr.getListenerRegistry().getListeners(ExchangeListener.class)) {
+        for (ExchangeListener l : getExchangeListeners()) {
             l.exchangeSent(exchange);
         }
+        scheduleExpiry(exchange);
         // Dispatch in NMR
         try {
             nmr.getFlowRegistry().dispatch(exchange);
@@ -314,8 +787,9 @@ public class ChannelImpl implements InternalChannel {
     protected void handleFailure(InternalExchange exchange, RuntimeException e, boolean dispatch) {
         logger.warn("Error processing exchange {}", exchange, e);
         if (dispatch) {
+            cancelExpiry(exchange);
             exchange.setError(e);
-            for (ExchangeListener l : nmr.getListenerRegistry().getListeners(ExchangeListener.class)) {
+            for (ExchangeListener l : getExchangeListeners()) {
                 l.exchangeFailed(exchange);
             }
             // Rethrow the exception so that sendSync are unblocked
@@ -327,24 +801,142 @@ public class ChannelImpl implements InternalChannel {
                     exchange.setError(e);
                     send(exchange);
                 } catch (RuntimeException e2) {
-                    for (ExchangeListener l : nmr.getListenerRegistry().getListeners(ExchangeListener.class)) {
+                    for (ExchangeListener l : getExchangeListeners()) {
                         l.exchangeFailed(exchange);
                     }
                 }
             } else {
                 exchange.setError(e);
-                Semaphore lock = exchange.getRole() == Role.Provider ? exchange.getConsumerLock(false)
-                        : exchange.getProviderLock(false);
-                if (lock != null) {
-                    lock.release();
+                Role waiter = exchange.getRole() == Role.Provider ? Role.Consumer : Role.Provider;
+                if (!exchange.completeSync(waiter)) {
+                    Semaphore lock = getLegacyLock(exchange);
+                    if (lock != null) {
+                        lock.release();
+                    }
                 }
-                for (ExchangeListener l : nmr.getListenerRegistry().getListeners(ExchangeListener.class)) {
+                for (ExchangeListener l : getExchangeListeners()) {
                     l.exchangeFailed(exchange);
                 }
             }
         }
     }
 
+    /*
+     * Schedule the expiry of a new exchange if it has a time to live
+     */
+    private void scheduleExpiry(final InternalExchange exchange) {
+        if (exchange.getExpiry() != null || exchange.getRole() != Role.Consumer
+                || exchange.getStatus() != Status.Active || !(nmr instanceof ServiceMix)) {
+            return;
+        }
+        ServiceMix smx = (ServiceMix) nmr;
+        TimerWheel timer = smx.getExpiryTimer();
+        long timeToLive = getTimeToLive(exchange, smx.getDefaultTimeToLive());
+        if (timer != null && timeToLive > 0) {
+            exchange.setExpiry(timer.schedule(new Runnable() {
+                public void run() {
+                    expired(exchange);
+                }
+            }, timeToLive));
+        }
+    }
+
+    private long getTimeToLive(InternalExchange exchange, long defaultTimeToLive) {
+        Object ttl = exchange.getProperty(Exchange.TIME_TO_LIVE);
+        if (ttl instanceof Number) {
+            return ((Number) ttl).longValue();
+        } else if (ttl != null) {
+            try {
+                return Long.parseLong(ttl.toString().trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value for property {} on exchange {}: {}",
+                            new Object[] { Exchange.TIME_TO_LIVE, exchange.getId(), ttl });
+            }
+        }
+        return defaultTimeToLive;
+    }
+
+    /*
+     * Cancel the expiry of an exchange, returning false if it has already expired
+     */
+    private boolean cancelExpiry(InternalExchange exchange) {
+        Timeout expiry = exchange.getExpiry();
+        if (expiry != null) {
+            if (expiry.isExpired()) {
+                return false;
+            }
+            expiry.cancel();
+            exchange.setExpiry(null);
+            return !expiry.isExpired();
+        }
+        return true;
+    }
+
+    /*
+     * Called by the timer thread, which must not block, once the expiry has been
+     * atomically marked as expired: replies arriving from now on are dropped,
+     * and the exchange is failed by the executor of this channel.
+     */
+    private void expired(final InternalExchange exchange) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    expire(exchange);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Channel {} unable to expire exchange {}", name, exchange.getId());
+        }
+    }
+
+    /**
+     * Abort an exchange which has not been done before the end of its time to live.
+     * The room reserved by the exchange on the provider channel is released,
+     * listeners are notified so that they can release the exchange, and threads
+     * waiting for it are woken up.
+     *
+     * @param exchange the expired exchange
+     */
+    protected void expire(InternalExchange exchange) {
+        release(exchange);
+        if (exchange.getError() instanceof AbortedException) {
+            // already aborted by the consumer
+            return;
+        }
+        logger.debug("Exchange {} has expired", exchange.getId());
+        exchange.setError(new AbortedException(new TimeoutException("Exchange " + exchange.getId() + " has expired")));
+        for (ExchangeListener l : getExchangeListeners()) {
+            l.exchangeFailed(exchange);
+        }
+        exchange.cancel();
+    }
+
+    /*
+     * Semaphore created by callers still relying on the deprecated exchange locks
+     */
+    @SuppressWarnings("deprecation")
+    private Semaphore getLegacyLock(InternalExchange exchange) {
+        return exchange.getRole() == Role.Provider ? exchange.getConsumerLock(false)
+                : exchange.getProviderLock(false);
+    }
+
+    /**
+     * Retrieve the registered exchange listeners.
+     *
+     * @return the exchange listeners
+     */
+    protected ExchangeListener[] getExchangeListeners() {
+        ListenerRegistry registry = nmr.getListenerRegistry();
+        if (registry instanceof ListenerRegistryImpl) {
+            return ((ListenerRegistryImpl) registry).getListenerArray(ExchangeListener.class);
+        }
+        List<ExchangeListener> listeners = new ArrayList<ExchangeListener>();
+        for (ExchangeListener l : registry.getListeners(ExchangeListener.class)) {
+            listeners.add(l);
+        }
+        return listeners.toArray(new ExchangeListener[listeners.size()]);
+    }
+
     /**
      * Provide access to the underlying Executor
      *
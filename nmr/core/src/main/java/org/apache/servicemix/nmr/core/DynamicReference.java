@@ -18,25 +18,20 @@
  */
 package org.apache.servicemix.nmr.core;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.w3c.dom.Document;
 
-import org.apache.servicemix.nmr.api.Endpoint;
 import org.apache.servicemix.nmr.api.EndpointRegistry;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 import org.apache.servicemix.nmr.core.util.Filter;
 
 /**
  * A dynamic reference that holds a transient list of matching endpoints.
- * This list will be refreshed when #setDirty() has been called previsouly.
+ * This list will be refreshed when the endpoint registry changes or
+ * when #setDirty() has been called previsouly.
  */
-public class DynamicReference implements CacheableReference {
+public class DynamicReference extends AbstractCacheableReference {
 
     private final Filter<InternalEndpoint> filter;
-    private transient volatile List<InternalEndpoint> matches;
-    private transient EndpointRegistry registry;
 
     public DynamicReference(Filter<InternalEndpoint> filter) {
         this.filter = filter;
@@ -47,27 +42,8 @@ public class DynamicReference implements CacheableReference {
         return null;
     }
 
-    public synchronized Iterable<InternalEndpoint> choose(EndpointRegistry registry) {
-        List<InternalEndpoint> result = matches;
-        if (result == null || this.registry != registry) {
-            result = new ArrayList<InternalEndpoint>();
-            for (Endpoint ep : registry.query(null)) {
-                InternalEndpoint iep = (InternalEndpoint) ep;
-                if (Boolean.valueOf((String) iep.getMetaData().get(Endpoint.UNTARGETABLE))) {
-                    continue;
-                }
-                if (filter.match(iep)) {
-                    result.add(iep);
-                }
-            }
-            this.registry = registry;
-            this.matches = result;
-        }
-        return result;
-    }
-
-    public synchronized void setDirty() {
-        this.matches = null;
+    protected boolean match(EndpointRegistry registry, InternalEndpoint endpoint) {
+        return filter.match(endpoint);
     }
 
     public String toString() {
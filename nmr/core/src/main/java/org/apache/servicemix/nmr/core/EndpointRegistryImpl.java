@@ -16,13 +16,18 @@
  */
 package org.apache.servicemix.nmr.core;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.w3c.dom.Document;
 
@@ -32,12 +37,19 @@ import org.apache.servicemix.nmr.api.NMR;
 import org.apache.servicemix.nmr.api.Reference;
 import org.apache.servicemix.nmr.api.ServiceMixException;
 import org.apache.servicemix.nmr.api.Wire;
+import org.apache.servicemix.nmr.api.event.EndpointBatchListener;
 import org.apache.servicemix.nmr.api.event.EndpointListener;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 import org.apache.servicemix.nmr.api.service.ServiceRegistry;
 import org.apache.servicemix.executors.ExecutorFactory;
 import org.apache.servicemix.executors.Executor;
-import org.apache.servicemix.executors.impl.ExecutorFactoryImpl;
+import org.apache.servicemix.nmr.core.executors.EndpointExecutorFactory;
+import org.apache.servicemix.nmr.core.overflow.BlockPolicy;
+import org.apache.servicemix.nmr.core.overflow.DivertPolicy;
+import org.apache.servicemix.nmr.core.overflow.FailPolicy;
+import org.apache.servicemix.nmr.core.overflow.OverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Implementation of {@link EndpointRegistry} interface that defines
@@ -51,12 +63,19 @@ public class EndpointRegistryImpl implements EndpointRegistry {
     public static final String EXECUTOR_PREFIX = "nmr.endpoint.";
     public static final String EXECUTOR_DEFAULT = "default";
 
+    private final Logger logger = LoggerFactory.getLogger(EndpointRegistryImpl.class);
+
     private NMR nmr;
     private ConcurrentMap<Endpoint, InternalEndpoint> endpoints = new ConcurrentHashMap<Endpoint, InternalEndpoint>();
     private Map<InternalEndpoint, Endpoint> wrappers = new ConcurrentHashMap<InternalEndpoint, Endpoint>();
-    private Map<CacheableReference, Boolean> references = new WeakHashMap<CacheableReference, Boolean>();
+    private final AtomicLong generation = new AtomicLong();
+    private ConcurrentMap<Map<String, ?>, CanonicalReference> canonicalReferences = new ConcurrentHashMap<Map<String, ?>, CanonicalReference>();
+    private ReferenceQueue<PropertyMatchingReference> canonicalQueue = new ReferenceQueue<PropertyMatchingReference>();
     private ServiceRegistry<InternalEndpoint> registry;
+    private PropertyIndex<InternalEndpoint> index = new PropertyIndex<InternalEndpoint>(
+            Endpoint.NAME, Endpoint.SERVICE_NAME, Endpoint.ENDPOINT_NAME, Endpoint.INTERFACE_NAME);
     private ExecutorFactory executorFactory;
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
 
     public EndpointRegistryImpl() {
     }
@@ -97,7 +116,7 @@ public class EndpointRegistryImpl implements EndpointRegistry {
             registry = new ServiceRegistryImpl<InternalEndpoint>();
         }
         if (executorFactory == null) {
-            executorFactory = new ExecutorFactoryImpl();
+            executorFactory = new EndpointExecutorFactory();
         }
     }
 
@@ -113,6 +132,7 @@ public class EndpointRegistryImpl implements EndpointRegistry {
      */
     public void register(Endpoint endpoint, Map<String, ?> properties) {
         InternalEndpointWrapper wrapper = new InternalEndpointWrapper(endpoint, properties);
+        OverflowPolicy policy = getOverflowPolicy(properties);
         if (endpoints.putIfAbsent(endpoint, wrapper) == null) {
             // Get executor
             String name = (String) properties.get(Endpoint.NAME);
@@ -126,16 +146,23 @@ public class EndpointRegistryImpl implements EndpointRegistry {
             ChannelImpl channel = new ChannelImpl(wrapper, executor, nmr);
             channel.setShouldRunSynchronously(isChannelSyncDelivery(properties));
             channel.setRunAsSubject(isRunAsSubject(properties));
+            channel.setMaxInFlight(getInt(properties, Endpoint.MAX_IN_FLIGHT));
+            channel.setMaxQueued(getInt(properties, Endpoint.MAX_QUEUED));
+            if (policy != null) {
+                channel.setOverflowPolicy(policy);
+            }
             wrapper.setChannel(channel);
             
             wrappers.put(wrapper, endpoint);
             registry.register(wrapper, properties);
-            for (EndpointListener listener : nmr.getListenerRegistry().getListeners(EndpointListener.class)) {
-                listener.endpointRegistered(wrapper);
-            }
-            synchronized (this.references) {
-                for (CacheableReference ref : references.keySet()) {
-                    ref.setDirty();
+            index.add(wrapper, properties);
+            Batch current = batch.get();
+            if (current != null) {
+                current.add(wrapper, true);
+            } else {
+                generation.incrementAndGet();
+                for (EndpointListener listener : nmr.getListenerRegistry().getListeners(EndpointListener.class)) {
+                    listener.endpointRegistered(wrapper);
                 }
             }
         }
@@ -155,6 +182,29 @@ public class EndpointRegistryImpl implements EndpointRegistry {
         return getBoolean(properties.get(Endpoint.RUN_AS_SUBJECT));
     }
 
+    /*
+     * What should the Channel do with exchanges exceeding its limits?
+     */
+    private OverflowPolicy getOverflowPolicy(Map<String, ?> properties) {
+        Object policy = properties.get(Endpoint.OVERFLOW_POLICY);
+        if (policy == null || policy instanceof OverflowPolicy) {
+            return (OverflowPolicy) policy;
+        } else if ("block".equals(policy)) {
+            return new BlockPolicy();
+        } else if ("fail".equals(policy)) {
+            return new FailPolicy();
+        } else if ("divert".equals(policy)) {
+            String overflow = (String) properties.get(Endpoint.OVERFLOW_ENDPOINT);
+            if (overflow == null) {
+                throw new ServiceMixException("Property " + Endpoint.OVERFLOW_ENDPOINT + " must be set when using "
+                        + Endpoint.OVERFLOW_POLICY + "=divert");
+            }
+            return new DivertPolicy(overflow);
+        } else {
+            throw new ServiceMixException("Unknown " + Endpoint.OVERFLOW_POLICY + ": " + policy);
+        }
+    }
+
     /**
      * Unregister a previously register enpoint.
      * In an OSGi world, this would be performed automatically by a ServiceTracker.
@@ -165,11 +215,12 @@ public class EndpointRegistryImpl implements EndpointRegistry {
         InternalEndpoint wrapper;
         if (endpoint instanceof InternalEndpoint) {
             wrapper = (InternalEndpoint) endpoint;
-            if (wrapper != null) {
-                endpoint = wrappers.remove(wrapper);
-                if (endpoint != null) {
-                    endpoints.remove(endpoint);
-                }
+            endpoint = wrappers.remove(wrapper);
+            if (endpoint != null) {
+                endpoints.remove(endpoint);
+            } else {
+                // already unregistered, closing the channel calls back here
+                wrapper = null;
             }
         } else {
             wrapper = endpoints.remove(endpoint);
@@ -179,18 +230,94 @@ public class EndpointRegistryImpl implements EndpointRegistry {
         }
         if (wrapper != null) {
             wrapper.getChannel().close();
+            index.remove(wrapper, wrapper.getMetaData());
             registry.unregister(wrapper, properties);
-            for (EndpointListener listener : nmr.getListenerRegistry().getListeners(EndpointListener.class)) {
-                listener.endpointUnregistered(wrapper);
+            // cached references must stop routing to the closed channel right away,
+            // even inside a batch
+            generation.incrementAndGet();
+            Batch current = batch.get();
+            if (current != null) {
+                current.add(wrapper, false);
+            } else {
+                for (EndpointListener listener : nmr.getListenerRegistry().getListeners(EndpointListener.class)) {
+                    listener.endpointUnregistered(wrapper);
+                }
             }
         }
-        synchronized (this.references) {
-            for (CacheableReference ref : references.keySet()) {
-                ref.setDirty();
+    }
+
+    /**
+     * Apply a set of registrations and unregistrations as a single change.
+     * Only the notifications and the invalidation of cached references for
+     * registrations are batched: each registration or unregistration made by
+     * the current thread while the callback runs still updates the registry
+     * immediately, and is visible to queries and to references resolved during
+     * the callback.  Unregistrations also invalidate cached references right
+     * away, so that exchanges are not routed to closed channels, while the
+     * generation is incremented once for all the registrations when the
+     * callback returns.
+     * {@link EndpointBatchListener}s then receive a single event, while plain
+     * {@link EndpointListener}s receive the individual events in order.
+     * Changes already applied are published even if the callback fails.
+     *
+     * @param changes the callback performing the registry changes
+     */
+    public void batch(Runnable changes) {
+        if (batch.get() != null) {
+            changes.run();
+            return;
+        }
+        Batch current = new Batch();
+        batch.set(current);
+        try {
+            changes.run();
+        } finally {
+            batch.remove();
+            publish(current);
+        }
+    }
+
+    private void publish(Batch current) {
+        if (current.changes.isEmpty()) {
+            return;
+        }
+        List<InternalEndpoint> registered = new ArrayList<InternalEndpoint>();
+        List<InternalEndpoint> unregistered = new ArrayList<InternalEndpoint>();
+        for (Change change : current.changes) {
+            (change.registered ? registered : unregistered).add(change.endpoint);
+        }
+        if (!registered.isEmpty()) {
+            generation.incrementAndGet();
+        }
+        registered = Collections.unmodifiableList(registered);
+        unregistered = Collections.unmodifiableList(unregistered);
+        for (EndpointListener listener : nmr.getListenerRegistry().getListeners(EndpointListener.class)) {
+            if (listener instanceof EndpointBatchListener) {
+                ((EndpointBatchListener) listener).endpointsChanged(registered, unregistered);
+            } else {
+                for (Change change : current.changes) {
+                    if (change.registered) {
+                        listener.endpointRegistered(change.endpoint);
+                    } else {
+                        listener.endpointUnregistered(change.endpoint);
+                    }
+                }
             }
         }
     }
 
+    /**
+     * Retrieve the current generation of this registry.
+     * The generation is incremented each time an endpoint is registered
+     * or unregistered, so that {@link CacheableReference}s can detect that
+     * their cached list of matching endpoints is stale.
+     *
+     * @return the current generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
     /**
      * Get a set of registered services.
      *
@@ -254,14 +381,47 @@ public class EndpointRegistryImpl implements EndpointRegistry {
      * This could return actual endpoints, or a dynamic proxy to a number of endpoints
      */
     public Reference lookup(Map<String, ?> props) {
-        final Map<String, ?> properties = handleWiring(props);
-        CacheableReference ref = new PropertyMatchingReference(properties);
-        synchronized (this.references) {
-            this.references.put(ref, true);
+        Map<String, ?> properties = handleWiring(props);
+        if (properties == null) {
+            properties = Collections.emptyMap();
+        }
+        purgeCanonicalReferences();
+        // Fast path: the reference has already been created and is still in use
+        CanonicalReference canonical = canonicalReferences.get(properties);
+        PropertyMatchingReference ref = canonical != null ? canonical.get() : null;
+        if (ref != null) {
+            return ref;
+        }
+        // Use a private copy of the properties as the caller may modify its map
+        Map<String, ?> key = Collections.unmodifiableMap(new HashMap<String, Object>(properties));
+        ref = new PropertyMatchingReference(key);
+        CanonicalReference newCanonical = new CanonicalReference(key, ref, canonicalQueue);
+        while (true) {
+            canonical = canonicalReferences.putIfAbsent(key, newCanonical);
+            if (canonical == null) {
+                break;
+            }
+            PropertyMatchingReference existing = canonical.get();
+            if (existing != null) {
+                return existing;
+            }
+            if (canonicalReferences.replace(key, canonical, newCanonical)) {
+                break;
+            }
         }
         return ref;
     }
 
+    /*
+     * Remove the canonical references that have been garbage collected
+     */
+    private void purgeCanonicalReferences() {
+        CanonicalReference ref;
+        while ((ref = (CanonicalReference) canonicalQueue.poll()) != null) {
+            canonicalReferences.remove(ref.key, ref);
+        }
+    }
+
     /**
      * This methods creates a Reference from its xml representation.
      *
@@ -284,11 +444,7 @@ public class EndpointRegistryImpl implements EndpointRegistry {
     public Reference lookup(final String filter) {
         try {
             try {
-                FilterMatchingReference ref = new FilterMatchingReference(filter);
-                synchronized (this.references) {
-                    this.references.put(ref, true);
-                }
-                return ref;
+                return new FilterMatchingReference(filter);
             } catch (org.osgi.framework.InvalidSyntaxException e) {
                 throw new ServiceMixException("Invalid filter syntax: " + e.getMessage());
             }
@@ -302,8 +458,15 @@ public class EndpointRegistryImpl implements EndpointRegistry {
         if (properties == null) {
             endpoints.addAll(registry.getServices());
         } else {
-            for (InternalEndpoint e : registry.getServices()) {
+            Collection<InternalEndpoint> candidates = index.candidates(properties);
+            if (candidates == null) {
+                candidates = registry.getServices();
+            }
+            for (InternalEndpoint e : candidates) {
                 Map<String, ?> epProps = registry.getProperties(e);
+                if (epProps == null) {
+                    continue;
+                }
                 boolean match = true;
                 for (String name : properties.keySet()) {
                     if (!properties.get(name).equals(epProps.get(name))) {
@@ -319,6 +482,39 @@ public class EndpointRegistryImpl implements EndpointRegistry {
         return endpoints;
     }
 
+    /**
+     * A weak reference on a shared {@link PropertyMatchingReference} so that
+     * repeated lookups with the same properties reuse the same reference (and
+     * its cache of matching endpoints) as long as it is in use.
+     */
+    private static class CanonicalReference extends WeakReference<PropertyMatchingReference> {
+
+        private final Map<String, ?> key;
+
+        public CanonicalReference(Map<String, ?> key, PropertyMatchingReference ref,
+                                  ReferenceQueue<PropertyMatchingReference> queue) {
+            super(ref, queue);
+            this.key = key;
+        }
+    }
+
+    /*
+     * Invalid values are ignored, so that they do not prevent the endpoint from being registered
+     */
+    private int getInt(Map<String, ?> properties, String name) {
+        Object o = properties.get(name);
+        if (o instanceof Number) {
+            return ((Number) o).intValue();
+        } else if (o instanceof String) {
+            try {
+                return Integer.parseInt(((String) o).trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid value for endpoint property {}: {}", name, o);
+            }
+        }
+        return 0;
+    }
+
     private static boolean getBoolean(Object o) {
         if (o instanceof String) {
             return Boolean.valueOf(o.toString());
@@ -328,4 +524,26 @@ public class EndpointRegistryImpl implements EndpointRegistry {
             return false;
         }
     }
+
+    /*
+     * Changes recorded by a thread inside a batch, in the order they were made
+     */
+    private static class Batch {
+        final List<Change> changes = new ArrayList<Change>();
+
+        void add(InternalEndpoint endpoint, boolean registered) {
+            changes.add(new Change(endpoint, registered));
+        }
+    }
+
+    private static class Change {
+        final InternalEndpoint endpoint;
+        final boolean registered;
+
+        Change(InternalEndpoint endpoint, boolean registered) {
+            this.endpoint = endpoint;
+            this.registered = registered;
+        }
+    }
+
 }
@@ -0,0 +1,464 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.xml.namespace.QName;
+
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.Message;
+import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.Reference;
+import org.apache.servicemix.nmr.api.Role;
+import org.apache.servicemix.nmr.api.Status;
+import org.apache.servicemix.nmr.core.util.BufferPool;
+import org.apache.servicemix.nmr.core.util.CachedInputStream;
+import org.apache.servicemix.nmr.core.util.CachedOutputStream;
+import org.apache.servicemix.nmr.core.util.CachedSource;
+import org.apache.servicemix.nmr.core.util.PropertyMap;
+import org.apache.servicemix.nmr.core.util.StringSource;
+
+/**
+ * A compact binary format for exchanges and messages, used instead of plain
+ * java serialization when exchanges are persisted or sent to another node.
+ *
+ * The data starts with a magic number, the kind of object and the version of
+ * the format.  Bodies, properties, headers and attachments are written with a
+ * type tag: strings, {@link StringSource}s, byte arrays, primitive wrappers,
+ * {@link QName}s and re-readable streams and sources have a dedicated encoding,
+ * other values are written using java serialization and must be serializable.
+ * The content of the messages is made re-readable before being written.
+ *
+ * @version $Revision: $
+ * @since 4.0
+ */
+public final class ExchangeCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x4E4D;
+    private static final byte KIND_EXCHANGE = 'X';
+    private static final byte KIND_MESSAGE = 'M';
+
+    private static final byte T_NULL = 0;
+    private static final byte T_STRING = 1;
+    private static final byte T_STRING_SOURCE = 2;
+    private static final byte T_BYTES = 3;
+    private static final byte T_INTEGER = 4;
+    private static final byte T_LONG = 5;
+    private static final byte T_BOOLEAN = 6;
+    private static final byte T_DOUBLE = 7;
+    private static final byte T_FLOAT = 8;
+    private static final byte T_SHORT = 9;
+    private static final byte T_BYTE = 10;
+    private static final byte T_CHARACTER = 11;
+    private static final byte T_QNAME = 12;
+    private static final byte T_STREAM = 13;
+    private static final byte T_CACHED_SOURCE = 14;
+    private static final byte T_SERIALIZED = 15;
+
+    private ExchangeCodec() {
+    }
+
+    /**
+     * Check if the given data has been produced by this codec.
+     *
+     * @param data the data to check
+     * @return <code>true</code> if the data starts with the magic number of this codec
+     */
+    public static boolean isEncoded(byte[] data) {
+        return data != null && data.length >= 4
+                && ((data[0] & 0xFF) << 8 | (data[1] & 0xFF)) == MAGIC;
+    }
+
+    public static byte[] encode(Exchange exchange) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.CHUNK_SIZE);
+        DataOutputStream out = new DataOutputStream(baos);
+        writeExchange(exchange, out);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    public static Exchange decodeExchange(byte[] data) throws IOException, ClassNotFoundException {
+        return readExchange(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    public static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.CHUNK_SIZE);
+        DataOutputStream out = new DataOutputStream(baos);
+        writeMessage(message, out);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    public static Message decodeMessage(byte[] data) throws IOException, ClassNotFoundException {
+        return readMessage(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    public static void writeExchange(Exchange exchange, DataOutputStream out) throws IOException {
+        exchange.ensureReReadable();
+        writeHeader(out, KIND_EXCHANGE);
+        writeString(out, exchange.getId());
+        writeString(out, exchange.getPattern().name());
+        writeString(out, exchange.getStatus() != null ? exchange.getStatus().name() : null);
+        writeString(out, exchange.getRole() != null ? exchange.getRole().name() : null);
+        writeValue(out, exchange.getTarget());
+        writeValue(out, exchange.getOperation());
+        writeMap(out, exchange.getProperties());
+        writeMessageContent(out, exchange.getIn(false));
+        writeMessageContent(out, exchange.getOut(false));
+        writeMessageContent(out, exchange.getFault(false));
+        writeValue(out, exchange.getError());
+    }
+
+    public static Exchange readExchange(DataInputStream in) throws IOException, ClassNotFoundException {
+        readHeader(in, KIND_EXCHANGE);
+        ExchangeImpl exchange = new ExchangeImpl(readString(in), Pattern.valueOf(readString(in)));
+        String status = readString(in);
+        String role = readString(in);
+        exchange.setTarget((Reference) readValue(in));
+        exchange.setOperation((QName) readValue(in));
+        exchange.setProperties(readMap(in));
+        exchange.setIn(readMessageContent(in));
+        exchange.setOut(readMessageContent(in));
+        exchange.setFault(readMessageContent(in));
+        Exception error = (Exception) readValue(in);
+        if (error != null) {
+            exchange.setError(error);
+        }
+        exchange.setStatus(status != null ? Status.valueOf(status) : null);
+        exchange.setRole(role != null ? Role.valueOf(role) : null);
+        return exchange;
+    }
+
+    public static void writeMessage(Message message, DataOutputStream out) throws IOException {
+        writeHeader(out, KIND_MESSAGE);
+        writeMessageContent(out, message);
+    }
+
+    public static Message readMessage(DataInputStream in) throws IOException, ClassNotFoundException {
+        readHeader(in, KIND_MESSAGE);
+        return readMessageContent(in);
+    }
+
+    private static void writeHeader(DataOutputStream out, byte kind) throws IOException {
+        out.writeShort(MAGIC);
+        out.writeByte(kind);
+        out.writeByte(VERSION);
+    }
+
+    private static void readHeader(DataInputStream in, byte kind) throws IOException {
+        if (in.readUnsignedShort() != MAGIC || in.readByte() != kind) {
+            throw new StreamCorruptedException("Invalid data");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported version: " + version);
+        }
+    }
+
+    private static void writeMessageContent(DataOutputStream out, Message message) throws IOException {
+        out.writeBoolean(message != null);
+        if (message != null) {
+            message.ensureReReadable();
+            writeValue(out, message.getBody());
+            writeString(out, message.getContentType());
+            writeString(out, message.getContentEncoding());
+            writeValue(out, message.getSecuritySubject());
+            writeMap(out, message.getHeaders());
+            writeMap(out, message.getAttachments());
+        }
+    }
+
+    private static Message readMessageContent(DataInputStream in) throws IOException, ClassNotFoundException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        MessageImpl message = new MessageImpl();
+        message.setBody(readValue(in));
+        message.setContentType(readString(in));
+        message.setContentEncoding(readString(in));
+        message.setSecuritySubject((Subject) readValue(in));
+        message.setHeaders(readMap(in));
+        Map<String, Object> attachments = readMap(in);
+        if (attachments != null) {
+            for (Map.Entry<String, Object> e : attachments.entrySet()) {
+                message.addAttachment(e.getKey(), e.getValue());
+            }
+        }
+        return message;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, Object> map) throws IOException {
+        int size = map != null ? map.size() : 0;
+        writeVarInt(out, size);
+        if (size > 0) {
+            for (Map.Entry<String, Object> e : map.entrySet()) {
+                writeString(out, e.getKey());
+                writeValue(out, e.getValue());
+            }
+        }
+    }
+
+    private static Map<String, Object> readMap(DataInputStream in) throws IOException, ClassNotFoundException {
+        int size = readVarInt(in);
+        if (size == 0) {
+            return null;
+        }
+        PropertyMap map = new PropertyMap();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(T_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(T_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof StringSource) {
+            StringSource src = (StringSource) value;
+            out.writeByte(T_STRING_SOURCE);
+            writeString(out, src.getText());
+            writeString(out, src.getSystemId());
+            writeString(out, src.getEncoding());
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(T_BYTES);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Integer) {
+            out.writeByte(T_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(T_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(T_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(T_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(T_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(T_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(T_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(T_CHARACTER);
+            out.writeChar((Character) value);
+        } else if (value instanceof QName) {
+            QName name = (QName) value;
+            out.writeByte(T_QNAME);
+            writeString(out, name.getNamespaceURI());
+            writeString(out, name.getLocalPart());
+            writeString(out, name.getPrefix());
+        } else if (value instanceof CachedInputStream) {
+            CachedInputStream is = (CachedInputStream) value;
+            out.writeByte(T_STREAM);
+            writeContent(out, is.newInputStream(), is.length());
+        } else if (value instanceof ByteArrayInputStream) {
+            ByteArrayInputStream is = (ByteArrayInputStream) value;
+            out.writeByte(T_STREAM);
+            is.mark(0);
+            try {
+                writeContent(out, is, is.available());
+            } finally {
+                is.reset();
+            }
+        } else if (value instanceof CachedSource) {
+            CachedSource src = (CachedSource) value;
+            out.writeByte(T_CACHED_SOURCE);
+            writeString(out, src.getSystemId());
+            writeContent(out, src.getInputStream(), src.getContent().length());
+        } else if (value instanceof Serializable) {
+            out.writeByte(T_SERIALIZED);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(value);
+            oos.close();
+            writeVarInt(out, baos.size());
+            baos.writeTo(out);
+        } else {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        switch (type) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return readString(in);
+            case T_STRING_SOURCE:
+                String text = readString(in);
+                String systemId = readString(in);
+                return new StringSource(text, systemId, readString(in));
+            case T_BYTES:
+                return readBytes(in);
+            case T_INTEGER:
+                return in.readInt();
+            case T_LONG:
+                return in.readLong();
+            case T_BOOLEAN:
+                return in.readBoolean();
+            case T_DOUBLE:
+                return in.readDouble();
+            case T_FLOAT:
+                return in.readFloat();
+            case T_SHORT:
+                return in.readShort();
+            case T_BYTE:
+                return in.readByte();
+            case T_CHARACTER:
+                return in.readChar();
+            case T_QNAME:
+                String ns = readString(in);
+                String local = readString(in);
+                return new QName(ns, local, readString(in));
+            case T_STREAM:
+                return readContent(in);
+            case T_CACHED_SOURCE:
+                String id = readString(in);
+                return new CachedSource(readContent(in), id);
+            case T_SERIALIZED:
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+                try {
+                    return ois.readObject();
+                } finally {
+                    ois.close();
+                }
+            default:
+                throw new StreamCorruptedException("Unknown type: " + type);
+        }
+    }
+
+    private static void writeContent(DataOutputStream out, InputStream is, long length) throws IOException {
+        writeVarLong(out, length);
+        byte[] buffer = BufferPool.acquire();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int nb = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (nb < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                out.write(buffer, 0, nb);
+                remaining -= nb;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private static CachedInputStream readContent(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        CachedOutputStream cache = new CachedOutputStream();
+        byte[] buffer = BufferPool.acquire();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int nb = (int) Math.min(buffer.length, remaining);
+                in.readFully(buffer, 0, nb);
+                cache.write(buffer, 0, nb);
+                remaining -= nb;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return cache.getInputStream();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarInt(out, bytes.length + 1);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Invalid length: " + value);
+        }
+        return (int) value;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Invalid length");
+    }
+}
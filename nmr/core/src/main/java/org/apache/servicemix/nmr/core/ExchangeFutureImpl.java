@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.servicemix.nmr.api.AbortedException;
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.ExchangeCallback;
+import org.apache.servicemix.nmr.api.ExchangeFuture;
+import org.apache.servicemix.nmr.api.Role;
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ExchangeFuture} implementation returned by {@link ChannelImpl#sendAsync(Exchange)}.
+ *
+ * The future is registered on the exchange as its completion, and is run
+ * by the thread delivering the exchange back to the consumer.
+ */
+public class ExchangeFutureImpl implements ExchangeFuture, Runnable {
+
+    private final Logger logger = LoggerFactory.getLogger(ExchangeFutureImpl.class);
+
+    private final ChannelImpl channel;
+    private final InternalExchange exchange;
+    private final Role role;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private List<ExchangeCallback> callbacks = new ArrayList<ExchangeCallback>();
+    private boolean cancelled;
+
+    public ExchangeFutureImpl(ChannelImpl channel, InternalExchange exchange, Role role) {
+        this.channel = channel;
+        this.exchange = exchange;
+        this.role = role;
+    }
+
+    public Exchange getExchange() {
+        return exchange;
+    }
+
+    public void addCallback(ExchangeCallback callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        invoke(callback);
+    }
+
+    /**
+     * The exchange has come back to the consumer
+     */
+    public void run() {
+        exchange.setRole(role);
+        complete(false);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!exchange.abortSync(role)) {
+            return false;
+        }
+        channel.abort(exchange, new AbortedException());
+        complete(true);
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    public Exchange get() throws InterruptedException {
+        latch.await();
+        return result();
+    }
+
+    public Exchange get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Exchange result() {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+        return exchange;
+    }
+
+    private void complete(boolean cancelled) {
+        List<ExchangeCallback> toInvoke;
+        synchronized (this) {
+            this.cancelled = cancelled;
+            toInvoke = callbacks;
+            callbacks = null;
+        }
+        latch.countDown();
+        for (ExchangeCallback callback : toInvoke) {
+            invoke(callback);
+        }
+    }
+
+    private void invoke(ExchangeCallback callback) {
+        try {
+            if (isCancelled()) {
+                callback.exchangeAborted(exchange);
+            } else {
+                callback.exchangeCompleted(exchange);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Error calling callback for exchange {}", exchange, e);
+        }
+    }
+
+}
@@ -17,22 +17,28 @@
 package org.apache.servicemix.nmr.core;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.xml.namespace.QName;
 
 import org.apache.servicemix.nmr.api.Exchange;
 import org.apache.servicemix.nmr.api.Message;
 import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.PropertyKey;
 import org.apache.servicemix.nmr.api.Reference;
 import org.apache.servicemix.nmr.api.Role;
 import org.apache.servicemix.nmr.api.Status;
 import org.apache.servicemix.nmr.api.Type;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.apache.servicemix.nmr.api.internal.Timeout;
+import org.apache.servicemix.nmr.core.converter.ConverterRegistry;
 import org.apache.servicemix.nmr.core.util.ExchangeUtils;
+import org.apache.servicemix.nmr.core.util.PropertyMap;
 import org.apache.servicemix.nmr.core.util.UuidGenerator;
 
 /**
@@ -49,6 +55,7 @@ public class ExchangeImpl implements InternalExchange {
     private static final long serialVersionUID = 5453128544624717320L;
 
     private String id;
+    private transient long idSequence;
     private Status status;
     private Role role;
     private Pattern pattern;
@@ -64,7 +71,19 @@ public class ExchangeImpl implements InternalExchange {
     private transient Semaphore consumerLock;
     private transient Semaphore providerLock;
 
-    private static transient Converter converter;
+    private transient volatile Timeout expiry;
+    private transient volatile int syncState;
+    private transient volatile Object syncWaiter;
+
+    private static volatile Converter converter;
+
+    private static final int SYNC_NONE = 0;
+    private static final int SYNC_CONSUMER = 1;
+    private static final int SYNC_PROVIDER = 2;
+    private static final int SYNC_DONE = 3;
+
+    private static final AtomicIntegerFieldUpdater<ExchangeImpl> SYNC_STATE
+            = AtomicIntegerFieldUpdater.newUpdater(ExchangeImpl.class, "syncState");
 
     /**
      * Creates and exchange of the given pattern
@@ -72,7 +91,7 @@ public class ExchangeImpl implements InternalExchange {
      * @param pattern the pattern of this exchange
      */
     public ExchangeImpl(Pattern pattern) {
-        this.id = UuidGenerator.getUUID();
+        this.idSequence = UuidGenerator.getInstance().nextSequence();
         this.status = Status.Active;
         this.role = Role.Consumer;
         this.pattern = pattern;
@@ -82,11 +101,28 @@ public class ExchangeImpl implements InternalExchange {
     }
 
     /**
-     * The unique id of the exchange
+     * Creates an exchange with an existing id, used when decoding exchanges
+     *
+     * @param id the id of the exchange
+     * @param pattern the pattern of this exchange
+     */
+    ExchangeImpl(String id, Pattern pattern) {
+        this.id = id;
+        this.status = Status.Active;
+        this.role = Role.Consumer;
+        this.pattern = pattern;
+    }
+
+    /**
+     * The unique id of the exchange.
+     * The id is only rendered the first time it is requested.
      *
      * @return the unique id
      */
     public String getId() {
+        if (id == null && idSequence != 0) {
+            id = UuidGenerator.getInstance().toId(idSequence);
+        }
         return id;
     }
 
@@ -200,6 +236,21 @@ public class ExchangeImpl implements InternalExchange {
         return convert(properties.get(type.getName()), type);
     }
 
+    /**
+     * Get a property using its typed key.
+     *
+     * @param key the key of the property
+     * @return the value of the property or <code>null</code> if none has been set
+     */
+    public <T> T getProperty(PropertyKey<T> key) {
+        if (properties == null) {
+            return null;
+        }
+        Object value = properties instanceof PropertyMap
+                ? ((PropertyMap) properties).getValue(key) : properties.get(key.getName());
+        return value != null ? convert(value, key.getType()) : null;
+    }
+
     /**
      * Set a property on this exchange.
      * Giving <code>null</code> will actually remove the property for the list.
@@ -209,18 +260,29 @@ public class ExchangeImpl implements InternalExchange {
      */
     public void setProperty(String name, Object value) {
         if (properties == null) {
-            properties = new HashMap<String, Object>();
+            properties = new PropertyMap();
         }
         properties.put(name, value);
     }
 
     public <T> void setProperty(Class<T> type, T value) {
         if (properties == null) {
-            properties = new HashMap<String, Object>();
+            properties = new PropertyMap();
         }
         properties.put(type.getName(), convert(value, type));
     }
 
+    public <T> void setProperty(PropertyKey<T> key, T value) {
+        if (properties == null) {
+            properties = new PropertyMap();
+        }
+        if (properties instanceof PropertyMap) {
+            ((PropertyMap) properties).putValue(key, value);
+        } else {
+            properties.put(key.getName(), value);
+        }
+    }
+
     /**
      * Remove the given property and returns its value.
      *
@@ -244,9 +306,24 @@ public class ExchangeImpl implements InternalExchange {
         return convert(removeProperty(type.getName()), type);
     }
 
+    /**
+     * Remove the property with the given key
+     *
+     * @param key the key of the property
+     * @return the previous value
+     */
+    public <T> T removeProperty(PropertyKey<T> key) {
+        if (properties == null) {
+            return null;
+        }
+        Object value = properties instanceof PropertyMap
+                ? ((PropertyMap) properties).removeValue(key) : properties.remove(key.getName());
+        return value != null ? convert(value, key.getType()) : null;
+    }
+
     public Map<String, Object> getProperties() {
         if (properties == null) {
-            properties = new HashMap<String, Object>();
+            properties = new PropertyMap();
         }
         return properties;
     }
@@ -395,7 +472,11 @@ public class ExchangeImpl implements InternalExchange {
             this.fault = exchange.getFault().copy();
         }
         this.pattern = exchange.getPattern();
-        this.properties = new HashMap<String, Object>(exchange.getProperties());
+        Map<String, Object> props = exchange instanceof ExchangeImpl
+                ? ((ExchangeImpl) exchange).properties : exchange.getProperties();
+        // the map is shared with the other exchange until one of them is modified,
+        // so the other exchange must not be modified concurrently
+        this.properties = props != null ? new PropertyMap(props) : null;
         this.role = exchange.getRole();
         this.target = exchange.getTarget();
     }
@@ -406,12 +487,42 @@ public class ExchangeImpl implements InternalExchange {
         return copy;
     }
 
+    /**
+     * Creates a snapshot of this exchange that can be read by another thread
+     * while this exchange is still being processed.  Unlike {@link #copy()},
+     * the snapshot keeps the id, status, operation and endpoints of the exchange.
+     * Message contents are shared with the snapshot: if the snapshot needs to
+     * read them, streams are made re-readable first.
+     *
+     * @param content <code>true</code> if the message contents will be read
+     * @return a snapshot of this exchange
+     */
+    ExchangeImpl snapshot(boolean content) {
+        if (content) {
+            ensureReReadable();
+        }
+        ExchangeImpl copy = new ExchangeImpl();
+        copy.copyFrom(this);
+        copy.id = id;
+        copy.idSequence = idSequence;
+        copy.status = status;
+        copy.operation = operation;
+        copy.source = source;
+        copy.destination = destination;
+        return copy;
+    }
+
     private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        // property maps are serialized as hash maps
+        if (properties != null) {
+            properties = new PropertyMap(properties);
+        }
     }
 
     private void writeObject(java.io.ObjectOutputStream out) throws IOException {
         ensureReReadable();
+        getId();
         out.defaultWriteObject();
     }
 
@@ -439,6 +550,92 @@ public class ExchangeImpl implements InternalExchange {
         this.destination = destination;
     }
 
+    public Timeout getExpiry() {
+        return expiry;
+    }
+
+    public void setExpiry(Timeout expiry) {
+        this.expiry = expiry;
+    }
+
+    public void beginSync(Role role) {
+        syncWaiter = Thread.currentThread();
+        syncState = role == Role.Consumer ? SYNC_CONSUMER : SYNC_PROVIDER;
+    }
+
+    public void beginAsync(Role role, Runnable completion) {
+        syncWaiter = completion;
+        syncState = role == Role.Consumer ? SYNC_CONSUMER : SYNC_PROVIDER;
+    }
+
+    public boolean abortSync(Role role) {
+        int expected = role == Role.Consumer ? SYNC_CONSUMER : SYNC_PROVIDER;
+        if (SYNC_STATE.compareAndSet(this, expected, SYNC_NONE)) {
+            syncWaiter = null;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean awaitSync(long timeout) throws InterruptedException {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        while (true) {
+            int state = syncState;
+            if (state == SYNC_DONE || state == SYNC_NONE) {
+                endSync();
+                return true;
+            }
+            if (Thread.interrupted()) {
+                if (SYNC_STATE.compareAndSet(this, state, SYNC_NONE)) {
+                    syncWaiter = null;
+                    throw new InterruptedException();
+                }
+                // the exchange came back in the mean time
+                Thread.currentThread().interrupt();
+                continue;
+            }
+            if (timeout > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    if (SYNC_STATE.compareAndSet(this, state, SYNC_NONE)) {
+                        syncWaiter = null;
+                        return false;
+                    }
+                    continue;
+                }
+                LockSupport.parkNanos(remaining);
+            } else {
+                LockSupport.park();
+            }
+        }
+    }
+
+    public boolean isSyncPending(Role role) {
+        return syncState == (role == Role.Consumer ? SYNC_CONSUMER : SYNC_PROVIDER);
+    }
+
+    public boolean completeSync(Role role) {
+        int expected = role == Role.Consumer ? SYNC_CONSUMER : SYNC_PROVIDER;
+        if (SYNC_STATE.compareAndSet(this, expected, SYNC_DONE)) {
+            Object waiter = syncWaiter;
+            if (waiter instanceof Thread) {
+                LockSupport.unpark((Thread) waiter);
+            } else {
+                // nobody will wait for the exchange, so reset the state
+                // before running the completion, which may send it again
+                endSync();
+                ((Runnable) waiter).run();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void endSync() {
+        syncWaiter = null;
+        syncState = SYNC_NONE;
+    }
+
     public Semaphore getConsumerLock(boolean create) {
         if (create) {
             consumerLock = new Semaphore(0);
@@ -464,11 +661,9 @@ public class ExchangeImpl implements InternalExchange {
         if (converter == null) {
             synchronized (ExchangeImpl.class) {
                 if (converter == null) {
-                    try {
-                        converter = new CamelConverter();
-                    } catch (Throwable t) {
-                        converter = new DummyConverter();
-                    }
+                    ConverterRegistry registry = new ConverterRegistry();
+                    registry.loadIndex(ExchangeImpl.class.getClassLoader());
+                    converter = new NativeConverter(registry);
                 }
             }
         }
@@ -478,6 +673,11 @@ public class ExchangeImpl implements InternalExchange {
     public void cancel() {
         cancel(consumerLock);
         cancel(providerLock);
+        int state = syncState;
+        if (state == SYNC_CONSUMER || state == SYNC_PROVIDER) {
+            setStatus(Status.Error);
+            completeSync(state == SYNC_CONSUMER ? Role.Consumer : Role.Provider);
+        }
     }
     
     private void cancel(Semaphore lock) {
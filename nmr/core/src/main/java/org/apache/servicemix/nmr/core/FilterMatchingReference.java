@@ -16,14 +16,11 @@
  */
 package org.apache.servicemix.nmr.core;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.io.Serializable;
 
 import org.w3c.dom.Document;
 
-import org.apache.servicemix.nmr.api.Endpoint;
 import org.apache.servicemix.nmr.api.EndpointRegistry;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 import org.apache.servicemix.nmr.core.util.MapToDictionary;
@@ -33,37 +30,16 @@ import org.osgi.framework.InvalidSyntaxException;
 /**
  * A Reference using an LDAP filter for matching endpoints
  */
-public class FilterMatchingReference implements CacheableReference, Serializable {
+public class FilterMatchingReference extends AbstractCacheableReference implements Serializable {
 
     private final String filter;
     private transient volatile Filter osgiFilter;
-    private transient volatile List<InternalEndpoint> matches;
-    private transient EndpointRegistry registry;
 
     public FilterMatchingReference(String filter) throws InvalidSyntaxException {
         this.filter = filter;
         this.osgiFilter = org.osgi.framework.FrameworkUtil.createFilter(filter);
     }
 
-    public Iterable<InternalEndpoint> choose(EndpointRegistry registry) {
-        List<InternalEndpoint> result = matches;
-        if (result == null || this.registry != registry) {
-            result = new ArrayList<InternalEndpoint>();
-            for (Endpoint ep : registry.query(null)) {
-                InternalEndpoint iep = (InternalEndpoint) ep;
-                if (Boolean.valueOf((String) iep.getMetaData().get(Endpoint.UNTARGETABLE))) {
-                    continue;
-                }
-                if (match(registry, iep)) {
-                    result.add(iep);
-                }
-            }
-            this.registry = registry;
-            this.matches = result;
-        }
-        return result;
-    }
-
     protected boolean match(EndpointRegistry registry, InternalEndpoint endpoint) {
         Map<String, ?> epProps = registry.getProperties(endpoint);
         if (osgiFilter == null) {
@@ -85,10 +61,6 @@ public class FilterMatchingReference implements CacheableReference, Serializable
         return null;
     }
 
-    public void setDirty() {
-        matches = null;
-    }
-
     @Override
     public String toString() {
         return "FilterMatchingReference[" + filter + "]";
@@ -17,15 +17,27 @@
 package org.apache.servicemix.nmr.core;
 
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.security.auth.Subject;
+import javax.xml.namespace.QName;
 
 import org.apache.servicemix.nmr.api.EndpointRegistry;
 import org.apache.servicemix.nmr.api.Role;
 import org.apache.servicemix.nmr.api.ServiceMixException;
 import org.apache.servicemix.nmr.api.Endpoint;
+import org.apache.servicemix.nmr.api.internal.EndpointFlow;
+import org.apache.servicemix.nmr.api.internal.EndpointSelector;
 import org.apache.servicemix.nmr.api.internal.Flow;
 import org.apache.servicemix.nmr.api.internal.FlowRegistry;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
@@ -33,6 +45,9 @@ import org.apache.servicemix.nmr.api.internal.InternalExchange;
 import org.apache.servicemix.nmr.api.internal.InternalReference;
 import org.apache.servicemix.nmr.api.security.AuthorizationService;
 import org.apache.servicemix.nmr.api.security.GroupPrincipal;
+import org.apache.servicemix.nmr.core.security.DefaultAuthorizationService;
+import org.apache.servicemix.nmr.core.selector.SelectingReference;
+import org.apache.servicemix.nmr.core.util.BoundedCache;
 
 /**
  * The default implementation of {@link FlowRegistry}.
@@ -44,6 +59,13 @@ public class FlowRegistryImpl extends ServiceRegistryImpl<Flow> implements FlowR
 
     private EndpointRegistry registry;
     private AuthorizationService authorizationService;
+    private boolean cacheDecisions;
+    private final BoundedCache<Decision, Boolean> decisions = new BoundedCache<Decision, Boolean>(1024);
+    private EndpointSelector defaultSelector;
+    private Map<String, EndpointSelector> selectors = new ConcurrentHashMap<String, EndpointSelector>();
+    private final List<Flow> orderedFlows = new ArrayList<Flow>();
+    private final AtomicReference<DispatchTable> table
+            = new AtomicReference<DispatchTable>(new DispatchTable(new Flow[0], -1));
 
     public EndpointRegistry getRegistry() {
         return registry;
@@ -59,15 +81,94 @@ public class FlowRegistryImpl extends ServiceRegistryImpl<Flow> implements FlowR
 
     public void setAuthorizationService(AuthorizationService authorizationService) {
         this.authorizationService = authorizationService;
+        this.cacheDecisions = hasStableAcls(authorizationService);
+        decisions.clear();
     }
 
-    public boolean canDispatch(InternalExchange exchange, InternalEndpoint endpoint) {
-        for (Flow flow : getServices()) {
-            if (flow.canDispatch(exchange, endpoint)) {
-                return true;
+    /*
+     * Decisions are cached on the identity of the ACL set, which is only
+     * stable for the getAcls() implementation of DefaultAuthorizationService.
+     */
+    private static boolean hasStableAcls(AuthorizationService authorizationService) {
+        if (!(authorizationService instanceof DefaultAuthorizationService)) {
+            return false;
+        }
+        try {
+            return authorizationService.getClass().getMethod("getAcls", String.class, QName.class)
+                    .getDeclaringClass() == DefaultAuthorizationService.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    public EndpointSelector getDefaultSelector() {
+        return defaultSelector;
+    }
+
+    /**
+     * Set the selector used to choose between several matching endpoints
+     * when no specific selector has been configured for the target.
+     * If not set, the first matching endpoint will be used.
+     *
+     * @param defaultSelector the default selector
+     */
+    public void setDefaultSelector(EndpointSelector defaultSelector) {
+        this.defaultSelector = defaultSelector;
+    }
+
+    public Map<String, EndpointSelector> getSelectors() {
+        return selectors;
+    }
+
+    /**
+     * Set the selectors to use, keyed by service name.
+     *
+     * @param selectors the selectors to use for a given service name
+     */
+    public void setSelectors(Map<String, EndpointSelector> selectors) {
+        this.selectors = new ConcurrentHashMap<String, EndpointSelector>(selectors);
+    }
+
+    /**
+     * Configure the selector used for the given service name.
+     *
+     * @param serviceName the service name
+     * @param selector the selector to use or <code>null</code> to remove it
+     */
+    public void setSelector(String serviceName, EndpointSelector selector) {
+        if (selector != null) {
+            selectors.put(serviceName, selector);
+        } else {
+            selectors.remove(serviceName);
+        }
+    }
+
+    @Override
+    public void register(Flow flow, Map<String, ?> properties) {
+        super.register(flow, properties);
+        synchronized (orderedFlows) {
+            if (getProperties(flow) != null && !orderedFlows.contains(flow)) {
+                orderedFlows.add(flow);
+                table.set(new DispatchTable(orderedFlows.toArray(new Flow[orderedFlows.size()]), -1));
             }
         }
-        return false;
+    }
+
+    @Override
+    public void unregister(Flow flow, Map<String, ?> properties) {
+        try {
+            super.unregister(flow, properties);
+        } finally {
+            synchronized (orderedFlows) {
+                if (orderedFlows.remove(flow)) {
+                    table.set(new DispatchTable(orderedFlows.toArray(new Flow[orderedFlows.size()]), -1));
+                }
+            }
+        }
+    }
+
+    public boolean canDispatch(InternalExchange exchange, InternalEndpoint endpoint) {
+        return getFlow(exchange, endpoint) != null;
     }
 
     public void setNonOsgiFlows(Collection<Flow> flows) {
@@ -82,50 +183,7 @@ public class FlowRegistryImpl extends ServiceRegistryImpl<Flow> implements FlowR
                 InternalReference target = (InternalReference) exchange.getTarget();
                 // TODO: possible NPE on target should be avoided
                 assert target != null;
-                boolean match = false;
-                boolean securityMatch = false;
-                for (InternalEndpoint endpoint : target.choose(registry)) {
-                    if (Boolean.valueOf((String) endpoint.getMetaData().get(Endpoint.UNTARGETABLE))) {
-                        continue;
-                    }
-                    match = true;
-                    if (authorizationService != null) {
-                    	String endpointName = (String) endpoint.getMetaData().get(Endpoint.ENDPOINT_NAME);
-                    	String uniqueName = endpoint.getId();
-                    	if (endpointName != null && endpointName.length() != 0) {
-                    		uniqueName = uniqueName + "|" + endpointName;  
-                    	}
-                        Set<GroupPrincipal> acls = authorizationService.getAcls(uniqueName, 
-                        		exchange.getOperation());
-                        if (!acls.contains(GroupPrincipal.ANY)) {
-                            Subject subject = exchange.getIn().getSecuritySubject();
-                            if (subject == null) {
-                                continue;
-                            }
-                            for (Principal groupPrincipal : acls) {
-                            	for (Principal principal: subject.getPrincipals()) {
-                            		if (groupPrincipal.equals(principal)) {
-                            			securityMatch = true;
-                            		}
-                            	}
-                            }
-                            if (!securityMatch) {
-                            	continue;
-                            }
-                        }
-                    }
-                    securityMatch = true;
-                    if (internalDispatch(exchange, endpoint, true)) {
-                        return;
-                    }
-                }
-                if (!match) {
-                    throw new ServiceMixException("Could not dispatch exchange. No matching endpoints.");
-                } else if (!securityMatch) {
-                    throw new ServiceMixException("User not authenticated or not authorized to access any matching endpoint.");
-                } else {
-                    throw new ServiceMixException("Could not dispatch exchange. No flow can handle it.");
-                }
+                route(exchange, choose(exchange, target)).dispatch(exchange);
             } else {
                 if (!internalDispatch(exchange, exchange.getDestination(), false)) {
                     throw new ServiceMixException("Could not dispatch exchange. No flow can handle it.");
@@ -138,16 +196,396 @@ public class FlowRegistryImpl extends ServiceRegistryImpl<Flow> implements FlowR
         }
     }
 
+    /**
+     * Dispatch several exchanges at once.  The target of the new exchanges
+     * is resolved once per distinct reference, the endpoint selector being
+     * still called for each exchange, and the exchanges going through
+     * the {@link StraightThroughFlow} are delivered together to their destination.
+     *
+     * @param exchanges the exchanges to dispatch
+     * @return the exchanges that could not be dispatched along with the cause,
+     *         or an empty map if all the exchanges have been dispatched
+     */
+    public Map<InternalExchange, RuntimeException> dispatchBatch(List<InternalExchange> exchanges) {
+        Map<InternalExchange, RuntimeException> failures = new LinkedHashMap<InternalExchange, RuntimeException>();
+        Map<InternalReference, Iterable<InternalEndpoint>> resolved
+                = new IdentityHashMap<InternalReference, Iterable<InternalEndpoint>>();
+        Map<InternalEndpoint, List<InternalExchange>> batches
+                = new LinkedHashMap<InternalEndpoint, List<InternalExchange>>();
+        for (InternalExchange exchange : exchanges) {
+            try {
+                if (exchange.getRole() != Role.Consumer || exchange.getDestination() != null) {
+                    dispatch(exchange);
+                    continue;
+                }
+                InternalReference target = (InternalReference) exchange.getTarget();
+                Iterable<InternalEndpoint> endpoints = resolved.get(target);
+                if (endpoints == null) {
+                    endpoints = target.choose(registry);
+                    if (!(endpoints instanceof List)) {
+                        List<InternalEndpoint> list = new ArrayList<InternalEndpoint>();
+                        for (InternalEndpoint endpoint : endpoints) {
+                            list.add(endpoint);
+                        }
+                        endpoints = list;
+                    }
+                    resolved.put(target, endpoints);
+                }
+                // the selector is applied to each exchange so that it can spread the batch
+                Flow flow = route(exchange, select(exchange, target, endpoints));
+                if (flow.getClass() == StraightThroughFlow.class) {
+                    List<InternalExchange> batch = batches.get(exchange.getDestination());
+                    if (batch == null) {
+                        batch = new ArrayList<InternalExchange>();
+                        batches.put(exchange.getDestination(), batch);
+                    }
+                    batch.add(exchange);
+                } else {
+                    flow.dispatch(exchange);
+                }
+            } catch (RuntimeException e) {
+                failures.put(exchange, e);
+            }
+        }
+        for (Map.Entry<InternalEndpoint, List<InternalExchange>> entry : batches.entrySet()) {
+            StraightThroughFlow.dispatch(entry.getKey(), entry.getValue(), failures);
+        }
+        return failures;
+    }
+
+    /**
+     * Select the endpoint a new exchange will be sent to amongst the given endpoints
+     * and set it as the exchange destination.
+     *
+     * @param exchange the exchange to dispatch
+     * @param endpoints the endpoints matching the exchange target
+     * @return the flow to use to dispatch the exchange
+     * @throws ServiceMixException if the exchange can not be dispatched
+     */
+    protected Flow route(InternalExchange exchange, Iterable<InternalEndpoint> endpoints) {
+        boolean match = false;
+        boolean securityMatch = false;
+        for (InternalEndpoint endpoint : endpoints) {
+            if (Boolean.valueOf((String) endpoint.getMetaData().get(Endpoint.UNTARGETABLE))) {
+                continue;
+            }
+            match = true;
+            if (authorizationService != null && !isAuthorized(exchange, endpoint)) {
+                continue;
+            }
+            securityMatch = true;
+            Flow flow = getFlow(exchange, endpoint);
+            if (flow != null) {
+                exchange.setDestination(endpoint);
+                return flow;
+            }
+        }
+        if (!match) {
+            throw new ServiceMixException("Could not dispatch exchange. No matching endpoints.");
+        } else if (!securityMatch) {
+            throw new ServiceMixException("User not authenticated or not authorized to access any matching endpoint.");
+        } else {
+            throw new ServiceMixException("Could not dispatch exchange. No flow can handle it.");
+        }
+    }
+
+    /**
+     * Check if the subject of the exchange is allowed to invoke the given endpoint.
+     * When using the {@link DefaultAuthorizationService}, decisions are cached
+     * per set of ACLs and principals, as it returns the same set of ACLs
+     * for a given endpoint and operation until its entries change.
+     *
+     * @param exchange the exchange to dispatch
+     * @param endpoint the candidate endpoint
+     * @return <code>true</code> if the endpoint can be invoked
+     */
+    protected boolean isAuthorized(InternalExchange exchange, InternalEndpoint endpoint) {
+        String uniqueName = getDispatchTable().get(endpoint).getUniqueName(endpoint);
+        Set<GroupPrincipal> acls = authorizationService.getAcls(uniqueName, exchange.getOperation());
+        if (acls.contains(GroupPrincipal.ANY)) {
+            return true;
+        }
+        Subject subject = exchange.getIn().getSecuritySubject();
+        if (subject == null) {
+            return false;
+        }
+        Set<Principal> principals = subject.getPrincipals();
+        if (!cacheDecisions) {
+            return isAuthorized(acls, principals);
+        }
+        Boolean allowed = decisions.get(new Decision(acls, principals));
+        if (allowed == null) {
+            allowed = isAuthorized(acls, principals);
+            decisions.put(new Decision(acls, new HashSet<Principal>(principals)), allowed);
+        }
+        return allowed;
+    }
+
+    private static boolean isAuthorized(Set<GroupPrincipal> acls, Set<Principal> principals) {
+        for (Principal groupPrincipal : acls) {
+            for (Principal principal : principals) {
+                if (groupPrincipal.equals(principal)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieve the endpoints matching the exchange target, in the order they
+     * should be tried, according to the configured {@link EndpointSelector}.
+     *
+     * @param exchange the exchange to dispatch
+     * @param target the target of the exchange
+     * @return the endpoints to try
+     */
+    protected Iterable<InternalEndpoint> choose(InternalExchange exchange, InternalReference target) {
+        return select(exchange, target, target.choose(registry));
+    }
+
+    /**
+     * Order the endpoints matching the exchange target according to the
+     * configured {@link EndpointSelector}.
+     *
+     * @param exchange the exchange to dispatch
+     * @param target the target of the exchange
+     * @param endpoints the endpoints matching the target
+     * @return the endpoints to try
+     */
+    protected Iterable<InternalEndpoint> select(InternalExchange exchange, InternalReference target,
+                                                Iterable<InternalEndpoint> endpoints) {
+        EndpointSelector selector = getSelector(target, endpoints);
+        if (selector == null) {
+            return endpoints;
+        }
+        List<InternalEndpoint> list;
+        if (endpoints instanceof List) {
+            list = (List<InternalEndpoint>) endpoints;
+        } else {
+            list = new ArrayList<InternalEndpoint>();
+            for (InternalEndpoint endpoint : endpoints) {
+                list.add(endpoint);
+            }
+        }
+        if (list.size() < 2) {
+            return list;
+        }
+        int start = selector.select(exchange, list);
+        if (start <= 0 || start >= list.size()) {
+            return list;
+        }
+        List<InternalEndpoint> result = new ArrayList<InternalEndpoint>(list.size());
+        result.addAll(list.subList(start, list.size()));
+        result.addAll(list.subList(0, start));
+        return result;
+    }
+
+    /**
+     * Retrieve the selector to use for the given target.  The service name
+     * is taken from the properties of the reference if available, or else
+     * from the matching endpoints if they all share the same service name.
+     *
+     * @param target the target of the exchange
+     * @param endpoints the endpoints matching the target
+     * @return the selector to use or <code>null</code>
+     */
+    protected EndpointSelector getSelector(InternalReference target, Iterable<InternalEndpoint> endpoints) {
+        if (target instanceof SelectingReference) {
+            return ((SelectingReference) target).getSelector();
+        }
+        if (!selectors.isEmpty()) {
+            Object serviceName = getServiceName(target, endpoints);
+            if (serviceName != null) {
+                EndpointSelector selector = selectors.get(serviceName.toString());
+                if (selector != null) {
+                    return selector;
+                }
+            }
+        }
+        return defaultSelector;
+    }
+
+    private static Object getServiceName(InternalReference target, Iterable<InternalEndpoint> endpoints) {
+        if (target instanceof PropertyMatchingReference) {
+            Object serviceName = ((PropertyMatchingReference) target).getProperties().get(Endpoint.SERVICE_NAME);
+            if (serviceName != null) {
+                return serviceName;
+            }
+        }
+        Object serviceName = null;
+        for (InternalEndpoint endpoint : endpoints) {
+            Object name = endpoint.getMetaData().get(Endpoint.SERVICE_NAME);
+            if (name == null || (serviceName != null && !serviceName.equals(name))) {
+                return null;
+            }
+            serviceName = name;
+        }
+        return serviceName;
+    }
+
     protected boolean internalDispatch(InternalExchange exchange, InternalEndpoint endpoint, boolean setDestination) {
-        for (Flow flow : getServices()) {
+        Flow flow = getFlow(exchange, endpoint);
+        if (flow == null) {
+            return false;
+        }
+        if (setDestination) {
+            exchange.setDestination(endpoint);
+        }
+        flow.dispatch(exchange);
+        return true;
+    }
+
+    /**
+     * Find the flow to use to dispatch the exchange to the given endpoint.
+     * Flows that need to check each exchange are tried first, in registration
+     * order, then the {@link EndpointFlow} accepting all the exchanges for
+     * this endpoint, if any, is used.
+     *
+     * @param exchange the exchange to dispatch
+     * @param endpoint the target endpoint
+     * @return the flow to use or <code>null</code> if no flow can handle the exchange
+     */
+    protected Flow getFlow(InternalExchange exchange, InternalEndpoint endpoint) {
+        EndpointDispatch dispatch = getDispatchTable().get(endpoint);
+        for (Flow flow : dispatch.flows) {
             if (flow.canDispatch(exchange, endpoint)) {
-                if (setDestination) {
-                    exchange.setDestination(endpoint);
+                return flow;
+            }
+        }
+        return dispatch.fallback;
+    }
+
+    /*
+     * The cached decisions are dropped when endpoints are registered or
+     * unregistered, so that the cache does not keep old endpoints around
+     */
+    private DispatchTable getDispatchTable() {
+        DispatchTable t = table.get();
+        long generation = registry instanceof EndpointRegistryImpl
+                ? ((EndpointRegistryImpl) registry).getGeneration() : -1;
+        if (t.generation != generation) {
+            DispatchTable nt = new DispatchTable(t.flows, generation);
+            // do not overwrite a table created for a new list of flows
+            if (table.compareAndSet(t, nt)) {
+                t = nt;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Immutable snapshot of the registered flows with the cached
+     * dispatching decisions for each endpoint.
+     */
+    private static class DispatchTable {
+
+        private final Flow[] flows;
+        private final long generation;
+        private final ConcurrentMap<InternalEndpoint, EndpointDispatch> endpoints;
+
+        public DispatchTable(Flow[] flows, long generation) {
+            this.flows = flows;
+            this.generation = generation;
+            this.endpoints = generation >= 0 ? new ConcurrentHashMap<InternalEndpoint, EndpointDispatch>() : null;
+        }
+
+        public EndpointDispatch get(InternalEndpoint endpoint) {
+            EndpointDispatch dispatch = endpoints != null ? endpoints.get(endpoint) : null;
+            if (dispatch == null) {
+                List<Flow> checks = new ArrayList<Flow>();
+                Flow fallback = null;
+                for (Flow flow : flows) {
+                    if (fallback == null && flow instanceof EndpointFlow
+                            && ((EndpointFlow) flow).canDispatchAll(endpoint)) {
+                        fallback = flow;
+                    } else if (!(flow instanceof EndpointFlow)) {
+                        checks.add(flow);
+                    }
                 }
-                flow.dispatch(exchange);
+                // EndpointFlows not accepting all exchanges still need to be checked,
+                // after the other flows
+                for (Flow flow : flows) {
+                    if (flow instanceof EndpointFlow && flow != fallback) {
+                        checks.add(flow);
+                    }
+                }
+                dispatch = new EndpointDispatch(checks.toArray(new Flow[checks.size()]), fallback);
+                if (endpoints != null) {
+                    endpoints.put(endpoint, dispatch);
+                }
+            }
+            return dispatch;
+        }
+    }
+
+    /**
+     * The flows to check for a given endpoint, and the flow to use
+     * if none of them can handle an exchange.
+     */
+    private static class EndpointDispatch {
+
+        private final Flow[] flows;
+        private final Flow fallback;
+        private volatile String uniqueName;
+
+        public EndpointDispatch(Flow[] flows, Flow fallback) {
+            this.flows = flows;
+            this.fallback = fallback;
+        }
+
+        /**
+         * The name identifying the endpoint for the authorization service
+         */
+        public String getUniqueName(InternalEndpoint endpoint) {
+            String name = uniqueName;
+            if (name == null) {
+                name = endpoint.getId();
+                String endpointName = (String) endpoint.getMetaData().get(Endpoint.ENDPOINT_NAME);
+                if (endpointName != null && endpointName.length() != 0) {
+                    name = name + "|" + endpointName;
+                }
+                uniqueName = name;
+            }
+            return name;
+        }
+    }
+
+    /**
+     * Key of the authorization decisions cache: the set of ACLs, compared by
+     * identity, and the principals of the subject.
+     */
+    private static class Decision {
+
+        private final Set<GroupPrincipal> acls;
+        private final Set<Principal> principals;
+        private final int hash;
+
+        public Decision(Set<GroupPrincipal> acls, Set<Principal> principals) {
+            this.acls = acls;
+            this.principals = principals;
+            int h = System.identityHashCode(acls);
+            for (Principal principal : principals) {
+                h += principal.hashCode();
+            }
+            this.hash = h;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
                 return true;
             }
+            if (!(o instanceof Decision)) {
+                return false;
+            }
+            Decision that = (Decision) o;
+            return hash == that.hash && acls == that.acls
+                    && principals.size() == that.principals.size()
+                    && principals.containsAll(that.principals);
+        }
+
+        public int hashCode() {
+            return hash;
         }
-        return false;
     }
 }
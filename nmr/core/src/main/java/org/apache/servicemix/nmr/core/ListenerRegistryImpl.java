@@ -16,35 +16,108 @@
  */
 package org.apache.servicemix.nmr.core;
 
-import java.util.Iterator;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.servicemix.nmr.api.event.ExchangeListener;
 import org.apache.servicemix.nmr.api.event.Listener;
 import org.apache.servicemix.nmr.api.event.ListenerRegistry;
-import org.apache.servicemix.nmr.core.util.Filter;
-import org.apache.servicemix.nmr.core.util.FilterIterator;
 
 /**
+ * The default {@link ListenerRegistry} implementation.
  *
+ * Listeners are kept in immutable arrays, one per listener type, which are
+ * lazily computed and dropped when a listener is registered or unregistered,
+ * so that firing events does not need any allocation or type check.
+ *
+ * Exchange listeners implementing {@link org.apache.servicemix.nmr.api.event.AsyncExchangeListener}
+ * or registered with the {@link AsyncListenerDispatcher#ASYNC} property receive
+ * their exchange events through an {@link AsyncListenerDispatcher}.
  */
 public class ListenerRegistryImpl extends ServiceRegistryImpl<Listener> implements ListenerRegistry {
 
+    private volatile ConcurrentMap<Class<?>, Listener[]> listeners = new ConcurrentHashMap<Class<?>, Listener[]>();
+    private final ConcurrentMap<Listener, AsyncListenerDispatcher> dispatchers
+            = new ConcurrentHashMap<Listener, AsyncListenerDispatcher>();
+
+    @Override
+    public void register(Listener listener, Map<String, ?> properties) {
+        if (AsyncListenerDispatcher.isAsync(listener, properties) && !dispatchers.containsKey(listener)) {
+            AsyncListenerDispatcher dispatcher = AsyncListenerDispatcher.create((ExchangeListener) listener, properties);
+            if (dispatchers.putIfAbsent(listener, dispatcher) != null) {
+                dispatcher.close();
+            }
+        }
+        super.register(listener, properties);
+        listeners = new ConcurrentHashMap<Class<?>, Listener[]>();
+    }
+
+    @Override
+    public void unregister(Listener listener, Map<String, ?> properties) {
+        try {
+            super.unregister(listener, properties);
+        } finally {
+            listeners = new ConcurrentHashMap<Class<?>, Listener[]>();
+            AsyncListenerDispatcher dispatcher = dispatchers.remove(listener);
+            if (dispatcher != null) {
+                dispatcher.close();
+            }
+        }
+    }
+
+    /**
+     * Retrieve the dispatcher used to deliver events asynchronously to the given listener.
+     *
+     * @param listener the registered listener
+     * @return the dispatcher or <code>null</code> if events are delivered synchronously
+     */
+    public AsyncListenerDispatcher getDispatcher(Listener listener) {
+        return dispatchers.get(listener);
+    }
+
     /**
      * Retrieve an iterator of listeners of a certain type
      *
      * @param type the type of listeners
      * @return an iterator over the registered listeners
      */
-    public <T extends Listener> Iterable<T> getListeners(final Class<T> type) {
-        return new Iterable<T>() {
-            @SuppressWarnings("unchecked")
-            public Iterator<T> iterator() {
-                return new FilterIterator(getServices().iterator(), new Filter() {
-                    public boolean match(Object endpoint) {
-                        return type.isInstance(endpoint);
-                    }
-                });
+    public <T extends Listener> Iterable<T> getListeners(Class<T> type) {
+        return Arrays.asList(getListenerArray(type));
+    }
+
+    /**
+     * Retrieve a snapshot of the listeners of a certain type.
+     * The returned array must not be modified.
+     *
+     * @param type the type of listeners
+     * @return the registered listeners of this type
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Listener> T[] getListenerArray(Class<T> type) {
+        // the map is replaced before being modified, so that listeners
+        // computed concurrently with a registration will be discarded
+        ConcurrentMap<Class<?>, Listener[]> cache = listeners;
+        Listener[] result = cache.get(type);
+        if (result == null) {
+            List<T> list = new ArrayList<T>();
+            for (Listener listener : getServices()) {
+                // use the dispatcher when possible for asynchronous listeners
+                AsyncListenerDispatcher dispatcher = dispatchers.get(listener);
+                if (dispatcher != null && type.isInstance(dispatcher)) {
+                    list.add(type.cast(dispatcher));
+                } else if (type.isInstance(listener)) {
+                    list.add(type.cast(listener));
+                }
             }
-        };
+            result = list.toArray((T[]) Array.newInstance(type, list.size()));
+            cache.put(type, result);
+        }
+        return (T[]) result;
     }
 
 }
@@ -17,13 +17,14 @@
 package org.apache.servicemix.nmr.core;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 
 import javax.security.auth.Subject;
 
 import org.apache.servicemix.nmr.api.Message;
+import org.apache.servicemix.nmr.api.PropertyKey;
 import org.apache.servicemix.nmr.core.util.ExchangeUtils;
+import org.apache.servicemix.nmr.core.util.PropertyMap;
 
 /**
  * The default {@link Message} implementation.
@@ -184,6 +185,21 @@ public class MessageImpl implements Message {
         return convert(headers.get(type.getName()), type);
     }
 
+    /**
+     * Get a header using its typed key.
+     *
+     * @param key the key of the header
+     * @return the value of the header or <code>null</code> if none has been set
+     */
+    public <T> T getHeader(PropertyKey<T> key) {
+        if (headers == null) {
+            return null;
+        }
+        Object value = headers instanceof PropertyMap
+                ? ((PropertyMap) headers).getValue(key) : headers.get(key.getName());
+        return value != null ? convert(value, key.getType()) : null;
+    }
+
     /**
      * Set a header for this message
      *
@@ -192,7 +208,7 @@ public class MessageImpl implements Message {
      */
     public void setHeader(String name, Object value) {
         if (headers == null) {
-            headers = new HashMap<String, Object>();
+            headers = new PropertyMap();
         }
         headers.put(name, value);
     }
@@ -207,11 +223,28 @@ public class MessageImpl implements Message {
      */
     public <T> void setHeader(Class<T> type, T value) {
         if (headers == null) {
-            headers = new HashMap<String, Object>();
+            headers = new PropertyMap();
         }
         headers.put(type.getName(), convert(value, type));
     }
 
+    /**
+     * Set a header for this message using its typed key.
+     *
+     * @param key   the key of the header
+     * @param value the value of the header
+     */
+    public <T> void setHeader(PropertyKey<T> key, T value) {
+        if (headers == null) {
+            headers = new PropertyMap();
+        }
+        if (headers instanceof PropertyMap) {
+            ((PropertyMap) headers).putValue(key, value);
+        } else {
+            headers.put(key.getName(), value);
+        }
+    }
+
     /**
      * Remove the given header and returns its value.
      *
@@ -235,6 +268,21 @@ public class MessageImpl implements Message {
         return convert(removeHeader(type.getName()), type);
     }
 
+    /**
+     * Remove the header with the given key
+     *
+     * @param key the key of the header
+     * @return the previous value
+     */
+    public <T> T removeHeader(PropertyKey<T> key) {
+        if (headers == null) {
+            return null;
+        }
+        Object value = headers instanceof PropertyMap
+                ? ((PropertyMap) headers).removeValue(key) : headers.remove(key.getName());
+        return value != null ? convert(value, key.getType()) : null;
+    }
+
     /**
      * Get a map of all the headers for this message
      *
@@ -242,7 +290,7 @@ public class MessageImpl implements Message {
      */
     public Map<String, Object> getHeaders() {
         if (headers == null) {
-            headers = new HashMap<String, Object>();
+            headers = new PropertyMap();
         }
         return headers;
     }
@@ -277,7 +325,7 @@ public class MessageImpl implements Message {
      */
     public void addAttachment(String id, Object value) {
         if (attachments == null) {
-            attachments = new HashMap<String, Object>();
+            attachments = new PropertyMap();
         }
         attachments.put(id, value);
     }
@@ -300,7 +348,7 @@ public class MessageImpl implements Message {
      */
     public Map<String, Object> getAttachments() {
         if (attachments == null) {
-            attachments = new HashMap<String, Object>();
+            attachments = new PropertyMap();
         }
         return attachments;
     }
@@ -317,28 +365,26 @@ public class MessageImpl implements Message {
     }
 
     /**
-     * Copies the contents of the other message into this message
+     * Copies the contents of the other message into this message.
+     * Headers and attachments are only copied when modified.
      *
      * @param msg the message to copy from
      */
     public void copyFrom(Message msg) {
         body = msg.getBody();
-        if (!msg.getHeaders().isEmpty()) {
-            headers = new HashMap<String, Object>();
-            for (Map.Entry<String, Object> e : msg.getHeaders().entrySet()) {
-                headers.put(e.getKey(), e.getValue());
-            }
-        } else {
-            headers = null;
-        }
-        if (!msg.getAttachments().isEmpty()) {
-            attachments = new HashMap<String, Object>();
-            for (Map.Entry<String, Object> e : msg.getAttachments().entrySet()) {
-                attachments.put(e.getKey(), e.getValue());
-            }
+        Map<String, Object> h;
+        Map<String, Object> a;
+        if (msg instanceof MessageImpl) {
+            h = ((MessageImpl) msg).headers;
+            a = ((MessageImpl) msg).attachments;
         } else {
-            attachments = null;
+            h = msg.getHeaders();
+            a = msg.getAttachments();
         }
+        // the maps are shared with the other message until one of them is modified,
+        // so the other message must not be modified concurrently
+        headers = h != null && !h.isEmpty() ? new PropertyMap(h) : null;
+        attachments = a != null && !a.isEmpty() ? new PropertyMap(a) : null;
     }
 
     /**
@@ -355,6 +401,13 @@ public class MessageImpl implements Message {
 
     private void readObject(java.io.ObjectInputStream stream) throws IOException, ClassNotFoundException {
         stream.defaultReadObject();
+        // property maps are serialized as hash maps
+        if (headers != null) {
+            headers = new PropertyMap(headers);
+        }
+        if (attachments != null) {
+            attachments = new PropertyMap(attachments);
+        }
     }
 
     private void writeObject(java.io.ObjectOutputStream out) throws IOException {
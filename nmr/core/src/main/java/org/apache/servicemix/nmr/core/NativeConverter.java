@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import org.apache.servicemix.nmr.core.converter.ConverterRegistry;
+
+/**
+ * A converter using the NMR {@link ConverterRegistry} and falling back
+ * to another converter, created on first use, for the types it does not know.
+ */
+class NativeConverter implements Converter {
+
+    private final ConverterRegistry registry;
+    private volatile Converter fallback;
+
+    NativeConverter(ConverterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public ConverterRegistry getRegistry() {
+        return registry;
+    }
+
+    public <T> T convert(Object body, Class<T> type) {
+        if (body == null) {
+            return null;
+        }
+        if (registry.lookup(body.getClass(), type) != null) {
+            try {
+                T result = registry.convert(body, type);
+                if (result != null) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new NmrRuntimeException(e);
+            }
+        }
+        return getFallback().convert(body, type);
+    }
+
+    private Converter getFallback() {
+        if (fallback == null) {
+            synchronized (this) {
+                if (fallback == null) {
+                    try {
+                        fallback = new CamelConverter();
+                    } catch (Throwable t) {
+                        fallback = new DummyConverter();
+                    }
+                }
+            }
+        }
+        return fallback;
+    }
+
+}
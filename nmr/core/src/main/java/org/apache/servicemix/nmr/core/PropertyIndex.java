@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An inverted index from property values to the services registered
+ * with those values.  Only a fixed set of keys is indexed, which is enough
+ * to turn the usual equality lookups (service name, endpoint name, ...)
+ * into a direct map access instead of a scan over all services.
+ *
+ * The index only narrows down the candidates: callers still need to
+ * check the full set of properties on the returned services.
+ *
+ * Updates are serialized, while lookups are lock free.
+ */
+public class PropertyIndex<T> {
+
+    private final String[] keys;
+    private final ConcurrentMap<String, ConcurrentMap<Object, ConcurrentMap<T, Boolean>>> index;
+
+    public PropertyIndex(String... keys) {
+        this.keys = keys;
+        this.index = new ConcurrentHashMap<String, ConcurrentMap<Object, ConcurrentMap<T, Boolean>>>();
+        for (String key : keys) {
+            this.index.put(key, new ConcurrentHashMap<Object, ConcurrentMap<T, Boolean>>());
+        }
+    }
+
+    /**
+     * Index the given service using its registration properties.
+     *
+     * @param service the service to index
+     * @param properties the properties the service has been registered with
+     */
+    public synchronized void add(T service, Map<String, ?> properties) {
+        if (properties == null) {
+            return;
+        }
+        for (String key : keys) {
+            Object value = properties.get(key);
+            if (value != null) {
+                ConcurrentMap<Object, ConcurrentMap<T, Boolean>> values = index.get(key);
+                ConcurrentMap<T, Boolean> services = values.get(value);
+                if (services == null) {
+                    services = new ConcurrentHashMap<T, Boolean>();
+                    values.put(value, services);
+                }
+                services.put(service, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Remove the given service from the index.
+     *
+     * @param service the service to remove
+     * @param properties the properties the service has been registered with
+     */
+    public synchronized void remove(T service, Map<String, ?> properties) {
+        if (properties == null) {
+            return;
+        }
+        for (String key : keys) {
+            Object value = properties.get(key);
+            if (value != null) {
+                ConcurrentMap<Object, ConcurrentMap<T, Boolean>> values = index.get(key);
+                ConcurrentMap<T, Boolean> services = values.get(value);
+                if (services != null) {
+                    services.remove(service);
+                    if (services.isEmpty()) {
+                        values.remove(value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieve the smallest set of services that may match the given properties,
+     * i.e. the intersection of the candidates for all indexed keys is included
+     * in the returned collection.
+     *
+     * @param properties the properties to look for
+     * @return the candidates or <code>null</code> if none of the indexed keys
+     *         is used in the given properties and the index can not help
+     */
+    public Collection<T> candidates(Map<String, ?> properties) {
+        if (properties == null || properties.isEmpty()) {
+            return null;
+        }
+        Collection<T> result = null;
+        for (String key : keys) {
+            Object value = properties.get(key);
+            if (value != null) {
+                ConcurrentMap<T, Boolean> services = index.get(key).get(value);
+                if (services == null || services.isEmpty()) {
+                    return Collections.emptySet();
+                }
+                if (result == null || services.size() < result.size()) {
+                    result = services.keySet();
+                }
+            }
+        }
+        return result;
+    }
+
+}
@@ -17,7 +17,6 @@
 package org.apache.servicemix.nmr.core;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -30,33 +29,27 @@ import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 /**
  * A Reference using an map of properties for matching endpoints
  */
-public class PropertyMatchingReference implements CacheableReference, Serializable {
+public class PropertyMatchingReference extends AbstractCacheableReference implements Serializable {
 
     private final Map<String, ?> properties;
-    private transient volatile List<InternalEndpoint> matches;
-    private transient EndpointRegistry registry;
 
     public PropertyMatchingReference(Map<String, ?> properties) {
         this.properties = properties;
     }
 
-    public Iterable<InternalEndpoint> choose(EndpointRegistry registry) {
-        List<InternalEndpoint> result = matches;
-        if (this.matches == null || this.registry != registry) {
-            result = new ArrayList<InternalEndpoint>();
-            for (Endpoint ep : registry.query(null)) {
-                InternalEndpoint iep = (InternalEndpoint) ep;
-                if (Boolean.valueOf((String) iep.getMetaData().get(Endpoint.UNTARGETABLE))) {
-                    continue;
-                }
-                if (match(registry, iep)) {
-                    result.add(iep);
-                }
-            }
-            this.registry = registry;
-            this.matches = result;
+    public Map<String, ?> getProperties() {
+        return properties;
+    }
+
+    /*
+     * Use the registry index when available to avoid scanning all the endpoints
+     */
+    @Override
+    protected List<? extends Endpoint> candidates(EndpointRegistry registry) {
+        if (registry instanceof EndpointRegistryImpl) {
+            return ((EndpointRegistryImpl) registry).internalQuery(properties);
         }
-        return result;
+        return registry.query(null);
     }
 
     protected boolean match(EndpointRegistry registry, InternalEndpoint endpoint) {
@@ -74,10 +67,6 @@ public class PropertyMatchingReference implements CacheableReference, Serializab
         return null;
     }
 
-    public void setDirty() {
-        matches = null;
-    }
-
     @Override
     public String toString() {
         return "PropertyMatchingReference[" + properties + "]";
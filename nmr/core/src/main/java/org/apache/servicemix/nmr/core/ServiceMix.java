@@ -27,7 +27,7 @@ import org.apache.servicemix.nmr.api.internal.Flow;
 import org.apache.servicemix.nmr.api.internal.FlowRegistry;
 import org.apache.servicemix.nmr.api.service.ServiceHelper;
 import org.apache.servicemix.executors.ExecutorFactory;
-import org.apache.servicemix.executors.impl.ExecutorFactoryImpl;
+import org.apache.servicemix.nmr.core.executors.EndpointExecutorFactory;
 
 import org.fusesource.commons.management.ManagementStrategy;
 
@@ -46,6 +46,8 @@ public class ServiceMix implements NMR {
     private ExecutorFactory executorFactory;
     private ManagementStrategy managementStrategy;
     private String id;
+    private long defaultTimeToLive;
+    private TimerWheel expiryTimer;
 
     /**
      * Initialize ServiceMix
@@ -72,6 +74,9 @@ public class ServiceMix implements NMR {
         if (wires == null) {
             wires = new WireRegistryImpl();
         }
+        if (expiryTimer == null) {
+            expiryTimer = new TimerWheel("nmr.expiry");
+        }
         fireEvent(new NmrStartedEvent(this));
     }
 
@@ -79,9 +84,43 @@ public class ServiceMix implements NMR {
      * Shutdown ServiceMix
      */
     public void shutdown() {
+        if (expiryTimer != null) {
+            expiryTimer.shutdown();
+            expiryTimer = null;
+        }
         fireEvent(new NmrStoppedEvent(this));
     }
 
+    /**
+     * Access the timer used to expire exchanges
+     *
+     * @return the expiry timer
+     */
+    public TimerWheel getExpiryTimer() {
+        return expiryTimer;
+    }
+
+    /**
+     * Time to live in milliseconds of exchanges which do not have
+     * the {@link org.apache.servicemix.nmr.api.Exchange#TIME_TO_LIVE} property.
+     *
+     * @return the default time to live, <code>0</code> meaning that exchanges never expire
+     */
+    public long getDefaultTimeToLive() {
+        return defaultTimeToLive;
+    }
+
+    /**
+     * Set the time to live of exchanges which do not have
+     * the {@link org.apache.servicemix.nmr.api.Exchange#TIME_TO_LIVE} property.
+     * Defaults to <code>0</code>, meaning that exchanges never expire.
+     *
+     * @param defaultTimeToLive the default time to live in milliseconds
+     */
+    public void setDefaultTimeToLive(long defaultTimeToLive) {
+        this.defaultTimeToLive = defaultTimeToLive;
+    }
+
     /**
      * Access the endpoint registry.
      *
@@ -224,7 +263,7 @@ public class ServiceMix implements NMR {
      * Create the default ExecutorFactory
      */
     private void createExecutorFactory() {
-        ExecutorFactoryImpl impl = new ExecutorFactoryImpl();
+        EndpointExecutorFactory impl = new EndpointExecutorFactory();
         impl.getDefaultConfig().setBypassIfSynchronous(true);
         executorFactory = impl;
     }
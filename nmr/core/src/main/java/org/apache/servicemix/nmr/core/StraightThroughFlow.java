@@ -17,10 +17,13 @@
 package org.apache.servicemix.nmr.core;
 
 import org.apache.servicemix.nmr.api.Role;
-import org.apache.servicemix.nmr.api.internal.Flow;
+import org.apache.servicemix.nmr.api.internal.EndpointFlow;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 import org.apache.servicemix.nmr.api.internal.InternalExchange;
 
+import java.util.List;
+import java.util.Map;
+
 
 /**
  * The StraightThrough flow is the simpliest possible flow.
@@ -33,7 +36,7 @@ import org.apache.servicemix.nmr.api.internal.InternalExchange;
  * @version $Revision: $
  * @since 4.0
  */
-public class StraightThroughFlow implements Flow {
+public class StraightThroughFlow implements EndpointFlow {
     /**
      * Check if this flow can be used to dispatch the given Exchange
      *
@@ -44,6 +47,16 @@ public class StraightThroughFlow implements Flow {
         return true;
     }
 
+    /**
+     * The StraightThrough flow can dispatch any exchange to any endpoint
+     *
+     * @param endpoint the endpoint to check
+     * @return <code>true</code>
+     */
+    public boolean canDispatchAll(InternalEndpoint endpoint) {
+        return true;
+    }
+
     /**
      * Dispatch the Exchange using this flow.
      *
@@ -54,4 +67,26 @@ public class StraightThroughFlow implements Flow {
                 : exchange.getSource();
         endpoint.getChannel().deliver(exchange);
     }
+
+    /**
+     * Deliver several new exchanges at once to their destination endpoint.
+     *
+     * @param endpoint the destination endpoint of all the exchanges
+     * @param exchanges the exchanges to deliver
+     * @param failures the map to add the exchanges that could not be delivered to
+     */
+    static void dispatch(InternalEndpoint endpoint, List<InternalExchange> exchanges,
+                         Map<InternalExchange, RuntimeException> failures) {
+        if (endpoint.getChannel() instanceof ChannelImpl) {
+            ((ChannelImpl) endpoint.getChannel()).deliverBatch(exchanges, failures);
+        } else {
+            for (InternalExchange exchange : exchanges) {
+                try {
+                    endpoint.getChannel().deliver(exchange);
+                } catch (RuntimeException e) {
+                    failures.put(exchange, e);
+                }
+            }
+        }
+    }
 }
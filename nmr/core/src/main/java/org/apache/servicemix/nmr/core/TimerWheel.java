@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.apache.servicemix.nmr.api.internal.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel, used to expire exchanges.
+ *
+ * Tasks are hashed into a fixed number of buckets, according to their deadline.
+ * A single thread advances through the buckets at each tick and runs the tasks
+ * whose deadline has been reached.  Scheduling and cancelling a task are O(1)
+ * operations, which do not block, so that a timeout can be set on every exchange.
+ * The price to pay is that tasks are run with the precision of a tick.
+ */
+public class TimerWheel {
+
+    public static final long DEFAULT_TICK_DURATION = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final String name;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<WheelTimeout> scheduled = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final Queue<WheelTimeout> cancelled = new ConcurrentLinkedQueue<WheelTimeout>();
+    private volatile boolean started;
+    private volatile boolean shutdown;
+    private long startTime;
+    private volatile Thread worker;
+
+    public TimerWheel(String name) {
+        this(name, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates a new timer wheel
+     *
+     * @param name the name of the thread running the tasks
+     * @param tickDuration the duration of a tick in milliseconds
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(String name, long tickDuration, int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0");
+        }
+        if (wheelSize <= 0) {
+            throw new IllegalArgumentException("wheelSize must be greater than 0");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedule a task to run after the given delay.
+     * The task is run by the thread of the timer, so it should not block.
+     *
+     * @param task the task to run
+     * @param delay the delay in milliseconds
+     * @return a handle that can be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (shutdown) {
+            throw new IllegalStateException("Timer " + name + " has been shut down");
+        }
+        start();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - startTime;
+        WheelTimeout timeout = new WheelTimeout(task, deadline);
+        scheduled.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the timer.  Pending tasks will not be run.
+     */
+    public void shutdown() {
+        shutdown = true;
+        Thread thread = worker;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void start() {
+        if (!started) {
+            synchronized (this) {
+                if (!started) {
+                    startTime = System.nanoTime();
+                    worker = new Thread(new Worker(), name);
+                    worker.setDaemon(true);
+                    worker.start();
+                    started = true;
+                }
+            }
+        }
+    }
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE
+            = AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+
+    class WheelTimeout implements Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        volatile int state;
+        // the following fields are only accessed by the worker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private WheelTimeout prev;
+        private WheelTimeout next;
+
+        WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public boolean cancel() {
+            if (STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                cancelled.offer(this);
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.warn("Error running timer task {}", task, t);
+                }
+            }
+        }
+    }
+
+    /*
+     * A doubly linked list of timeouts, only accessed by the worker thread
+     */
+    private static class Bucket {
+
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(WheelTimeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = timeout.next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void expire(long deadline) {
+            WheelTimeout timeout = head;
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+                if (timeout.state == ST_CANCELLED) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                } else if (timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private long tick;
+
+        public void run() {
+            while (!shutdown) {
+                long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    break;
+                }
+                removeCancelled();
+                addScheduled();
+                wheel[(int) (tick & mask)].expire(deadline);
+                tick++;
+            }
+            scheduled.clear();
+            cancelled.clear();
+        }
+
+        private void addScheduled() {
+            WheelTimeout timeout;
+            while ((timeout = scheduled.poll()) != null) {
+                if (timeout.state == ST_CANCELLED) {
+                    continue;
+                }
+                long calculated = timeout.deadline / tickDuration;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                // tasks whose deadline has already passed are run at the current tick
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+
+        private void removeCancelled() {
+            WheelTimeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+
+        /*
+         * Wait for the end of the current tick and return its time relative to startTime,
+         * or -1 if the timer has been shut down
+         */
+        private long waitForNextTick() {
+            long deadline = tickDuration * (tick + 1);
+            while (true) {
+                long current = System.nanoTime() - startTime;
+                long sleepTime = (deadline - current + 999999) / 1000000;
+                if (sleepTime <= 0) {
+                    return current;
+                }
+                try {
+                    Thread.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    if (shutdown) {
+                        return -1;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -16,25 +16,85 @@
  */
 package org.apache.servicemix.nmr.core;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.servicemix.nmr.api.Endpoint;
 import org.apache.servicemix.nmr.api.Wire;
 import org.apache.servicemix.nmr.api.WireRegistry;
 import org.apache.servicemix.nmr.api.service.ServiceHelper;
+import org.apache.servicemix.nmr.core.util.BoundedCache;
 
 /**
  * Default implementation for a {@link WireRegistry}
+ *
+ * Wires are indexed by the endpoint properties of their <code>from</code> map
+ * and the wire found for a given set of properties is cached, including when
+ * there is none, which is the most common case.
+ *
+ * A wire matches when all the given properties are part of its <code>from</code> map.
+ * When several wires match, the wire with the smallest <code>from</code> map is chosen,
+ * so that a wire whose <code>from</code> map is equal to the given properties always
+ * wins, then the wire registered first.
  */
 public class WireRegistryImpl extends ServiceRegistryImpl<Wire> implements WireRegistry {
 
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private final PropertyIndex<Wire> index = new PropertyIndex<Wire>(
+            Endpoint.NAME, Endpoint.SERVICE_NAME, Endpoint.ENDPOINT_NAME, Endpoint.INTERFACE_NAME);
+    private final ConcurrentMap<Wire, Registration> registrations = new ConcurrentHashMap<Wire, Registration>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile long generation;
+    private volatile BoundedCache<Map<String, ?>, Resolution> cache = new BoundedCache<Map<String, ?>, Resolution>(DEFAULT_CACHE_SIZE);
+
+    public int getCacheSize() {
+        return cache.getMaximumSize();
+    }
+
+    /**
+     * Set the maximum number of resolved properties to keep in the cache
+     *
+     * @param cacheSize the maximum size of the cache
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cache = new BoundedCache<Map<String, ?>, Resolution>(cacheSize);
+    }
+
     public Wire getWire(Map<String, ?> properties) {
-        for (Wire wire : getServices()) {
-            //TODO: we are using matches here instead of equals, so we should find a way to deal with multiple wires
-            if (ServiceHelper.matches(properties, getProperties(wire))) {
-                return wire;
+        if (properties == null) {
+            return null;
+        }
+        BoundedCache<Map<String, ?>, Resolution> cache = this.cache;
+        long gen = generation;
+        Resolution resolution = cache.get(properties);
+        if (resolution == null || resolution.generation != gen) {
+            resolution = new Resolution(gen, resolve(properties));
+            cache.put(new HashMap<String, Object>(properties), resolution);
+        }
+        return resolution.wire;
+    }
+
+    protected Wire resolve(Map<String, ?> properties) {
+        Collection<Wire> candidates = index.candidates(properties);
+        if (candidates == null) {
+            candidates = getServices();
+        }
+        Wire best = null;
+        Registration bestReg = null;
+        for (Wire wire : candidates) {
+            Registration reg = registrations.get(wire);
+            if (reg != null && ServiceHelper.matches(properties, reg.properties)
+                    && (bestReg == null || reg.isPreferredTo(bestReg))) {
+                best = wire;
+                bestReg = reg;
             }
         }
-        return null;
+        return best;
     }
 
     public void register(Wire wire) {
@@ -44,4 +104,45 @@ public class WireRegistryImpl extends ServiceRegistryImpl<Wire> implements WireR
     public void unregister(Wire wire) {
         unregister(wire, wire.getFrom());
     }
+
+    protected synchronized void doRegister(Wire wire, Map<String, ?> properties) throws Exception {
+        registrations.put(wire, new Registration(properties, sequence.getAndIncrement()));
+        index.add(wire, properties);
+        generation++;
+    }
+
+    protected synchronized void doUnregister(Wire wire, Map<String, ?> properties) throws Exception {
+        Registration reg = registrations.remove(wire);
+        if (reg != null) {
+            index.remove(wire, reg.properties);
+        }
+        generation++;
+    }
+
+    private static class Registration {
+        final Map<String, ?> properties;
+        final long order;
+
+        Registration(Map<String, ?> properties, long order) {
+            this.properties = properties;
+            this.order = order;
+        }
+
+        boolean isPreferredTo(Registration other) {
+            if (properties.size() != other.properties.size()) {
+                return properties.size() < other.properties.size();
+            }
+            return order < other.order;
+        }
+    }
+
+    private static class Resolution {
+        final long generation;
+        final Wire wire;
+
+        Resolution(long generation, Wire wire) {
+            this.generation = generation;
+            this.wire = wire;
+        }
+    }
 }
@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.converter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.servicemix.nmr.core.util.BoundedCache;
+import org.apache.servicemix.nmr.core.util.StringSource;
+import org.apache.servicemix.nmr.core.util.XmlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+/**
+ * A registry of {@link TypeConverter}s keyed by source and target classes.
+ *
+ * Converters for the common pairs of types used in message bodies are built in.
+ * Additional converters can be registered programmatically, or listed in
+ * <code>META-INF/services/org/apache/servicemix/nmr/TypeConverter</code> resources,
+ * one converter per line given as <code>sourceClass targetClass converterClass</code>,
+ * so that no classpath scanning is needed.
+ *
+ * The converter found for a given pair of classes, or the absence of any,
+ * is remembered until the registered converters change.  At most
+ * {@link #getCacheSize()} pairs are remembered, so that classes seen
+ * once, and their class loaders, are not retained forever.
+ */
+public class ConverterRegistry {
+
+    public static final String INDEX = "META-INF/services/org/apache/servicemix/nmr/TypeConverter";
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final TypeConverter NONE = new TypeConverter() {
+        public Object convert(Object value) {
+            return null;
+        }
+    };
+
+    private final Logger logger = LoggerFactory.getLogger(ConverterRegistry.class);
+
+    private final Map<Class<?>, List<Registration>> converters = new ConcurrentHashMap<Class<?>, List<Registration>>();
+    private volatile BoundedCache<Pair, TypeConverter> lookups = new BoundedCache<Pair, TypeConverter>(DEFAULT_CACHE_SIZE);
+
+    public ConverterRegistry() {
+        registerDefaults();
+    }
+
+    public int getCacheSize() {
+        return lookups.getMaximumSize();
+    }
+
+    /**
+     * Set the maximum number of pairs of classes whose converter is remembered
+     *
+     * @param cacheSize the maximum size of the cache
+     */
+    public void setCacheSize(int cacheSize) {
+        this.lookups = new BoundedCache<Pair, TypeConverter>(cacheSize);
+    }
+
+    /**
+     * Register a converter from the given source class to the given target class.
+     *
+     * @param from the class of the values to convert
+     * @param to the class of the converted values
+     * @param converter the converter to use
+     */
+    public void register(Class<?> from, Class<?> to, TypeConverter converter) {
+        synchronized (converters) {
+            List<Registration> list = converters.get(from);
+            if (list == null) {
+                list = new CopyOnWriteArrayList<Registration>();
+                converters.put(from, list);
+            }
+            list.add(0, new Registration(to, converter));
+        }
+        lookups.clear();
+    }
+
+    /**
+     * Load the converters listed in the index resources visible from the given class loader.
+     *
+     * @param classLoader the class loader to use
+     */
+    public void loadIndex(ClassLoader classLoader) {
+        try {
+            Enumeration<URL> urls = classLoader.getResources(INDEX);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.length() == 0 || line.startsWith("#")) {
+                            continue;
+                        }
+                        String[] parts = line.split("\\s+");
+                        try {
+                            register(classLoader.loadClass(parts[0]), classLoader.loadClass(parts[1]),
+                                     (TypeConverter) classLoader.loadClass(parts[2]).newInstance());
+                        } catch (Throwable t) {
+                            logger.debug("Unable to load type converter {} from {}", line, url);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Unable to load type converters index", e);
+        }
+    }
+
+    /**
+     * Find the converter to use to convert values of the given class to the target class.
+     *
+     * @param from the class of the value to convert
+     * @param to the expected class
+     * @return the converter to use or <code>null</code> if there is none
+     */
+    public TypeConverter lookup(Class<?> from, Class<?> to) {
+        BoundedCache<Pair, TypeConverter> lookups = this.lookups;
+        Pair pair = new Pair(from, to);
+        TypeConverter converter = lookups.get(pair);
+        if (converter == null) {
+            converter = doLookup(from, to);
+            lookups.put(pair, converter != null ? converter : NONE);
+        }
+        return converter != NONE ? converter : null;
+    }
+
+    /**
+     * Convert the value to the given type, using the registered converters.
+     *
+     * @param value the value to convert
+     * @param type the expected type
+     * @return the converted value or <code>null</code> if no converter can handle this value
+     * @throws Exception if the conversion fails
+     */
+    public <T> T convert(Object value, Class<T> type) throws Exception {
+        if (value == null) {
+            return null;
+        }
+        if (type.isInstance(value)) {
+            return type.cast(value);
+        }
+        TypeConverter converter = lookup(value.getClass(), type);
+        if (converter != null) {
+            Object result = converter.convert(value);
+            if (type.isInstance(result)) {
+                return type.cast(result);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Look for an exact match on the class or its super types, then for a converter
+     * providing a subclass of the target
+     */
+    private TypeConverter doLookup(Class<?> from, Class<?> to) {
+        List<Class<?>> types = getTypeHierarchy(from);
+        for (Class<?> type : types) {
+            List<Registration> list = converters.get(type);
+            if (list != null) {
+                for (Registration registration : list) {
+                    if (registration.to == to) {
+                        return registration.converter;
+                    }
+                }
+            }
+        }
+        for (Class<?> type : types) {
+            List<Registration> list = converters.get(type);
+            if (list != null) {
+                for (Registration registration : list) {
+                    if (to.isAssignableFrom(registration.to)) {
+                        return registration.converter;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The class, its super classes and interfaces, closest first
+     */
+    private static List<Class<?>> getTypeHierarchy(Class<?> clazz) {
+        List<Class<?>> types = new ArrayList<Class<?>>();
+        LinkedList<Class<?>> queue = new LinkedList<Class<?>>();
+        queue.add(clazz);
+        while (!queue.isEmpty()) {
+            Class<?> type = queue.removeFirst();
+            if (type == null || types.contains(type)) {
+                continue;
+            }
+            types.add(type);
+            queue.add(type.getSuperclass());
+            for (Class<?> itf : type.getInterfaces()) {
+                queue.add(itf);
+            }
+        }
+        return types;
+    }
+
+    private void registerDefaults() {
+        register(StringSource.class, String.class, new TypeConverter() {
+            public Object convert(Object value) {
+                return ((StringSource) value).getText();
+            }
+        });
+        register(String.class, StringSource.class, new TypeConverter() {
+            public Object convert(Object value) {
+                return new StringSource((String) value);
+            }
+        });
+        register(Source.class, String.class, new TypeConverter() {
+            public Object convert(Object value) throws Exception {
+                return XmlUtils.toString((Source) value);
+            }
+        });
+        register(DOMSource.class, StreamSource.class, new TypeConverter() {
+            public Object convert(Object value) throws Exception {
+                return new StringSource(XmlUtils.toString((Source) value));
+            }
+        });
+        register(StreamSource.class, DOMSource.class, new TypeConverter() {
+            public Object convert(Object value) throws Exception {
+                StreamSource source = (StreamSource) value;
+                InputSource input;
+                if (source.getInputStream() != null) {
+                    input = new InputSource(source.getInputStream());
+                } else if (source.getReader() != null) {
+                    input = new InputSource(source.getReader());
+                } else {
+                    input = new InputSource();
+                }
+                input.setSystemId(source.getSystemId());
+                return new DOMSource(XmlUtils.parse(input), source.getSystemId());
+            }
+        });
+        register(byte[].class, InputStream.class, new TypeConverter() {
+            public Object convert(Object value) {
+                return new ByteArrayInputStream((byte[]) value);
+            }
+        });
+        register(InputStream.class, byte[].class, new TypeConverter() {
+            public Object convert(Object value) throws Exception {
+                InputStream is = (InputStream) value;
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int len;
+                while ((len = is.read(buffer)) >= 0) {
+                    baos.write(buffer, 0, len);
+                }
+                is.close();
+                return baos.toByteArray();
+            }
+        });
+    }
+
+    private static class Registration {
+
+        private final Class<?> to;
+        private final TypeConverter converter;
+
+        public Registration(Class<?> to, TypeConverter converter) {
+            this.to = to;
+            this.converter = converter;
+        }
+    }
+
+    private static class Pair {
+
+        private final Class<?> from;
+        private final Class<?> to;
+
+        public Pair(Class<?> from, Class<?> to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Pair)) {
+                return false;
+            }
+            Pair that = (Pair) o;
+            return from == that.from && to == that.to;
+        }
+
+        public int hashCode() {
+            return from.hashCode() * 31 + to.hashCode();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.executors;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.executors.impl.ExecutorFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link ExecutorFactoryImpl} which can create a {@link ThreadPerTaskExecutor}
+ * instead of a thread pool for some executors.
+ *
+ * The executor mode can be selected per executor name, for example
+ * <code>nmr.endpoint.myEndpoint</code>, using {@link #setThreadPerTask(String, int)},
+ * or per endpoint using the {@link #EXECUTOR_MODE} and {@link #MAX_CONCURRENCY}
+ * endpoint properties.
+ */
+public class EndpointExecutorFactory extends ExecutorFactoryImpl {
+
+    /**
+     * Property selecting the executor mode, either {@link #MODE_POOL} or {@link #MODE_VIRTUAL}
+     */
+    public static final String EXECUTOR_MODE = "executorMode";
+
+    /**
+     * Property specifying the maximum number of tasks running at the same time
+     * for a {@link #MODE_VIRTUAL} executor
+     */
+    public static final String MAX_CONCURRENCY = "maxConcurrency";
+
+    public static final String MODE_POOL = "pool";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private final Logger logger = LoggerFactory.getLogger(EndpointExecutorFactory.class);
+
+    private Map<String, Integer> threadPerTask = new ConcurrentHashMap<String, Integer>();
+
+    public Map<String, Integer> getThreadPerTask() {
+        return threadPerTask;
+    }
+
+    /**
+     * Set the executors that run each task on its own thread.
+     *
+     * @param threadPerTask the maximum concurrency of each executor, keyed by executor name
+     */
+    public void setThreadPerTask(Map<String, Integer> threadPerTask) {
+        this.threadPerTask = new ConcurrentHashMap<String, Integer>(threadPerTask);
+    }
+
+    /**
+     * Run each task of the given executor on its own thread.
+     *
+     * @param name the executor name
+     * @param maxConcurrency the maximum number of tasks running at the same time, or <code>0</code> for no limit
+     *                       (see {@link ThreadPerTaskExecutor#DEFAULT_MAX_CONCURRENCY})
+     */
+    public void setThreadPerTask(String name, int maxConcurrency) {
+        threadPerTask.put(name, maxConcurrency);
+    }
+
+    @Override
+    public Executor createExecutor(String name) {
+        Integer maxConcurrency = threadPerTask.get(name);
+        if (maxConcurrency != null) {
+            return createThreadPerTaskExecutor(name, maxConcurrency);
+        }
+        return super.createExecutor(name);
+    }
+
+    @Override
+    public Executor createExecutor(String name, Map<String, Object> properties) {
+        Integer maxConcurrency = threadPerTask.get(name);
+        if (properties != null && properties.get(EXECUTOR_MODE) != null) {
+            if (MODE_VIRTUAL.equals(properties.get(EXECUTOR_MODE).toString())) {
+                maxConcurrency = getMaxConcurrency(name, properties.get(MAX_CONCURRENCY));
+            } else {
+                maxConcurrency = null;
+            }
+        }
+        if (maxConcurrency != null) {
+            return createThreadPerTaskExecutor(name, maxConcurrency);
+        }
+        return super.createExecutor(name, properties);
+    }
+
+    /*
+     * Without virtual threads, each task needs a platform thread, so the executor
+     * falls back to a bounded concurrency when no limit has been given
+     */
+    private Executor createThreadPerTaskExecutor(String name, int maxConcurrency) {
+        if (maxConcurrency <= 0 && !ThreadPerTaskExecutor.isVirtualThreadSupported()) {
+            logger.warn("Virtual threads are not supported, limiting executor {} to {} concurrent tasks",
+                        name, ThreadPerTaskExecutor.DEFAULT_MAX_CONCURRENCY);
+        }
+        return new ThreadPerTaskExecutor(name, maxConcurrency);
+    }
+
+    /*
+     * Invalid values are ignored, leaving the concurrency to its default
+     */
+    private int getMaxConcurrency(String name, Object max) {
+        int value = 0;
+        if (max instanceof Number) {
+            value = ((Number) max).intValue();
+        } else if (max != null) {
+            try {
+                value = Integer.parseInt(max.toString().trim());
+            } catch (NumberFormatException e) {
+                value = -1;
+            }
+        }
+        if (value < 0) {
+            logger.warn("Ignoring invalid value for property {} of executor {}: {}",
+                        new Object[] { MAX_CONCURRENCY, name, max });
+            value = 0;
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.executors;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.executors.ExecutorAwareRunnable;
+
+/**
+ * An {@link Executor} running each task on its own thread instead of
+ * using a pool of threads.  This suits endpoints that block on I/O, which
+ * would otherwise need very large pools.
+ *
+ * Virtual threads are used when the JVM supports them.  Otherwise, a
+ * short-lived daemon thread with a reduced stack size is started for each task.
+ *
+ * The number of tasks running at the same time can be limited, in which case
+ * additional tasks are queued and run by the threads as they finish their
+ * current task.  Without virtual threads, the number of tasks is always limited,
+ * using {@link #DEFAULT_MAX_CONCURRENCY} if no valid limit is given.
+ */
+public class ThreadPerTaskExecutor implements Executor {
+
+    /**
+     * Default stack size of the threads created when virtual threads are not available
+     */
+    public static final long DEFAULT_STACK_SIZE = 256 * 1024;
+
+    /**
+     * Maximum number of tasks running at the same time when no limit is given
+     * and virtual threads are not available
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY = 256;
+
+    private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+
+    private final String name;
+    private final int maxConcurrency;
+    private final long stackSize;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong threadNumber = new AtomicLong();
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a new executor
+     *
+     * @param name the name used for the threads
+     * @param maxConcurrency the maximum number of tasks running at the same time, or <code>0</code> for no limit
+     *                       if virtual threads are supported and {@link #DEFAULT_MAX_CONCURRENCY} otherwise
+     */
+    public ThreadPerTaskExecutor(String name, int maxConcurrency) {
+        this(name, maxConcurrency, DEFAULT_STACK_SIZE);
+    }
+
+    public ThreadPerTaskExecutor(String name, int maxConcurrency, long stackSize) {
+        this.name = name;
+        this.maxConcurrency = maxConcurrency > 0 || isVirtualThreadSupported()
+                ? maxConcurrency : DEFAULT_MAX_CONCURRENCY;
+        this.stackSize = stackSize;
+    }
+
+    /**
+     * Check if tasks will be run on virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    public void execute(Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor " + name + " has been shut down");
+        }
+        if (command instanceof ExecutorAwareRunnable && ((ExecutorAwareRunnable) command).shouldRunSynchronously()) {
+            command.run();
+        } else if (maxConcurrency <= 0) {
+            running.incrementAndGet();
+            start(new Worker(command));
+        } else {
+            queue.offer(command);
+            schedule();
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    public int capacity() {
+        return maxConcurrency > 0 ? maxConcurrency : Integer.MAX_VALUE;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Number of tasks currently running
+     */
+    public int getActiveCount() {
+        return running.get();
+    }
+
+    /*
+     * Start workers for queued tasks while the concurrency limit allows it
+     */
+    private void schedule() {
+        while (!queue.isEmpty()) {
+            int current = running.get();
+            if (current >= maxConcurrency) {
+                return;
+            }
+            if (running.compareAndSet(current, current + 1)) {
+                Runnable task = queue.poll();
+                if (task == null) {
+                    running.decrementAndGet();
+                } else {
+                    start(new Worker(task));
+                }
+            }
+        }
+    }
+
+    private void start(Runnable worker) {
+        try {
+            if (START_VIRTUAL_THREAD != null) {
+                START_VIRTUAL_THREAD.invoke(null, worker);
+            } else {
+                Thread thread = new Thread(null, worker, name + "-" + threadNumber.incrementAndGet(), stackSize);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (InvocationTargetException e) {
+            running.decrementAndGet();
+            throw new RejectedExecutionException(e.getCause());
+        } catch (IllegalAccessException e) {
+            running.decrementAndGet();
+            throw new RejectedExecutionException(e);
+        } catch (OutOfMemoryError e) {
+            running.decrementAndGet();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    private static Method findStartVirtualThread() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private Runnable task;
+
+        Worker(Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+            try {
+                while (task != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Thread thread = Thread.currentThread();
+                        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                    }
+                    // keep the thread to run queued tasks if any
+                    task = maxConcurrency > 0 ? queue.poll() : null;
+                }
+            } finally {
+                running.decrementAndGet();
+                if (maxConcurrency > 0) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+}
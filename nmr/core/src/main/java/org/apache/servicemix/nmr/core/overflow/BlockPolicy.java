@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.overflow;
+
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.apache.servicemix.nmr.core.ChannelImpl;
+import org.apache.servicemix.nmr.core.EndpointOverloadedException;
+
+/**
+ * Block the thread delivering the exchange until the endpoint has
+ * some capacity left.  If a timeout is set and elapses, an
+ * {@link EndpointOverloadedException} is thrown.
+ */
+public class BlockPolicy implements OverflowPolicy {
+
+    private final long timeout;
+
+    public BlockPolicy() {
+        this(0);
+    }
+
+    /**
+     * @param timeout the maximum time to wait in milliseconds, or <code>0</code> to wait forever
+     */
+    public BlockPolicy(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public boolean overflow(ChannelImpl channel, InternalExchange exchange) {
+        try {
+            if (!channel.awaitCapacity(timeout)) {
+                throw new EndpointOverloadedException("Timeout waiting for endpoint " + channel.getEndpoint());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EndpointOverloadedException(e);
+        }
+        return true;
+    }
+
+}
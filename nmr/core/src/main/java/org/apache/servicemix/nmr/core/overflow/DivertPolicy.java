@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.overflow;
+
+import java.util.List;
+
+import org.apache.servicemix.nmr.api.Endpoint;
+import org.apache.servicemix.nmr.api.EndpointRegistry;
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.apache.servicemix.nmr.api.service.ServiceHelper;
+import org.apache.servicemix.nmr.core.ChannelImpl;
+import org.apache.servicemix.nmr.core.EndpointOverloadedException;
+
+/**
+ * Divert the exchange to another endpoint, identified by its name.
+ * If the overflow endpoint can not be found, an {@link EndpointOverloadedException}
+ * is thrown.
+ */
+public class DivertPolicy implements OverflowPolicy {
+
+    private final String endpointName;
+
+    /**
+     * @param endpointName the {@link Endpoint#NAME} of the overflow endpoint
+     */
+    public DivertPolicy(String endpointName) {
+        this.endpointName = endpointName;
+    }
+
+    public String getEndpointName() {
+        return endpointName;
+    }
+
+    public boolean overflow(ChannelImpl channel, InternalExchange exchange) {
+        EndpointRegistry registry = channel.getNMR().getEndpointRegistry();
+        List<Endpoint> endpoints = registry.query(ServiceHelper.createMap(Endpoint.NAME, endpointName));
+        if (endpoints.isEmpty()) {
+            throw new EndpointOverloadedException("Endpoint " + channel.getEndpoint()
+                    + " is overloaded and overflow endpoint " + endpointName + " can not be found");
+        }
+        InternalEndpoint overflow = (InternalEndpoint) endpoints.get(0);
+        exchange.setDestination(overflow);
+        overflow.getChannel().deliver(exchange);
+        return false;
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.overflow;
+
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.apache.servicemix.nmr.core.ChannelImpl;
+
+/**
+ * Strategy used by a {@link ChannelImpl} when an exchange is delivered to
+ * an endpoint that has reached its <code>MAX_IN_FLIGHT</code> or
+ * <code>MAX_QUEUED</code> limits.
+ *
+ * @see org.apache.servicemix.nmr.api.Endpoint#OVERFLOW_POLICY
+ */
+public interface OverflowPolicy {
+
+    /**
+     * Handle an exchange that can not be delivered without exceeding the
+     * limits of the channel.  This method is called by the thread delivering
+     * the exchange, so it may block to slow down the sender.
+     *
+     * @param channel the overloaded channel
+     * @param exchange the exchange to deliver
+     * @return <code>true</code> if the channel should try to deliver the exchange again,
+     *         <code>false</code> if the exchange has been handled by the policy
+     */
+    boolean overflow(ChannelImpl channel, InternalExchange exchange);
+
+}
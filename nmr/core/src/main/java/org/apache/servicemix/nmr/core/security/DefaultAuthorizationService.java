@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.regex.Pattern;
@@ -31,23 +32,32 @@ import javax.xml.namespace.QName;
 import org.apache.servicemix.nmr.api.security.AuthorizationService;
 import org.apache.servicemix.nmr.api.security.GroupPrincipal;
 import org.apache.servicemix.nmr.api.security.AuthorizationEntry;
+import org.apache.servicemix.nmr.core.util.BoundedCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A default implementation of the authorization service.
+ *
+ * The patterns of the authorization entries are compiled when the entries
+ * are registered, and the resulting ACLs are kept in a concurrent cache
+ * which is discarded whenever the entries change.  The same immutable set is
+ * returned for a given endpoint and operation until then, so that callers
+ * can cache decisions based on its identity.
  */
 public class DefaultAuthorizationService implements AuthorizationService {
 
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
     private final Logger logger = LoggerFactory.getLogger(DefaultAuthorizationService.class);
     
     private List<AuthorizationEntry> authorizationEntries;
     private Comparator<AuthorizationEntry> comparator;
-    private Map<String, Set<GroupPrincipal>> cache;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private volatile CompiledEntries compiledEntries = new CompiledEntries(new CompiledEntry[0], cacheSize);
 
     public DefaultAuthorizationService() {
         authorizationEntries = new ArrayList<AuthorizationEntry>();
-        cache = Collections.synchronizedMap(new LRUMap<String, Set<GroupPrincipal>>(64));
         comparator = new Comparator<AuthorizationEntry>() {
             public int compare(AuthorizationEntry o1, AuthorizationEntry o2) {
                 if (o1.getRank() < o2.getRank()) {
@@ -61,13 +71,28 @@ public class DefaultAuthorizationService implements AuthorizationService {
         };
     }
 
-    public void register(AuthorizationEntry entry, Map<String,?> props) {
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Set the maximum number of endpoint / operation ACLs to keep in cache.
+     * Defaults to <code>1024</code>.
+     *
+     * @param cacheSize the maximum number of cached ACLs
+     */
+    public synchronized void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        compile();
+    }
+
+    public synchronized void register(AuthorizationEntry entry, Map<String,?> props) {
         authorizationEntries.add(entry);
         Collections.sort(authorizationEntries, comparator);
-        cache.clear();
+        compile();
     }
 
-    public void unregister(AuthorizationEntry entry, Map<String,?> props) {
+    public synchronized void unregister(AuthorizationEntry entry, Map<String,?> props) {
         try {
             authorizationEntries.remove(entry);
         } catch (Exception e) {
@@ -76,50 +101,125 @@ public class DefaultAuthorizationService implements AuthorizationService {
             logger.debug("Exception occurred while unregistering AuthorizationEntry service.", e);
         }
         Collections.sort(authorizationEntries, comparator);
-        cache.clear();
+        compile();
     }
 
     public Set<GroupPrincipal> getAcls(String endpoint, QName operation) {
-    	StringTokenizer token = new StringTokenizer(endpoint, "|");
-    	endpoint = token.nextToken();
-    	String key = endpoint + "|" + (operation != null ? operation.toString() : "");
-        if (token.hasMoreTokens()) {
-        	endpoint = token.nextToken();
-        }
-        Set<GroupPrincipal> acls = cache.get(key);
+        String key = operation != null ? endpoint + "|" + operation : endpoint;
+        CompiledEntries compiled = compiledEntries;
+        Set<GroupPrincipal> acls = compiled.cache.get(key);
         if (acls == null) {
+            StringTokenizer token = new StringTokenizer(endpoint, "|");
+            endpoint = token.nextToken();
+            if (token.hasMoreTokens()) {
+                endpoint = token.nextToken();
+            }
             acls = new HashSet<GroupPrincipal>();
-            for (AuthorizationEntry entry : authorizationEntries) {
-                if (match(entry, endpoint, operation)) {
-                    if (AuthorizationEntry.Type.Add == entry.getType()) {
-                        acls.addAll(entry.getAcls());
-                    } else if (AuthorizationEntry.Type.Set == entry.getType()) {
+            for (CompiledEntry entry : compiled.entries) {
+                if (match(entry.entry, endpoint, operation)) {
+                    if (AuthorizationEntry.Type.Add == entry.type) {
+                        acls.addAll(entry.acls);
+                    } else if (AuthorizationEntry.Type.Set == entry.type) {
                         acls.clear();
-                        acls.addAll(entry.getAcls());
-                    } else if (AuthorizationEntry.Type.Remove == entry.getType()) {
-                        acls.removeAll(entry.getAcls());
+                        acls.addAll(entry.acls);
+                    } else if (AuthorizationEntry.Type.Remove == entry.type) {
+                        acls.removeAll(entry.acls);
                     }
                 }
             }
-            cache.put(key, acls);
+            acls = Collections.unmodifiableSet(acls);
+            compiled.cache.put(key, acls);
         }
         return acls;
     }
 
+    /**
+     * Check if the given entry applies to the endpoint and operation.
+     * The default implementation uses the patterns compiled when the
+     * entry has been registered.
+     *
+     * @param entry the authorization entry
+     * @param endpoint the endpoint name
+     * @param operation the operation, may be <code>null</code>
+     * @return <code>true</code> if the entry applies
+     */
     protected boolean match(AuthorizationEntry entry, String endpoint, QName operation) {
-        return match(entry.getEndpoint(), endpoint)
-            && (entry.getOperation() == null || operation == null || match(entry.getOperation(), operation));
+        CompiledEntry compiled = compiledEntries.index.get(entry);
+        if (compiled == null) {
+            compiled = new CompiledEntry(entry);
+        }
+        return compiled.matches(endpoint, operation);
+    }
+
+    /*
+     * Compile the patterns of the registered entries.  The cached ACLs are
+     * discarded along with the previous entries.
+     */
+    private void compile() {
+        List<CompiledEntry> entries = new ArrayList<CompiledEntry>(authorizationEntries.size());
+        for (AuthorizationEntry entry : authorizationEntries) {
+            entries.add(new CompiledEntry(entry));
+        }
+        compiledEntries = new CompiledEntries(entries.toArray(new CompiledEntry[entries.size()]), cacheSize);
     }
 
-    private boolean match(QName acl, QName target) {
-        return match(acl.getNamespaceURI(), target.getNamespaceURI())
-            && match(acl.getLocalPart(), target.getLocalPart());
+    private static Pattern compile(String acl) {
+        return acl == null || acl.equals("*") ? null : Pattern.compile(acl);
     }
 
-    private boolean match(String acl, String target) {
-        return acl == null
-            || acl.equals("*")
-            || Pattern.matches(acl, target);
+    private static boolean match(Pattern acl, String target) {
+        return acl == null || acl.matcher(target).matches();
+    }
+
+    /**
+     * The compiled entries and the ACLs computed from them.
+     */
+    private static class CompiledEntries {
+
+        private final CompiledEntry[] entries;
+        private final Map<AuthorizationEntry, CompiledEntry> index;
+        private final BoundedCache<String, Set<GroupPrincipal>> cache;
+
+        public CompiledEntries(CompiledEntry[] entries, int cacheSize) {
+            this.entries = entries;
+            this.index = new IdentityHashMap<AuthorizationEntry, CompiledEntry>();
+            for (CompiledEntry entry : entries) {
+                this.index.put(entry.entry, entry);
+            }
+            this.cache = new BoundedCache<String, Set<GroupPrincipal>>(cacheSize);
+        }
+    }
+
+    /**
+     * An authorization entry along with its compiled patterns.
+     */
+    private static class CompiledEntry {
+
+        private final AuthorizationEntry entry;
+        private final AuthorizationEntry.Type type;
+        private final Set<GroupPrincipal> acls;
+        private final Pattern endpoint;
+        private final boolean anyOperation;
+        private final Pattern namespace;
+        private final Pattern localPart;
+
+        public CompiledEntry(AuthorizationEntry entry) {
+            this.entry = entry;
+            this.type = entry.getType();
+            this.acls = entry.getAcls();
+            this.endpoint = compile(entry.getEndpoint());
+            QName operation = entry.getOperation();
+            this.anyOperation = operation == null;
+            this.namespace = operation != null ? compile(operation.getNamespaceURI()) : null;
+            this.localPart = operation != null ? compile(operation.getLocalPart()) : null;
+        }
+
+        public boolean matches(String endpoint, QName operation) {
+            return match(this.endpoint, endpoint)
+                && (anyOperation || operation == null
+                    || (match(namespace, operation.getNamespaceURI())
+                        && match(localPart, operation.getLocalPart())));
+        }
     }
 
 }
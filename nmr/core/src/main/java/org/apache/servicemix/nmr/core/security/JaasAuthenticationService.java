@@ -17,9 +17,19 @@
 package org.apache.servicemix.nmr.core.security;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.ObjectName;
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
@@ -30,20 +40,151 @@ import javax.security.auth.login.LoginContext;
 
 import org.apache.servicemix.nmr.api.security.AuthenticationService;
 import org.apache.servicemix.nmr.api.security.CertificateCallback;
+import org.apache.servicemix.nmr.core.util.BoundedCache;
+import org.fusesource.commons.management.ManagementStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * An implementation of the AuthenticationService based on JAAS.
+ *
+ * Successful logins can be cached for a configurable time to live, so that
+ * the JAAS login modules are not invoked again for the same user and
+ * credentials.  The cache is keyed by domain, user and a salted digest of
+ * the credentials, and the principals and credentials added by the login
+ * modules are copied into the subject to populate.  The cache is disabled
+ * by default.
  */
-public class JaasAuthenticationService implements AuthenticationService {
+public class JaasAuthenticationService implements AuthenticationService, JaasAuthenticationServiceMBean {
+
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    private static final byte[] SALT = new byte[16];
+
+    static {
+        new SecureRandom().nextBytes(SALT);
+    }
 
     private final Logger logger = LoggerFactory.getLogger(JaasAuthenticationService.class);
 
+    private long cacheTimeToLive;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private volatile BoundedCache<CacheKey, CachedSubject> cache = new BoundedCache<CacheKey, CachedSubject>(cacheSize);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private ManagementStrategy managementStrategy;
+    private ObjectName objectName;
+
+    public long getCacheTimeToLive() {
+        return cacheTimeToLive;
+    }
+
+    /**
+     * Set the time in milliseconds an authenticated subject is kept in cache.
+     * Defaults to <code>0</code>, which disables the cache.
+     *
+     * @param cacheTimeToLive the time to live of cached subjects
+     */
+    public void setCacheTimeToLive(long cacheTimeToLive) {
+        this.cacheTimeToLive = cacheTimeToLive;
+        invalidateCache();
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Set the maximum number of subjects kept in cache.
+     * Defaults to <code>1000</code>.
+     *
+     * @param cacheSize the maximum number of cached subjects
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        this.cache = new BoundedCache<CacheKey, CachedSubject>(cacheSize);
+    }
+
+    public int getCachedSubjectCount() {
+        return cache.size();
+    }
+
+    public long getCacheHitCount() {
+        return hits.get();
+    }
+
+    public long getCacheMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Discard all cached subjects, so that the next authentications
+     * go through the JAAS login modules again.
+     */
+    public void invalidateCache() {
+        cache.clear();
+    }
+
+    /**
+     * A JAAS realm has been registered.  The cache is invalidated
+     * as the users known by this domain may have changed.
+     */
+    public void realmRegistered(Object realm, Map<String, ?> properties) {
+        invalidateCache();
+    }
+
+    /**
+     * A JAAS realm has been unregistered.  The cache is invalidated
+     * as the users known by this domain may have changed.
+     */
+    public void realmUnregistered(Object realm, Map<String, ?> properties) {
+        invalidateCache();
+    }
+
+    public ManagementStrategy getManagementStrategy() {
+        return managementStrategy;
+    }
+
+    public void setManagementStrategy(ManagementStrategy managementStrategy) {
+        this.managementStrategy = managementStrategy;
+    }
+
+    public void init() throws Exception {
+        if (managementStrategy != null) {
+            String domain = managementStrategy.getManagedObjectName(null, null, String.class);
+            objectName = new ObjectName(domain + ":Type=AuthenticationService,Name=JAAS");
+            managementStrategy.manageNamedObject(this, objectName);
+        }
+    }
+
+    public void destroy() throws Exception {
+        if (managementStrategy != null && objectName != null) {
+            managementStrategy.unmanageNamedObject(objectName);
+            objectName = null;
+        }
+    }
+
     public void authenticate(Subject subject,
                              String domain,
                              final String user,
                              final Object credentials) throws GeneralSecurityException {
+        CacheKey key = null;
+        if (cacheTimeToLive > 0 && !subject.isReadOnly()) {
+            key = getCacheKey(domain, user, credentials);
+            if (key != null) {
+                CachedSubject cached = cache.get(key);
+                if (cached != null) {
+                    if (cached.expires > System.currentTimeMillis()) {
+                        logger.debug("Authenticated '{}' from cache", user);
+                        hits.incrementAndGet();
+                        cached.populate(subject);
+                        return;
+                    }
+                    cache.remove(key);
+                }
+                misses.incrementAndGet();
+            }
+        }
         logger.debug("Authenticating '{}' with '{}'", user, credentials);
         LoginContext loginContext = new LoginContext(domain, subject, new CallbackHandler() {
             public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
@@ -60,7 +201,103 @@ public class JaasAuthenticationService implements AuthenticationService {
                 }
             }
         });
+        CachedSubject before = key != null ? new CachedSubject(subject, 0) : null;
         loginContext.login();
+        if (key != null) {
+            // only cache what the login modules added, not what the caller already had
+            CachedSubject added = new CachedSubject(subject, System.currentTimeMillis() + cacheTimeToLive);
+            added.removeAll(before);
+            cache.put(key, added);
+        }
+    }
+
+    /*
+     * Build the cache key for the given user, or null if the credentials can not be cached
+     */
+    private CacheKey getCacheKey(String domain, String user, Object credentials) throws GeneralSecurityException {
+        byte[] data;
+        if (credentials instanceof String) {
+            try {
+                data = ((String) credentials).getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        } else if (credentials instanceof X509Certificate) {
+            data = ((X509Certificate) credentials).getEncoded();
+        } else {
+            return null;
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(SALT);
+        return new CacheKey(domain, user, digest.digest(data));
+    }
+
+    /**
+     * The key of a cached subject
+     */
+    private static class CacheKey {
+
+        private final String domain;
+        private final String user;
+        private final byte[] digest;
+        private final int hash;
+
+        public CacheKey(String domain, String user, byte[] digest) {
+            this.domain = domain;
+            this.user = user;
+            this.digest = digest;
+            int h = domain != null ? domain.hashCode() : 0;
+            h = 31 * h + (user != null ? user.hashCode() : 0);
+            this.hash = 31 * h + Arrays.hashCode(digest);
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return hash == that.hash
+                    && (domain != null ? domain.equals(that.domain) : that.domain == null)
+                    && (user != null ? user.equals(that.user) : that.user == null)
+                    && Arrays.equals(digest, that.digest);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The principals and credentials of a successfully authenticated subject
+     */
+    private static class CachedSubject {
+
+        private final Set<Principal> principals;
+        private final Set<Object> publicCredentials;
+        private final Set<Object> privateCredentials;
+        private final long expires;
+
+        public CachedSubject(Subject subject, long expires) {
+            this.principals = new HashSet<Principal>(subject.getPrincipals());
+            this.publicCredentials = new HashSet<Object>(subject.getPublicCredentials());
+            this.privateCredentials = new HashSet<Object>(subject.getPrivateCredentials());
+            this.expires = expires;
+        }
+
+        public void removeAll(CachedSubject other) {
+            principals.removeAll(other.principals);
+            publicCredentials.removeAll(other.publicCredentials);
+            privateCredentials.removeAll(other.privateCredentials);
+        }
+
+        public void populate(Subject subject) {
+            subject.getPrincipals().addAll(principals);
+            subject.getPublicCredentials().addAll(publicCredentials);
+            subject.getPrivateCredentials().addAll(privateCredentials);
+        }
     }
 
 }
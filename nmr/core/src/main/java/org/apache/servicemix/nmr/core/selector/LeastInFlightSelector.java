@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.selector;
+
+import java.util.List;
+
+import org.apache.servicemix.nmr.api.internal.EndpointSelector;
+import org.apache.servicemix.nmr.api.internal.InternalChannel;
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.apache.servicemix.nmr.core.ChannelImpl;
+
+/**
+ * An {@link EndpointSelector} that chooses the endpoint which currently
+ * has the smallest number of exchanges being processed, as reported by
+ * {@link ChannelImpl#getInFlightCount()}.  Ties are resolved by taking
+ * the first endpoint in the list.
+ */
+public class LeastInFlightSelector implements EndpointSelector {
+
+    public int select(InternalExchange exchange, List<InternalEndpoint> endpoints) {
+        int selected = 0;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < endpoints.size(); i++) {
+            int count = getInFlightCount(endpoints.get(i));
+            if (count < min) {
+                min = count;
+                selected = i;
+            }
+        }
+        return selected;
+    }
+
+    protected int getInFlightCount(InternalEndpoint endpoint) {
+        InternalChannel channel = endpoint.getChannel();
+        if (channel instanceof ChannelImpl) {
+            return ((ChannelImpl) channel).getInFlightCount();
+        }
+        return 0;
+    }
+
+    public String toString() {
+        return "LeastInFlightSelector";
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.selector;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.servicemix.nmr.api.internal.EndpointSelector;
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
+
+/**
+ * An {@link EndpointSelector} that randomly chooses one of the matching endpoints.
+ */
+public class RandomSelector implements EndpointSelector {
+
+    private final Random random = new Random();
+
+    public int select(InternalExchange exchange, List<InternalEndpoint> endpoints) {
+        return random.nextInt(endpoints.size());
+    }
+
+    public String toString() {
+        return "RandomSelector";
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.selector;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+import org.w3c.dom.Document;
+
+import org.apache.servicemix.nmr.api.EndpointRegistry;
+import org.apache.servicemix.nmr.api.Reference;
+import org.apache.servicemix.nmr.api.internal.EndpointSelector;
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+import org.apache.servicemix.nmr.api.internal.InternalReference;
+
+/**
+ * A reference that uses a given {@link EndpointSelector} to choose
+ * between the endpoints matched by another reference.
+ *
+ * <code><pre>
+ *     Reference ref = registry.lookup(props);
+ *     exchange.setTarget(new SelectingReference(ref, new RoundRobinSelector()));
+ * </pre></code>
+ *
+ * Selectors are local to this NMR instance, so only the wrapped reference
+ * is serialized.
+ */
+public class SelectingReference implements InternalReference, Serializable {
+
+    private final InternalReference reference;
+    private final EndpointSelector selector;
+
+    public SelectingReference(Reference reference, EndpointSelector selector) {
+        this.reference = (InternalReference) reference;
+        this.selector = selector;
+    }
+
+    public InternalReference getReference() {
+        return reference;
+    }
+
+    public EndpointSelector getSelector() {
+        return selector;
+    }
+
+    public Iterable<InternalEndpoint> choose(EndpointRegistry registry) {
+        return reference.choose(registry);
+    }
+
+    public Document toXml() {
+        return reference.toXml();
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return reference;
+    }
+
+    public String toString() {
+        return "SelectingReference[" + reference + ", " + selector + "]";
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.selector;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.servicemix.nmr.api.internal.EndpointSelector;
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
+
+/**
+ * An {@link EndpointSelector} that randomly chooses an endpoint with
+ * a probability proportional to its weight.
+ *
+ * The weight is read from the {@link #WEIGHT} endpoint meta-data and
+ * defaults to <code>1</code>.  Endpoints with a zero weight will only
+ * be used if all the other endpoints can not handle the exchange.
+ */
+public class WeightedSelector implements EndpointSelector {
+
+    /**
+     * Meta-data key for the weight of an endpoint
+     */
+    public static final String WEIGHT = "WEIGHT";
+
+    private final Random random = new Random();
+
+    public int select(InternalExchange exchange, List<InternalEndpoint> endpoints) {
+        int total = 0;
+        for (InternalEndpoint endpoint : endpoints) {
+            total += getWeight(endpoint);
+        }
+        if (total <= 0) {
+            return 0;
+        }
+        int value = random.nextInt(total);
+        for (int i = 0; i < endpoints.size(); i++) {
+            value -= getWeight(endpoints.get(i));
+            if (value < 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    protected int getWeight(InternalEndpoint endpoint) {
+        Object weight = endpoint.getMetaData().get(WEIGHT);
+        if (weight instanceof Number) {
+            return Math.max(0, ((Number) weight).intValue());
+        } else if (weight instanceof String) {
+            try {
+                return Math.max(0, Integer.parseInt((String) weight));
+            } catch (NumberFormatException e) {
+                // use the default weight
+            }
+        }
+        return 1;
+    }
+
+    public String toString() {
+        return "WeightedSelector";
+    }
+}
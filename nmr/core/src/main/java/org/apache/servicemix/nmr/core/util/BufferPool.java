@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed size byte buffers used to cache message contents.
+ */
+public final class BufferPool {
+
+    public static final int CHUNK_SIZE = 8192;
+
+    public static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final Queue<byte[]> CHUNKS = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger SIZE = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Retrieve a buffer of {@link #CHUNK_SIZE} bytes from the pool,
+     * or a new one if the pool is empty.
+     */
+    public static byte[] acquire() {
+        byte[] chunk = CHUNKS.poll();
+        if (chunk != null) {
+            SIZE.decrementAndGet();
+            return chunk;
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Give a buffer back to the pool.  The buffer must not be used anymore
+     * by the caller.
+     */
+    public static void release(byte[] chunk) {
+        if (chunk != null && chunk.length == CHUNK_SIZE && SIZE.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+            CHUNKS.offer(chunk);
+        } else if (chunk != null && chunk.length == CHUNK_SIZE) {
+            SIZE.decrementAndGet();
+        }
+    }
+
+    static int size() {
+        return SIZE.get();
+    }
+}
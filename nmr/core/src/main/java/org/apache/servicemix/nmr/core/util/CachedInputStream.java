@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A re-readable input stream over the content cached by a {@link CachedOutputStream},
+ * either in pooled chunks of memory or in a temporary file.
+ *
+ * Like a {@link java.io.ByteArrayInputStream}, the stream supports marking, is reset
+ * to its beginning when no mark has been set, and closing it does not discard its
+ * content.  The content is discarded using {@link #dispose()}, which gives the
+ * chunks back to the pool or deletes the temporary file.
+ *
+ * Cached message bodies are usually shared by copies of the exchange and are
+ * not disposed explicitly: temporary files of content which is not referenced
+ * anymore are deleted when the next content is spilled to disk, so their
+ * number is bounded by the number of live contents.
+ */
+public class CachedInputStream extends InputStream {
+
+    private final Content content;
+    private long position;
+    private long mark;
+    private InputStream fileStream;
+
+    CachedInputStream(byte[][] chunks, long length, File file) {
+        this(new Content(chunks, length, file));
+    }
+
+    private CachedInputStream(Content content) {
+        this.content = content;
+    }
+
+    /**
+     * Create a new stream reading the same content from its beginning,
+     * independently of this one.
+     */
+    public CachedInputStream newInputStream() {
+        return new CachedInputStream(content);
+    }
+
+    /**
+     * @return the length of the content in bytes
+     */
+    public long length() {
+        return content.length;
+    }
+
+    /**
+     * @return <code>true</code> if the content has been written to a temporary file
+     */
+    public boolean isSpilled() {
+        return content.file != null;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        content.checkAvailable();
+        if (position >= content.length) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        len = (int) Math.min(len, content.length - position);
+        int n;
+        if (content.file != null) {
+            if (fileStream == null) {
+                fileStream = new FileInputStream(content.file);
+                skipFully(fileStream, position);
+            }
+            n = fileStream.read(b, off, len);
+            if (n < 0) {
+                return -1;
+            }
+        } else {
+            // the chunks can not go back to the pool while they are being copied
+            byte[][] chunks = content.enter();
+            try {
+                n = 0;
+                while (n < len) {
+                    int index = (int) ((position + n) / BufferPool.CHUNK_SIZE);
+                    int offset = (int) ((position + n) % BufferPool.CHUNK_SIZE);
+                    int count = Math.min(len - n, BufferPool.CHUNK_SIZE - offset);
+                    System.arraycopy(chunks[index], offset, b, off + n, count);
+                    n += count;
+                }
+            } finally {
+                content.exit();
+            }
+        }
+        position += n;
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, content.length - position));
+        if (fileStream != null) {
+            skipFully(fileStream, skipped);
+        }
+        position += skipped;
+        return skipped;
+    }
+
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, content.length - position);
+    }
+
+    public boolean markSupported() {
+        return true;
+    }
+
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    public synchronized void reset() throws IOException {
+        if (fileStream != null && mark != position) {
+            fileStream.close();
+            fileStream = null;
+        }
+        position = mark;
+    }
+
+    /**
+     * Release the file handle, if any.  The content can still be read afterwards.
+     */
+    public void close() throws IOException {
+        if (fileStream != null) {
+            fileStream.close();
+            fileStream = null;
+        }
+    }
+
+    /**
+     * Discard the cached content.  The content can not be read anymore,
+     * using this stream or any stream created by {@link #newInputStream()}.
+     * The memory chunks are given back to the pool once the reads in progress
+     * on other threads have completed.
+     */
+    public void dispose() {
+        try {
+            close();
+        } catch (IOException e) {
+            // ignore
+        }
+        content.dispose();
+    }
+
+    private static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Unable to skip cached content");
+            }
+            n -= skipped;
+        }
+    }
+
+    public String toString() {
+        return "CachedInputStream[length=" + content.length + (content.file != null ? ", file=" + content.file : "") + "]";
+    }
+
+    /**
+     * The content shared by the streams created from the same cache
+     */
+    private static class Content {
+
+        private static final ReferenceQueue<Content> QUEUE = new ReferenceQueue<Content>();
+        private static final Map<FileReference, Boolean> FILES = new ConcurrentHashMap<FileReference, Boolean>();
+
+        private byte[][] chunks;
+        private final long length;
+        private final File file;
+        private final FileReference reference;
+        private volatile boolean disposed;
+        private int readers;
+
+        Content(byte[][] chunks, long length, File file) {
+            this.chunks = chunks;
+            this.length = length;
+            this.file = file;
+            if (file != null) {
+                FileReference.clean();
+                reference = new FileReference(this, file);
+                FILES.put(reference, Boolean.TRUE);
+            } else {
+                reference = null;
+            }
+        }
+
+        void checkAvailable() throws IOException {
+            if (disposed) {
+                throw new IOException("Cached content has been disposed");
+            }
+        }
+
+        /*
+         * Start copying from the chunks, which are not released until exit() is called
+         */
+        synchronized byte[][] enter() throws IOException {
+            checkAvailable();
+            readers++;
+            return chunks;
+        }
+
+        synchronized void exit() {
+            if (--readers == 0 && disposed) {
+                releaseChunks();
+            }
+        }
+
+        synchronized void dispose() {
+            if (!disposed) {
+                disposed = true;
+                if (readers == 0) {
+                    releaseChunks();
+                }
+                if (reference != null) {
+                    FILES.remove(reference);
+                    reference.clear();
+                    file.delete();
+                }
+            }
+        }
+
+        private void releaseChunks() {
+            for (byte[] chunk : chunks) {
+                BufferPool.release(chunk);
+            }
+            chunks = new byte[0][];
+        }
+    }
+
+    /**
+     * Deletes the temporary file of a content once it has been garbage collected
+     */
+    private static class FileReference extends PhantomReference<Content> {
+
+        private final File file;
+
+        FileReference(Content content, File file) {
+            super(content, Content.QUEUE);
+            this.file = file;
+        }
+
+        static void clean() {
+            Reference<? extends Content> ref;
+            while ((ref = Content.QUEUE.poll()) != null) {
+                FileReference fr = (FileReference) ref;
+                if (Content.FILES.remove(fr) != null) {
+                    fr.file.delete();
+                }
+            }
+        }
+    }
+}
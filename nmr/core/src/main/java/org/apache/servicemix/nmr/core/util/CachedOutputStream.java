@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output stream caching its content in pooled chunks of memory, which
+ * spills to a temporary file once the content grows over a given threshold.
+ * The content can then be read as many times as needed using
+ * {@link #getInputStream()}.
+ *
+ * The default threshold and the directory of the temporary files can be set
+ * using the <code>servicemix.nmr.streamCacheThreshold</code> and
+ * <code>servicemix.nmr.streamCacheDirectory</code> system properties.
+ * Temporary files are deleted when the content is disposed, or after the
+ * content has been garbage collected (see {@link CachedInputStream}).
+ */
+public class CachedOutputStream extends OutputStream {
+
+    public static final String SYSTEM_PROPERTY_THRESHOLD = "servicemix.nmr.streamCacheThreshold";
+
+    public static final String SYSTEM_PROPERTY_DIRECTORY = "servicemix.nmr.streamCacheDirectory";
+
+    public static final long DEFAULT_THRESHOLD = 512 * 1024;
+
+    private static volatile long defaultThreshold = Long.getLong(SYSTEM_PROPERTY_THRESHOLD, DEFAULT_THRESHOLD);
+
+    private final long threshold;
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private long length;
+    private File file;
+    private OutputStream fileStream;
+    private CachedInputStream result;
+
+    public CachedOutputStream() {
+        this(defaultThreshold);
+    }
+
+    /**
+     * @param threshold the size in bytes above which the content is written to a temporary file
+     */
+    public CachedOutputStream(long threshold) {
+        this.threshold = threshold;
+    }
+
+    public static long getDefaultThreshold() {
+        return defaultThreshold;
+    }
+
+    /**
+     * Set the size in bytes above which the content of new streams is written
+     * to a temporary file.  Defaults to 512 KB.
+     */
+    public static void setDefaultThreshold(long threshold) {
+        defaultThreshold = threshold;
+    }
+
+    public long size() {
+        return length;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (fileStream == null && length >= threshold) {
+            spill();
+        }
+        if (fileStream != null) {
+            fileStream.write(b);
+        } else {
+            int offset = (int) (length % BufferPool.CHUNK_SIZE);
+            if (offset == 0) {
+                chunks.add(BufferPool.acquire());
+            }
+            chunks.get(chunks.size() - 1)[offset] = (byte) b;
+        }
+        length++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (fileStream == null && length + len > threshold) {
+            spill();
+        }
+        if (fileStream != null) {
+            fileStream.write(b, off, len);
+            length += len;
+            return;
+        }
+        while (len > 0) {
+            int offset = (int) (length % BufferPool.CHUNK_SIZE);
+            if (offset == 0) {
+                chunks.add(BufferPool.acquire());
+            }
+            int n = Math.min(len, BufferPool.CHUNK_SIZE - offset);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), offset, n);
+            off += n;
+            len -= n;
+            length += n;
+        }
+    }
+
+    /**
+     * Read the whole input stream directly into the cache, without
+     * any intermediate buffer.  The input stream is not closed.
+     *
+     * @param is the stream to read
+     * @return the number of bytes read
+     */
+    public long readFrom(InputStream is) throws IOException {
+        checkOpen();
+        long start = length;
+        while (true) {
+            if (fileStream == null && length >= threshold) {
+                spill();
+            }
+            if (fileStream != null) {
+                byte[] buffer = BufferPool.acquire();
+                try {
+                    int n;
+                    while ((n = is.read(buffer)) >= 0) {
+                        fileStream.write(buffer, 0, n);
+                        length += n;
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+                return length - start;
+            }
+            int offset = (int) (length % BufferPool.CHUNK_SIZE);
+            if (offset == 0) {
+                chunks.add(BufferPool.acquire());
+            }
+            int n = is.read(chunks.get(chunks.size() - 1), offset, BufferPool.CHUNK_SIZE - offset);
+            if (n < 0) {
+                if (offset == 0) {
+                    BufferPool.release(chunks.remove(chunks.size() - 1));
+                }
+                return length - start;
+            }
+            length += n;
+        }
+    }
+
+    public void flush() throws IOException {
+        if (fileStream != null) {
+            fileStream.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        if (fileStream != null) {
+            fileStream.close();
+            fileStream = null;
+        }
+        if (result == null) {
+            result = new CachedInputStream(chunks.toArray(new byte[chunks.size()][]), length, file);
+        }
+    }
+
+    /**
+     * Close this stream and give access to its content.  The returned stream
+     * can be read several times using {@link java.io.InputStream#reset()}
+     * or {@link CachedInputStream#newInputStream()}.
+     *
+     * @return the cached content
+     */
+    public CachedInputStream getInputStream() throws IOException {
+        close();
+        return result;
+    }
+
+    private void checkOpen() throws IOException {
+        if (result != null) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /*
+     * Move the in-memory content to a temporary file and give the chunks back to the pool
+     */
+    private void spill() throws IOException {
+        String dir = System.getProperty(SYSTEM_PROPERTY_DIRECTORY);
+        file = File.createTempFile("smx-cache", ".tmp", dir != null ? new File(dir) : null);
+        fileStream = new BufferedOutputStream(new FileOutputStream(file), BufferPool.CHUNK_SIZE);
+        long remaining = length;
+        for (byte[] chunk : chunks) {
+            int n = (int) Math.min(remaining, chunk.length);
+            fileStream.write(chunk, 0, n);
+            remaining -= n;
+            BufferPool.release(chunk);
+        }
+        chunks.clear();
+    }
+}
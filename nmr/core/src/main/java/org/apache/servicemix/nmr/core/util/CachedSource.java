@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A JAXP {@link javax.xml.transform.Source Source} over content cached by a
+ * {@link CachedOutputStream}, which can be read as many times as required.
+ * Each call to {@link #getInputStream()} returns a new stream positioned at
+ * the beginning of the content.
+ * When serialized, this source is replaced by a {@link StringSource},
+ * decoded using the encoding of the document.
+ */
+public class CachedSource extends StreamSource implements Serializable {
+
+    private static final long serialVersionUID = 4283745926513296370L;
+
+    private final CachedInputStream content;
+
+    public CachedSource(CachedInputStream content) {
+        this.content = content;
+    }
+
+    public CachedSource(CachedInputStream content, String systemId) {
+        this(content);
+        setSystemId(systemId);
+    }
+
+    public InputStream getInputStream() {
+        return content.newInputStream();
+    }
+
+    public CachedInputStream getContent() {
+        return content;
+    }
+
+    /**
+     * Discard the cached content.
+     */
+    public void dispose() {
+        content.dispose();
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        try {
+            byte[] buffer = new byte[(int) content.length()];
+            InputStream is = content.newInputStream();
+            int offset = 0;
+            while (offset < buffer.length) {
+                int nb = is.read(buffer, offset, buffer.length - offset);
+                if (nb < 0) {
+                    break;
+                }
+                offset += nb;
+            }
+            String encoding = getEncoding(buffer, offset);
+            int start = 0;
+            if (encoding.startsWith("UTF-16") && offset >= 2
+                    && ((buffer[0] == (byte) 0xFE && buffer[1] == (byte) 0xFF)
+                        || (buffer[0] == (byte) 0xFF && buffer[1] == (byte) 0xFE))) {
+                start = 2;
+            } else if (encoding.equals("UTF-8") && offset >= 3 && buffer[0] == (byte) 0xEF
+                    && buffer[1] == (byte) 0xBB && buffer[2] == (byte) 0xBF) {
+                start = 3;
+            }
+            String text = new String(buffer, start, offset - start, encoding);
+            return new StringSource(text, getSystemId(), encoding);
+        } catch (IOException e) {
+            throw new InvalidObjectException("Unable to read cached content: " + e);
+        }
+    }
+
+    /*
+     * Detect the encoding of the document from its byte order mark or its
+     * XML declaration, as described in appendix F of the XML specification
+     */
+    private static String getEncoding(byte[] buffer, int length) throws IOException {
+        if (length >= 2) {
+            int b0 = buffer[0] & 0xFF;
+            int b1 = buffer[1] & 0xFF;
+            if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0x00 && b1 == 0x3C)) {
+                return "UTF-16BE";
+            } else if ((b0 == 0xFF && b1 == 0xFE) || (b0 == 0x3C && b1 == 0x00)) {
+                return "UTF-16LE";
+            }
+        }
+        // the declaration only contains ASCII characters
+        String start = new String(buffer, 0, Math.min(length, 256), "ISO-8859-1");
+        if (start.startsWith("<?xml")) {
+            int end = start.indexOf("?>");
+            String decl = end > 0 ? start.substring(0, end) : start;
+            int idx = decl.indexOf("encoding");
+            if (idx > 0) {
+                idx = decl.indexOf('=', idx);
+                if (idx > 0) {
+                    String value = decl.substring(idx + 1).trim();
+                    if (value.length() > 0 && (value.charAt(0) == '"' || value.charAt(0) == '\'')) {
+                        int close = value.indexOf(value.charAt(0), 1);
+                        if (close > 0) {
+                            String encoding = value.substring(1, close);
+                            if (Charset.isSupported(encoding)) {
+                                return encoding;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return "UTF-8";
+    }
+
+    public String toString() {
+        return "CachedSource[length=" + content.length() + "]";
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.Writer;
+
+/**
+ * A writer keeping at most a given number of characters, used to render
+ * message contents for display.  Characters written past the limit are
+ * discarded, so that large contents can be rendered without being buffered.
+ */
+public class DisplayWriter extends Writer {
+
+    private final StringBuilder buffer;
+    private final int limit;
+    private boolean truncated;
+
+    public DisplayWriter(int limit) {
+        this.limit = limit;
+        this.buffer = new StringBuilder(Math.min(limit, 256));
+    }
+
+    public void write(char[] cbuf, int off, int len) {
+        int n = Math.min(len, limit - buffer.length());
+        if (n > 0) {
+            buffer.append(cbuf, off, n);
+        }
+        if (n < len) {
+            truncated = true;
+        }
+    }
+
+    public void write(String str, int off, int len) {
+        int n = Math.min(len, limit - buffer.length());
+        if (n > 0) {
+            buffer.append(str, off, off + n);
+        }
+        if (n < len) {
+            truncated = true;
+        }
+    }
+
+    public void write(int c) {
+        if (buffer.length() < limit) {
+            buffer.append((char) c);
+        } else {
+            truncated = true;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the limit has been reached and no more characters are accepted
+     */
+    public boolean isFull() {
+        return buffer.length() >= limit;
+    }
+
+    /**
+     * @return <code>true</code> if some characters have been discarded
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    /**
+     * @return the characters written, followed by <code>...</code> if some have been discarded
+     */
+    public String toString() {
+        return truncated ? buffer.toString() + "..." : buffer.toString();
+    }
+}
@@ -23,13 +23,13 @@ import org.apache.servicemix.nmr.api.internal.InternalExchange;
 import org.apache.servicemix.nmr.core.NmrRuntimeException;
 
 import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 import java.io.*;
 import java.util.Arrays;
+import java.util.Map;
 
 public class ExchangeUtils {
 
@@ -37,17 +37,36 @@ public class ExchangeUtils {
 
     protected static final String SYSTEM_PROPERTY_SUPPRESS_CONTENT = "servicemix.nmr.suppressContentLogging";
 
-    private static boolean suppressContent = Boolean.parseBoolean(System.getProperty(SYSTEM_PROPERTY_SUPPRESS_CONTENT, "false"));
-    
-    public static String display(Exchange exchange, boolean displayContent) {
+    private static volatile boolean suppressContent = Boolean.parseBoolean(System.getProperty(SYSTEM_PROPERTY_SUPPRESS_CONTENT, "false"));
 
-        suppressContent = Boolean.parseBoolean(System.getProperty(SYSTEM_PROPERTY_SUPPRESS_CONTENT, "false"));
+    public static boolean isSuppressContent() {
+        return suppressContent;
+    }
 
-        if (displayContent && !suppressContent) {
-            ensureReReadable(exchange);
-        }
+    /**
+     * Configure whether the content of the messages is left out when displaying
+     * exchanges.  Defaults to the value of the <code>servicemix.nmr.suppressContentLogging</code>
+     * system property when this class is loaded.
+     *
+     * @param suppress <code>true</code> to never display contents
+     */
+    public static void setSuppressContent(boolean suppress) {
+        suppressContent = suppress;
+    }
 
-        StringBuffer sb = new StringBuffer();
+    /**
+     * Render the exchange for logging purposes.  Contents are rendered up to
+     * {@link #MAX_MSG_DISPLAY_SIZE} characters each, without being fully read:
+     * streams which can not be marked are wrapped in a buffered stream so that
+     * their beginning can be read and pushed back.
+     *
+     * @param exchange the exchange to display
+     * @param displayContent <code>true</code> to display the content of the messages
+     * @return the rendered exchange
+     */
+    public static String display(Exchange exchange, boolean displayContent) {
+        boolean content = displayContent && !suppressContent;
+        StringBuilder sb = new StringBuilder(content ? 1024 : 256);
         sb.append("[\n");
         sb.append("  id:        ").append(exchange.getId()).append('\n');
         sb.append("  mep:       ").append(exchange.getPattern()).append('\n');
@@ -64,12 +83,19 @@ public class ExchangeUtils {
             for (String key : exchange.getProperties().keySet()) {
                 sb.append("      ").append(key).append(" = ");
                 Object contents = exchange.getProperty(key);
+                if (content) {
+                    Object peekable = toPeekable(contents);
+                    if (peekable != contents) {
+                        exchange.setProperty(key, peekable);
+                        contents = peekable;
+                    }
+                }
                 sb.append(convertDisplay(contents));
                 sb.append('\n');
             }
             sb.append("  ]").append('\n');
         }
-        if (displayContent && !suppressContent) {
+        if (content) {
             display(exchange, Type.In, sb);
             display(exchange, Type.Out, sb);
             display(exchange, Type.Fault, sb);
@@ -86,6 +112,12 @@ public class ExchangeUtils {
     }
 
     public static void display(Exchange exchange, Type type, StringBuffer sb) {
+        StringBuilder builder = new StringBuilder();
+        display(exchange, type, builder);
+        sb.append(builder);
+    }
+
+    private static void display(Exchange exchange, Type type, StringBuilder sb) {
         Message message = exchange.getMessage(type, false);
         if (message != null) {
             sb.append("  ").append(type).append(": [").append('\n');
@@ -93,6 +125,11 @@ public class ExchangeUtils {
             try {
                 if (message.getBody() != null) {
                     Object contents = message.getBody();
+                    Object peekable = toPeekable(contents);
+                    if (peekable != contents) {
+                        message.setBody(peekable);
+                        contents = peekable;
+                    }
                     sb.append(convertDisplay(contents));
                 } else {
                     sb.append("null");
@@ -105,6 +142,11 @@ public class ExchangeUtils {
                 sb.append("    attachments: [").append('\n');
                 for (String key : message.getAttachments().keySet()) {
                     Object contents = message.getAttachment(key);
+                    Object peekable = toPeekable(contents);
+                    if (peekable != contents) {
+                        message.addAttachment(key, peekable);
+                        contents = peekable;
+                    }
                     sb.append("      ").append(key).append(" = ").append(convertDisplay(contents)).append('\n');
                 }
                 sb.append("    ]").append('\n');
@@ -114,6 +156,11 @@ public class ExchangeUtils {
                 for (String key : message.getHeaders().keySet()) {
                     sb.append("      ").append(key).append(" = ");
                     Object contents = message.getHeader(key);
+                    Object peekable = toPeekable(contents);
+                    if (peekable != contents) {
+                        message.setHeader(key, peekable);
+                        contents = peekable;
+                    }
                     sb.append(convertDisplay(contents));
                     sb.append('\n');
                 }
@@ -123,43 +170,122 @@ public class ExchangeUtils {
         }
     }
 
+    /*
+     * Make sure the beginning of the given value can be read without consuming it
+     */
+    private static Object toPeekable(Object object) {
+        try {
+            if (object instanceof InputStream) {
+                InputStream is = (InputStream) object;
+                if (!is.markSupported()) {
+                    return new BufferedInputStream(is, MAX_MSG_DISPLAY_SIZE + 1);
+                }
+            } else if (object instanceof StreamSource
+                    && !(object instanceof StringSource) && !(object instanceof CachedSource)) {
+                StreamSource src = (StreamSource) object;
+                if (src.getInputStream() != null && !src.getInputStream().markSupported()) {
+                    StreamSource peekable = new StreamSource(
+                            new BufferedInputStream(src.getInputStream(), MAX_MSG_DISPLAY_SIZE + 1), src.getSystemId());
+                    peekable.setPublicId(src.getPublicId());
+                    return peekable;
+                } else if (src.getInputStream() == null && src.getReader() != null && !src.getReader().markSupported()) {
+                    StreamSource peekable = new StreamSource(
+                            new BufferedReader(src.getReader(), MAX_MSG_DISPLAY_SIZE + 1), src.getSystemId());
+                    peekable.setPublicId(src.getPublicId());
+                    return peekable;
+                }
+            } else if (object instanceof Source && !(object instanceof DOMSource)
+                    && !(object instanceof StringSource) && !(object instanceof CachedSource)) {
+                // other sources can only be read once
+                return convertSource((Source) object);
+            }
+        } catch (Exception e) {
+            // the value will be displayed as is
+        }
+        return object;
+    }
+
     private static String convertDisplay(Object object) {
         try {
-            String result;
-            if (object instanceof ByteArrayInputStream) {
+            DisplayWriter writer = new DisplayWriter(MAX_MSG_DISPLAY_SIZE);
+            if (object instanceof CachedInputStream) {
+                displayBytes(((CachedInputStream) object).newInputStream(), true, writer);
+            } else if (object instanceof CachedSource) {
+                displayBytes(((CachedSource) object).getInputStream(), false, writer);
+            } else if (object instanceof StringSource) {
+                writer.write(((StringSource) object).getText());
+            } else if (object instanceof InputStream && ((InputStream) object).markSupported()) {
                 InputStream is = (InputStream) object;
-                byte[] data = new byte[is.available()];
-                is.mark(0);
-                is.read(data);
-                is.reset();
-                // Heuristic to check if this is a string
-                if (isBinary(data)) {
-                    result = Arrays.toString(data);
-                } else {
-                    result = new String(data);
+                is.mark(MAX_MSG_DISPLAY_SIZE + 1);
+                try {
+                    displayBytes(is, true, writer);
+                } finally {
+                    is.reset();
+                }
+            } else if (object instanceof StreamSource
+                    && ((StreamSource) object).getInputStream() != null
+                    && ((StreamSource) object).getInputStream().markSupported()) {
+                InputStream is = ((StreamSource) object).getInputStream();
+                is.mark(MAX_MSG_DISPLAY_SIZE + 1);
+                try {
+                    displayBytes(is, false, writer);
+                } finally {
+                    is.reset();
+                }
+            } else if (object instanceof StreamSource
+                    && ((StreamSource) object).getReader() != null
+                    && ((StreamSource) object).getReader().markSupported()) {
+                Reader reader = ((StreamSource) object).getReader();
+                reader.mark(MAX_MSG_DISPLAY_SIZE + 1);
+                try {
+                    char[] data = new char[MAX_MSG_DISPLAY_SIZE + 1];
+                    int offset = 0;
+                    int n;
+                    while (offset < data.length && (n = reader.read(data, offset, data.length - offset)) >= 0) {
+                        offset += n;
+                    }
+                    writer.write(data, 0, offset);
+                } finally {
+                    reader.reset();
                 }
             } else if (object instanceof DOMSource) {
-                StringWriter buffer = new StringWriter();
-                Transformer transformer = TransformerFactory.newInstance().newTransformer();
-                transformer.transform((DOMSource) object, new StreamResult(buffer));
-                result = buffer.toString();
+                XmlUtils.transform((DOMSource) object, new StreamResult(writer));
             } else if (object instanceof InternalExchange) {
-                result = "";
+                // do not display nested exchanges
             } else if (object != null) {
-                result = object.toString();
+                writer.write(object.toString());
             } else {
-                result = "<null>";
-            }
-            // trim if too long
-            if (result.length() > MAX_MSG_DISPLAY_SIZE) {
-                result = result.substring(0, MAX_MSG_DISPLAY_SIZE) + "...";
+                writer.write("<null>");
             }
-            return result;
+            return writer.toString();
         } catch (Throwable t) {
             return "Error display value (" + t.toString() + ")";
         }
     }
 
+    /*
+     * Display the beginning of the stream, as text or as binary data
+     */
+    private static void displayBytes(InputStream is, boolean checkBinary, DisplayWriter writer) throws IOException {
+        byte[] data = new byte[MAX_MSG_DISPLAY_SIZE + 1];
+        int offset = 0;
+        int n;
+        while (offset < data.length && (n = is.read(data, offset, data.length - offset)) >= 0) {
+            offset += n;
+        }
+        if (offset < data.length) {
+            byte[] read = new byte[offset];
+            System.arraycopy(data, 0, read, 0, offset);
+            data = read;
+        }
+        // Heuristic to check if this is a string
+        if (checkBinary && isBinary(data)) {
+            writer.write(Arrays.toString(data));
+        } else {
+            writer.write(checkBinary ? new String(data) : new String(data, "UTF-8"));
+        }
+    }
+
     private static boolean isBinary(byte[] data) {
         if (data.length == 0) {
             return true;
@@ -178,9 +304,7 @@ public class ExchangeUtils {
     public static void ensureReReadable(Exchange exchange) throws NmrRuntimeException {
         try {
             if (exchange != null) {
-                for (String prop : exchange.getProperties().keySet()) {
-                    exchange.setProperty(prop, convert(exchange.getProperty(prop)));
-                }
+                ensureReReadable(exchange.getProperties());
                 ensureReReadable(exchange.getIn(false));
                 ensureReReadable(exchange.getOut(false));
                 ensureReReadable(exchange.getFault(false));
@@ -196,12 +320,8 @@ public class ExchangeUtils {
         try {
             if (message != null) {
                 message.setBody(convert(message.getBody()));
-                for (String hdr : message.getHeaders().keySet()) {
-                    message.setHeader(hdr, convert(message.getHeader(hdr)));
-                }
-                for (String id : message.getAttachments().keySet()) {
-                    message.addAttachment(id, convert(message.getAttachment(id)));
-                }
+                ensureReReadable(message.getHeaders());
+                ensureReReadable(message.getAttachments());
             }
         } catch (IOException e) {
             throw new NmrRuntimeException(e);
@@ -210,6 +330,20 @@ public class ExchangeUtils {
         }
     }
 
+    /*
+     * Only replace the values that have been converted, so that maps shared
+     * with a copy are not modified needlessly
+     */
+    private static void ensureReReadable(Map<String, Object> map) throws IOException, TransformerException {
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            Object value = e.getValue();
+            Object converted = convert(value);
+            if (converted != value) {
+                e.setValue(converted);
+            }
+        }
+    }
+
     private static Object convert(Object object) throws IOException, TransformerException {
         if (object instanceof InputStream) {
             object = convertInputStream((InputStream) object);
@@ -220,38 +354,52 @@ public class ExchangeUtils {
     }
 
     private static InputStream convertInputStream(InputStream is) throws IOException {
-        if (!(is instanceof ByteArrayInputStream)) {
-            if (!(is instanceof BufferedInputStream)) {
-                is = new BufferedInputStream(is);
+        if (!(is instanceof ByteArrayInputStream) && !(is instanceof CachedInputStream)) {
+            CachedOutputStream cache = new CachedOutputStream();
+            try {
+                cache.readFrom(is);
+            } finally {
+                is.close();
             }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[8192];
-            int len;
-            while ((len = is.read(buffer)) > 0) {
-                baos.write(buffer, 0, len);
+            CachedInputStream content = cache.getInputStream();
+            if (isSmall(content)) {
+                is = new ByteArrayInputStream(toByteArray(content));
+                content.dispose();
+            } else {
+                is = content;
             }
-            is.close();
-            is = new ByteArrayInputStream(baos.toByteArray());
         }
         return is;
     }
 
-    private static TransformerFactory transformerFactory;
-
-    private static TransformerFactory getTransformerFactory() {
-        if (transformerFactory == null) {
-            transformerFactory = TransformerFactory.newInstance();
+    private static Source convertSource(Source src) throws TransformerException, IOException {
+        if (!(src instanceof StringSource) && !(src instanceof CachedSource)) {
+            CachedOutputStream cache = new CachedOutputStream();
+            XmlUtils.write(src, cache);
+            CachedInputStream content = cache.getInputStream();
+            if (isSmall(content)) {
+                src = new StringSource(new String(toByteArray(content), "UTF-8"));
+                content.dispose();
+            } else {
+                src = new CachedSource(content);
+            }
         }
-        return transformerFactory;
+        return src;
     }
 
-    private static Source convertSource(Source src) throws TransformerException {
-        if (!(src instanceof StringSource)) {
-            StringWriter writer = new StringWriter();
-            StreamResult result = new StreamResult(writer);
-            getTransformerFactory().newTransformer().transform(src, result);
-            return new StringSource(writer.toString());
+    /*
+     * Contents fitting in a single chunk are simply kept in a byte array
+     */
+    private static boolean isSmall(CachedInputStream content) {
+        return !content.isSpilled() && content.length() <= BufferPool.CHUNK_SIZE;
+    }
+
+    private static byte[] toByteArray(CachedInputStream content) throws IOException {
+        byte[] data = new byte[(int) content.length()];
+        int offset = 0;
+        while (offset < data.length) {
+            offset += content.read(data, offset, data.length - offset);
         }
-        return src;
+        return data;
     }
 }
@@ -0,0 +1,449 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.servicemix.nmr.api.PropertyKey;
+
+/**
+ * A compact map used to store exchange properties and message headers.
+ *
+ * Exchanges usually carry only a handful of properties, so entries are kept
+ * in small parallel arrays along with the hash of their names and looked up
+ * linearly: names are compared by identity first, which is the common case
+ * when {@link PropertyKey}s or string constants are used.  The map switches
+ * to a plain {@link HashMap} when it grows beyond {@link #MAX_COMPACT_SIZE}
+ * entries.
+ *
+ * Copies created using {@link #PropertyMap(Map)} from another property map
+ * share its storage until one of them is modified, so copying exchanges and
+ * messages is cheap when the copy is only read.  Both maps are flagged as
+ * shared and copy the storage before modifying it in place.  As the source
+ * map is flagged by the copy constructor, a map must only be copied by the
+ * thread that owns it, or while it is not being modified: the resulting copy
+ * can then be handed to another thread safely.
+ *
+ * Property maps are serialized as plain {@link HashMap}s, so that nodes
+ * which do not know this class can still read serialized exchanges.
+ *
+ * This map is not thread safe.
+ */
+public class PropertyMap extends AbstractMap<String, Object> implements Serializable {
+
+    public static final int MAX_COMPACT_SIZE = 8;
+
+    private static final long serialVersionUID = -2947214826424316421L;
+
+    private String[] names;
+    private int[] hashes;
+    private Object[] values;
+    private int size;
+    private HashMap<String, Object> map;
+    private transient volatile boolean shared;
+    private transient Set<Map.Entry<String, Object>> entrySet;
+
+    public PropertyMap() {
+    }
+
+    /**
+     * Create a copy of the given map.  If it is a property map, its storage
+     * is shared with the copy, so it must not be modified concurrently.
+     *
+     * @param other the map to copy
+     */
+    public PropertyMap(Map<String, Object> other) {
+        if (other instanceof PropertyMap) {
+            PropertyMap pm = (PropertyMap) other;
+            if (!pm.shared) {
+                // flag the source before reading its storage so that its next write copies it
+                pm.shared = true;
+            }
+            if (pm.names != null || pm.map != null) {
+                names = pm.names;
+                hashes = pm.hashes;
+                values = pm.values;
+                size = pm.size;
+                map = pm.map;
+                shared = true;
+            }
+        } else if (other.size() > MAX_COMPACT_SIZE) {
+            map = new HashMap<String, Object>(other);
+        } else {
+            putAll(other);
+        }
+    }
+
+    /**
+     * Retrieve the value associated with the given key.
+     *
+     * @param key the key to look for
+     * @return the value or <code>null</code>
+     */
+    public Object getValue(PropertyKey<?> key) {
+        if (map != null) {
+            return map.get(key.getName());
+        }
+        int i = indexOf(key.getName(), key.hashCode());
+        return i >= 0 ? values[i] : null;
+    }
+
+    public Object putValue(PropertyKey<?> key, Object value) {
+        return put(key.getName(), key.hashCode(), value);
+    }
+
+    public Object removeValue(PropertyKey<?> key) {
+        if (shared && containsKey(key.getName())) {
+            unshare();
+        }
+        if (map != null) {
+            return map.remove(key.getName());
+        }
+        int i = indexOf(key.getName(), key.hashCode());
+        return i >= 0 ? removeAt(i) : null;
+    }
+
+    public int size() {
+        return map != null ? map.size() : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        if (map != null) {
+            return map.containsKey(key);
+        }
+        return key != null && indexOf(key, key.hashCode()) >= 0;
+    }
+
+    public Object get(Object key) {
+        if (map != null) {
+            return map.get(key);
+        }
+        if (key == null) {
+            return null;
+        }
+        int i = indexOf(key, key.hashCode());
+        return i >= 0 ? values[i] : null;
+    }
+
+    public Object put(String key, Object value) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        return put(key, key.hashCode(), value);
+    }
+
+    public Object remove(Object key) {
+        if (shared && containsKey(key)) {
+            unshare();
+        }
+        if (map != null) {
+            return map.remove(key);
+        }
+        if (key == null) {
+            return null;
+        }
+        int i = indexOf(key, key.hashCode());
+        return i >= 0 ? removeAt(i) : null;
+    }
+
+    public void clear() {
+        map = null;
+        if (shared) {
+            names = null;
+            hashes = null;
+            values = null;
+            size = 0;
+            shared = false;
+        }
+        for (int i = 0; i < size; i++) {
+            names[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new HashMap<String, Object>(this);
+    }
+
+    private int indexOf(Object name, int hash) {
+        for (int i = 0; i < size; i++) {
+            if (names[i] == name) {
+                return i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (hashes[i] == hash && names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Make sure the storage of this map is not shared with another map
+     * before modifying it.
+     */
+    private void unshare() {
+        if (shared) {
+            if (map != null) {
+                map = new HashMap<String, Object>(map);
+            } else if (names != null) {
+                String[] n = new String[MAX_COMPACT_SIZE];
+                int[] h = new int[MAX_COMPACT_SIZE];
+                Object[] v = new Object[MAX_COMPACT_SIZE];
+                System.arraycopy(names, 0, n, 0, size);
+                System.arraycopy(hashes, 0, h, 0, size);
+                System.arraycopy(values, 0, v, 0, size);
+                names = n;
+                hashes = h;
+                values = v;
+            }
+            shared = false;
+        }
+    }
+
+    private Object put(String name, int hash, Object value) {
+        unshare();
+        if (map != null) {
+            return map.put(name, value);
+        }
+        int i = indexOf(name, hash);
+        if (i >= 0) {
+            Object old = values[i];
+            values[i] = value;
+            return old;
+        }
+        if (size == MAX_COMPACT_SIZE) {
+            map = new HashMap<String, Object>();
+            for (int j = 0; j < size; j++) {
+                map.put(names[j], values[j]);
+            }
+            names = null;
+            hashes = null;
+            values = null;
+            size = 0;
+            return map.put(name, value);
+        }
+        if (names == null) {
+            names = new String[MAX_COMPACT_SIZE];
+            hashes = new int[MAX_COMPACT_SIZE];
+            values = new Object[MAX_COMPACT_SIZE];
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        values[size] = value;
+        size++;
+        return null;
+    }
+
+    private Object removeAt(int i) {
+        Object old = values[i];
+        int last = --size;
+        names[i] = names[last];
+        hashes[i] = hashes[last];
+        values[i] = values[last];
+        names[last] = null;
+        values[last] = null;
+        return old;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+
+        public Iterator<Map.Entry<String, Object>> iterator() {
+            if (map != null) {
+                return new HashEntryIterator(map.entrySet().iterator());
+            }
+            return new EntryIterator();
+        }
+
+        public int size() {
+            return PropertyMap.this.size();
+        }
+
+        public void clear() {
+            PropertyMap.this.clear();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+        private int next;
+        private int current = -1;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public Map.Entry<String, Object> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            current = next++;
+            return new Entry(current);
+        }
+
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+            // the last entry is moved into the removed slot, so visit it next
+            unshare();
+            removeAt(current);
+            next = current;
+            current = -1;
+        }
+    }
+
+    /**
+     * Iterates over the entries of the hash map, making sure that modifications
+     * do not affect another map sharing it.
+     */
+    private class HashEntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+        private final Iterator<Map.Entry<String, Object>> iterator;
+        private final HashMap<String, Object> iterated;
+        private String current;
+
+        HashEntryIterator(Iterator<Map.Entry<String, Object>> iterator) {
+            this.iterator = iterator;
+            this.iterated = map;
+        }
+
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        public Map.Entry<String, Object> next() {
+            current = iterator.next().getKey();
+            return new HashEntry(current);
+        }
+
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+            unshare();
+            if (map == iterated) {
+                iterator.remove();
+            } else {
+                // the map has been copied, the iterator still walks the original one
+                map.remove(current);
+            }
+            current = null;
+        }
+    }
+
+    private class HashEntry implements Map.Entry<String, Object> {
+
+        private final String name;
+
+        HashEntry(String name) {
+            this.name = name;
+        }
+
+        public String getKey() {
+            return name;
+        }
+
+        public Object getValue() {
+            return PropertyMap.this.get(name);
+        }
+
+        public Object setValue(Object value) {
+            return PropertyMap.this.put(name, value);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry e = (Map.Entry) o;
+            Object v = getValue();
+            return name.equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+        }
+
+        public int hashCode() {
+            Object v = getValue();
+            return name.hashCode() ^ (v == null ? 0 : v.hashCode());
+        }
+
+        public String toString() {
+            return name + "=" + getValue();
+        }
+    }
+
+    private class Entry implements Map.Entry<String, Object> {
+
+        private final String name;
+        private final int index;
+
+        Entry(int index) {
+            this.name = names[index];
+            this.index = index;
+        }
+
+        public String getKey() {
+            return name;
+        }
+
+        public Object getValue() {
+            return map == null && index < size && names[index] == name ? values[index] : PropertyMap.this.get(name);
+        }
+
+        public Object setValue(Object value) {
+            return PropertyMap.this.put(name, value);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry e = (Map.Entry) o;
+            Object v = getValue();
+            return name.equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+        }
+
+        public int hashCode() {
+            Object v = getValue();
+            return name.hashCode() ^ (v == null ? 0 : v.hashCode());
+        }
+
+        public String toString() {
+            return name + "=" + getValue();
+        }
+    }
+}
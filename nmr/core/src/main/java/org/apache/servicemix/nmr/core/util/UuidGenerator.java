@@ -16,74 +16,68 @@
  */
 package org.apache.servicemix.nmr.core.util;
 
-import java.net.ServerSocket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 
 /**
  * {@link org.apache.servicemix.nmr.core.util.UuidGenerator} which is a fast implementation based on
  * how <a href="http://activemq.apache.org/>Apache ActiveMQ</a> generates its UUID.
  * <p/>
+ * An id is made of a seed unique to this generator followed by a sequence number.
+ * Callers that do not always need the textual id can use {@link #nextSequence()}
+ * and render the id later using {@link #toId(long)}.
+ * <p/>
+ * The seed used to be built by opening a server socket and using its port, which
+ * was slow on startup.  A random number is now used instead, so that no blocking
+ * operation is performed when the class is loaded.  The generated ids keep the same
+ * format.
  */
 public class UuidGenerator {
 
-	private static final Logger LOG = LoggerFactory.getLogger(UuidGenerator.class);
-    private static final String UNIQUE_STUB;
-    private static int instanceCount;
-    private static String hostName;
-    private String seed;
-    private AtomicLong sequence = new AtomicLong(1);
-    private int length;
-    
-    private static UuidGenerator instance = null;
-    static {
-        String stub = "";
-        boolean canAccessSystemProps = true;
-        try {
-            SecurityManager sm = System.getSecurityManager();
-            if (sm != null) {
-                sm.checkPropertiesAccess();
-            }
-        } catch (SecurityException se) {
-            canAccessSystemProps = false;
-        }
+    private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger();
+
+    private final String seed;
+    private final AtomicLong sequence = new AtomicLong(1);
+    private final int length;
 
-        if (canAccessSystemProps) {
+    /**
+     * Lazily creates the shared generator and resolves the host name,
+     * which may involve a name service lookup.
+     */
+    private static final class Holder {
+        static final String HOST_NAME;
+        static final String UNIQUE_STUB;
+        static final UuidGenerator INSTANCE;
+        static {
+            String host;
             try {
-                hostName = InetAddressUtil.getLocalHostName();
-                ServerSocket ss = new ServerSocket(0);
-                stub = "-" + ss.getLocalPort() + "-" + System.currentTimeMillis() + "-";
-                Thread.sleep(100);
-                ss.close();
-            } catch (Exception ioe) {
-                LOG.warn("could not generate unique stub", ioe);
+                SecurityManager sm = System.getSecurityManager();
+                if (sm != null) {
+                    sm.checkPropertiesAccess();
+                }
+                host = InetAddressUtil.getLocalHostName();
+            } catch (Exception e) {
+                host = "localhost";
             }
-        } else {
-            hostName = "localhost";
-            stub = "-1-" + System.currentTimeMillis() + "-";
+            HOST_NAME = host;
+            Random random = new Random(System.nanoTime() ^ System.identityHashCode(Holder.class));
+            UNIQUE_STUB = "-" + (random.nextInt() & Integer.MAX_VALUE) + "-" + System.currentTimeMillis() + "-";
+            INSTANCE = new UuidGenerator("ID:" + HOST_NAME);
         }
-        UNIQUE_STUB = stub;
     }
 
     /**
      * Construct an IdGenerator
      */
     private UuidGenerator(String prefix) {
-        synchronized (UNIQUE_STUB) {
-        	int hashValue = prefix.hashCode();
-        	if (hashValue < 0) {
-        		hashValue = - hashValue;
-        	}
-            this.seed = hashValue + UNIQUE_STUB + (instanceCount++) + ":";
-            this.seed = generateSanitizedId(this.seed);
-            this.length = this.seed.length() + ("" + Long.MAX_VALUE).length();
+        int hashValue = prefix.hashCode();
+        if (hashValue < 0) {
+            hashValue = - hashValue;
         }
-    }
-
-    private UuidGenerator() {
-        this("ID:" + hostName);
+        this.seed = generateSanitizedId(hashValue + Holder.UNIQUE_STUB + INSTANCE_COUNT.getAndIncrement() + ":");
+        this.length = this.seed.length() + ("" + Long.MAX_VALUE).length();
     }
 
     /**
@@ -94,9 +88,27 @@ public class UuidGenerator {
      */
 
     public static String getHostName() {
-        return hostName;
+        return Holder.HOST_NAME;
     }
 
+    /**
+     * Reserve the next sequence number of this generator.
+     *
+     * @return a sequence number, which is always strictly positive
+     */
+    public long nextSequence() {
+        return sequence.getAndIncrement();
+    }
+
+    /**
+     * Render the unique id for a sequence number obtained from {@link #nextSequence()}
+     *
+     * @param sequence the sequence number
+     * @return the unique id
+     */
+    public String toId(long sequence) {
+        return new StringBuilder(length).append(seed).append(sequence).toString();
+    }
 
     /**
      * Generate a unqiue id
@@ -105,10 +117,7 @@ public class UuidGenerator {
      */
 
     private String generateId() {
-        StringBuilder sb = new StringBuilder(length);
-        sb.append(seed);
-        sb.append(sequence.getAndIncrement());
-        return sb.toString();
+        return toId(nextSequence());
     }
 
     /**
@@ -131,11 +140,7 @@ public class UuidGenerator {
     }
     
     public static UuidGenerator getInstance() {
-    	if (instance == null) {
-    		instance = new UuidGenerator(); 
-    	}
-    	return instance;
+        return Holder.INSTANCE;
     }
   
 }
-
@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Shared XML helpers.
+ *
+ * The JAXP factories are created once, and the transformers and document
+ * builders they create are pooled, as creating them is costly and they can
+ * not be used concurrently.  Stream sources are serialized using StAX when
+ * it is available, which avoids setting up a transformation.
+ */
+public final class XmlUtils {
+
+    /**
+     * Maximum number of idle transformers or document builders kept in each pool
+     */
+    public static final int MAX_POOL_SIZE = 32;
+
+    private static final Pool<Transformer> TRANSFORMERS = new Pool<Transformer>();
+    private static final Pool<DocumentBuilder> BUILDERS = new Pool<DocumentBuilder>();
+
+    private XmlUtils() {
+    }
+
+    private static final class Factories {
+        static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+        static final DocumentBuilderFactory BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+        static {
+            BUILDER_FACTORY.setNamespaceAware(true);
+        }
+    }
+
+    /**
+     * StAX may not be available on all platforms, in which case
+     * transformers are used instead.
+     *
+     * Factories are not guaranteed to be thread safe, so each thread
+     * uses its own instances rather than sharing a single locked one.
+     */
+    private static final class StaxFactories {
+        static final boolean AVAILABLE;
+        static {
+            boolean available;
+            try {
+                XMLInputFactory.newInstance();
+                XMLOutputFactory.newInstance();
+                available = true;
+            } catch (Throwable t) {
+                available = false;
+            }
+            AVAILABLE = available;
+        }
+        static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+            protected XMLInputFactory initialValue() {
+                return XMLInputFactory.newInstance();
+            }
+        };
+        static final ThreadLocal<XMLOutputFactory> OUTPUT_FACTORY = new ThreadLocal<XMLOutputFactory>() {
+            protected XMLOutputFactory initialValue() {
+                return XMLOutputFactory.newInstance();
+            }
+        };
+    }
+
+    /*
+     * Pooled transformers are only used internally with their default output
+     * properties, as some implementations do not restore them on reset
+     */
+    private static Transformer borrowTransformer() throws TransformerConfigurationException {
+        Transformer transformer = TRANSFORMERS.poll();
+        if (transformer == null) {
+            transformer = newTransformer();
+        }
+        return transformer;
+    }
+
+    private static void releaseTransformer(Transformer transformer) {
+        transformer.reset();
+        TRANSFORMERS.offer(transformer);
+    }
+
+    private static Transformer newTransformer() throws TransformerConfigurationException {
+        TransformerFactory factory = Factories.TRANSFORMER_FACTORY;
+        synchronized (factory) {
+            return factory.newTransformer();
+        }
+    }
+
+    /**
+     * Retrieve a namespace aware document builder from the pool.  It must be
+     * given back using {@link #releaseDocumentBuilder(DocumentBuilder)} once used.
+     *
+     * @return a document builder
+     */
+    public static DocumentBuilder borrowDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = BUILDERS.poll();
+        if (builder == null) {
+            DocumentBuilderFactory factory = Factories.BUILDER_FACTORY;
+            synchronized (factory) {
+                builder = factory.newDocumentBuilder();
+            }
+        }
+        return builder;
+    }
+
+    public static void releaseDocumentBuilder(DocumentBuilder builder) {
+        if (builder != null) {
+            builder.reset();
+            BUILDERS.offer(builder);
+        }
+    }
+
+    /**
+     * Transform the given source using a pooled identity transformer
+     */
+    public static void transform(Source source, Result result) throws TransformerException {
+        Transformer transformer = borrowTransformer();
+        try {
+            transformer.transform(source, result);
+        } finally {
+            releaseTransformer(transformer);
+        }
+    }
+
+    /**
+     * Transform the given source using an identity transformer configured with
+     * the given output properties.  Such transformers are not pooled.
+     */
+    public static void transform(Source source, Result result, Properties outputProperties) throws TransformerException {
+        Transformer transformer = newTransformer();
+        transformer.setOutputProperties(outputProperties);
+        transformer.transform(source, result);
+    }
+
+    /**
+     * Parse a document using a pooled document builder
+     */
+    public static Document parse(InputSource input) throws ParserConfigurationException, SAXException, IOException {
+        DocumentBuilder builder = borrowDocumentBuilder();
+        try {
+            return builder.parse(input);
+        } finally {
+            releaseDocumentBuilder(builder);
+        }
+    }
+
+    /**
+     * Serialize the given source as UTF-8 encoded XML.
+     *
+     * @param source the source to serialize
+     * @param os the stream to write to
+     */
+    public static void write(Source source, OutputStream os) throws TransformerException {
+        if (isStaxCopyable(source)) {
+            try {
+                XMLStreamWriter writer = StaxFactories.OUTPUT_FACTORY.get().createXMLStreamWriter(os, "UTF-8");
+                copy((StreamSource) source, writer);
+            } catch (XMLStreamException e) {
+                throw new TransformerException(e);
+            }
+        } else {
+            transform(source, new StreamResult(os));
+        }
+    }
+
+    /**
+     * Serialize the given source to a string.
+     *
+     * @param source the source to serialize
+     * @return the xml text
+     */
+    public static String toString(Source source) throws TransformerException {
+        StringWriter buffer = new StringWriter();
+        write(source, buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Serialize the given source to a writer.
+     *
+     * @param source the source to serialize
+     * @param w the writer to write to
+     */
+    public static void write(Source source, Writer w) throws TransformerException {
+        if (isStaxCopyable(source)) {
+            try {
+                XMLStreamWriter writer = StaxFactories.OUTPUT_FACTORY.get().createXMLStreamWriter(w);
+                copy((StreamSource) source, writer);
+            } catch (XMLStreamException e) {
+                throw new TransformerException(e);
+            }
+        } else {
+            transform(source, new StreamResult(w));
+        }
+    }
+
+    private static boolean isStaxCopyable(Source source) {
+        if (source instanceof StreamSource && StaxFactories.AVAILABLE) {
+            StreamSource ss = (StreamSource) source;
+            return ss.getInputStream() != null || ss.getReader() != null;
+        }
+        return false;
+    }
+
+    private static void copy(StreamSource source, XMLStreamWriter writer) throws XMLStreamException {
+        XMLInputFactory factory = StaxFactories.INPUT_FACTORY.get();
+        XMLStreamReader reader;
+        if (source.getInputStream() != null) {
+            reader = factory.createXMLStreamReader(source.getSystemId(), source.getInputStream());
+        } else {
+            reader = factory.createXMLStreamReader(source.getSystemId(), source.getReader());
+        }
+        try {
+            copy(reader, writer);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copy the events of the reader to the writer, the same way an identity
+     * transformation would: the document type declaration and whitespace
+     * outside of the root element are dropped.
+     */
+    private static void copy(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartDocument("UTF-8", "1.0");
+        int depth = 0;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    writeStartElement(reader, writer);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if (depth > 0) {
+                        writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if (reader.getPIData() != null) {
+                        writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    } else {
+                        writer.writeProcessingInstruction(reader.getPITarget());
+                    }
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    writer.writeEntityRef(reader.getLocalName());
+                    break;
+                default:
+                    break;
+            }
+        }
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+    private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        String uri = reader.getNamespaceURI();
+        if (uri != null && uri.length() > 0) {
+            String prefix = reader.getPrefix();
+            writer.writeStartElement(prefix != null ? prefix : "", reader.getLocalName(), uri);
+        } else {
+            writer.writeStartElement(reader.getLocalName());
+        }
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            String ns = reader.getNamespaceURI(i);
+            if (prefix == null || prefix.length() == 0) {
+                writer.writeDefaultNamespace(ns != null ? ns : "");
+            } else {
+                writer.writeNamespace(prefix, ns);
+            }
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String ns = reader.getAttributeNamespace(i);
+            if (ns != null && ns.length() > 0) {
+                String prefix = reader.getAttributePrefix(i);
+                writer.writeAttribute(prefix != null ? prefix : "", ns, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+    }
+
+    /**
+     * A simple bounded pool
+     */
+    private static class Pool<T> {
+
+        private final Queue<T> queue = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T t = queue.poll();
+            if (t != null) {
+                size.decrementAndGet();
+            }
+            return t;
+        }
+
+        void offer(T t) {
+            if (size.incrementAndGet() <= MAX_POOL_SIZE) {
+                queue.offer(t);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
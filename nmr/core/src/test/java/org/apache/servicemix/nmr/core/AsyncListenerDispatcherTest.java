@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.Channel;
+import org.apache.servicemix.nmr.api.Endpoint;
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.NMR;
+import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.Status;
+import org.apache.servicemix.nmr.api.event.ExchangeListener;
+import org.apache.servicemix.nmr.api.service.ServiceHelper;
+
+public class AsyncListenerDispatcherTest extends TestCase {
+
+    public void testAsyncRegistration() throws Exception {
+        ServiceMix smx = new ServiceMix();
+        smx.init();
+        NMR nmr = smx;
+        nmr.getEndpointRegistry().register(new Endpoint() {
+            public void setChannel(Channel channel) {
+            }
+            public void process(Exchange exchange) {
+            }
+        }, ServiceHelper.createMap(Endpoint.NAME, "ep", Endpoint.CHANNEL_SYNC_DELIVERY, "true"));
+
+        BlockingListener listener = new BlockingListener(2);
+        Map<String, Object> props = ServiceHelper.createMap(AsyncListenerDispatcher.ASYNC, "true");
+        nmr.getListenerRegistry().register(listener, props);
+        AsyncListenerDispatcher dispatcher = ((ListenerRegistryImpl) nmr.getListenerRegistry()).getDispatcher(listener);
+        assertNotNull(dispatcher);
+        assertEquals(AsyncListenerDispatcher.Overflow.Block, dispatcher.getOverflow());
+
+        Channel client = nmr.createChannel();
+        Exchange e = client.createExchange(Pattern.InOnly);
+        e.setTarget(nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.NAME, "ep")));
+        client.send(e);
+
+        // the exchange has been sent while the listener is still blocked
+        assertEquals(0, listener.events);
+        listener.release.countDown();
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), listener.thread);
+
+        nmr.getListenerRegistry().unregister(listener, props);
+        assertNull(((ListenerRegistryImpl) nmr.getListenerRegistry()).getDispatcher(listener));
+        dispatcher.join(5000);
+    }
+
+    public void testDropOverflow() throws Exception {
+        BlockingListener listener = new BlockingListener(2);
+        AsyncListenerDispatcher dispatcher = new AsyncListenerDispatcher(listener, 1, AsyncListenerDispatcher.Overflow.Drop, 1);
+        dispatcher.exchangeSent(null);
+        // wait for the first event to be taken by the delivery thread
+        assertTrue(listener.started.await(5, TimeUnit.SECONDS));
+        dispatcher.exchangeDelivered(null);
+        dispatcher.exchangeFailed(null);
+        assertEquals(1, dispatcher.getLag());
+        assertEquals(1, dispatcher.getDroppedCount());
+
+        listener.release.countDown();
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        dispatcher.close();
+        dispatcher.join(5000);
+        assertEquals(2, dispatcher.getProcessedCount());
+        assertEquals(1, dispatcher.getMaxLag());
+    }
+
+    public void testSnapshot() throws Exception {
+        BlockingListener listener = new BlockingListener(1);
+        AsyncListenerDispatcher dispatcher = new AsyncListenerDispatcher(listener, 4, AsyncListenerDispatcher.Overflow.Block, 1);
+        ExchangeImpl exchange = new ExchangeImpl(Pattern.InOut);
+        exchange.setProperty("key", "value");
+        exchange.getIn().setBody("<hello/>");
+        dispatcher.exchangeSent(exchange);
+        // the endpoint keeps processing the exchange
+        exchange.setProperty("key", "other");
+        exchange.getIn().setBody("<bye/>");
+        exchange.setStatus(Status.Done);
+
+        listener.release.countDown();
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        Exchange received = listener.exchange;
+        assertNotSame(exchange, received);
+        assertEquals(exchange.getId(), received.getId());
+        assertEquals(Status.Active, received.getStatus());
+        assertEquals("value", received.getProperty("key"));
+        assertEquals("<hello/>", received.getIn().getBody());
+        dispatcher.close();
+        dispatcher.join(5000);
+    }
+
+    public void testSnapshotContent() throws Exception {
+        BlockingListener listener = new BlockingListener(2);
+        AsyncListenerDispatcher dispatcher = new AsyncListenerDispatcher(listener, 4, AsyncListenerDispatcher.Overflow.Block, 1);
+        ExchangeImpl exchange = new ExchangeImpl(Pattern.InOnly);
+        StreamSource body = new StreamSource(new ByteArrayInputStream("<hello/>".getBytes()));
+        exchange.getIn().setBody(body);
+        // streams are not read on the sending thread unless the listener reads the contents
+        dispatcher.exchangeSent(exchange);
+        assertSame(body, exchange.getIn().getBody());
+
+        AsyncListenerDispatcher reader = AsyncListenerDispatcher.create(listener,
+                ServiceHelper.createMap(AsyncListenerDispatcher.ASYNC_CONTENT, "true"));
+        assertTrue(reader.isContent());
+        reader.exchangeSent(exchange);
+        assertNotSame(body, exchange.getIn().getBody());
+
+        listener.release.countDown();
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        dispatcher.close();
+        reader.close();
+        dispatcher.join(5000);
+        reader.join(5000);
+    }
+
+    public void testSnapshotFailure() throws Exception {
+        BlockingListener listener = new BlockingListener(1);
+        AsyncListenerDispatcher dispatcher = new AsyncListenerDispatcher(listener, 1, AsyncListenerDispatcher.Overflow.Block, 1);
+        dispatcher.exchangeSent(new ExchangeImpl(Pattern.InOnly) {
+            ExchangeImpl snapshot(boolean content) {
+                throw new IllegalStateException();
+            }
+        });
+        assertEquals(1, dispatcher.getDroppedCount());
+        assertEquals(0, dispatcher.getLag());
+
+        // the next events must still be delivered
+        dispatcher.exchangeSent(new ExchangeImpl(Pattern.InOnly));
+        listener.release.countDown();
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        dispatcher.close();
+        dispatcher.join(5000);
+        assertEquals(1, dispatcher.getProcessedCount());
+    }
+
+    public void testConcurrentProducers() throws Exception {
+        final int nbThreads = 8;
+        final int nbEvents = 2000;
+        final AtomicInteger received = new AtomicInteger();
+        final AsyncListenerDispatcher dispatcher = new AsyncListenerDispatcher(new ExchangeListener() {
+            public void exchangeSent(Exchange exchange) {
+                received.incrementAndGet();
+            }
+            public void exchangeDelivered(Exchange exchange) {
+                received.incrementAndGet();
+            }
+            public void exchangeFailed(Exchange exchange) {
+                received.incrementAndGet();
+            }
+        }, 16, AsyncListenerDispatcher.Overflow.Block, 1);
+        Thread[] threads = new Thread[nbThreads];
+        for (int i = 0; i < nbThreads; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < nbEvents; j++) {
+                        dispatcher.exchangeSent(null);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        dispatcher.close();
+        dispatcher.join(5000);
+        assertEquals(nbThreads * nbEvents, received.get());
+        assertEquals(nbThreads * nbEvents, dispatcher.getProcessedCount());
+        assertEquals(0, dispatcher.getDroppedCount());
+        assertEquals(0, dispatcher.getLag());
+    }
+
+    protected static class BlockingListener implements ExchangeListener {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch done;
+        private volatile int events;
+        private volatile Thread thread;
+        private volatile Exchange exchange;
+
+        public BlockingListener(int nbEvents) {
+            done = new CountDownLatch(nbEvents);
+        }
+
+        public void exchangeSent(Exchange exchange) {
+            this.exchange = exchange;
+            event();
+        }
+        public void exchangeDelivered(Exchange exchange) {
+            event();
+        }
+        public void exchangeFailed(Exchange exchange) {
+            event();
+        }
+
+        private void event() {
+            thread = Thread.currentThread();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            events++;
+            done.countDown();
+        }
+    }
+}
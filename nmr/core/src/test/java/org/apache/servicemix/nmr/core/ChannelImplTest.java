@@ -21,23 +21,39 @@ import static org.easymock.EasyMock.*;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
 import org.apache.servicemix.executors.ExecutorFactory;
+import org.apache.servicemix.nmr.api.AbortedException;
+import org.apache.servicemix.nmr.api.BatchEndpoint;
 import org.apache.servicemix.nmr.api.NMR;
 import org.apache.servicemix.nmr.api.Channel;
 import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.Reference;
 import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.ExchangeCallback;
+import org.apache.servicemix.nmr.api.ExchangeFuture;
+import org.apache.servicemix.nmr.api.Role;
 import org.apache.servicemix.nmr.api.ServiceMixException;
 import org.apache.servicemix.nmr.api.Endpoint;
 import org.apache.servicemix.nmr.api.Status;
 import org.apache.servicemix.nmr.api.service.ServiceHelper;
 import org.apache.servicemix.nmr.api.event.ExchangeListener;
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
 import org.easymock.EasyMock;
 import org.easymock.IMocksControl;
 
@@ -209,6 +225,7 @@ public class ChannelImplTest extends TestCase {
 
         final CountDownLatch done = new CountDownLatch(1);
         final Channel channel = nmr.createChannel();
+        ((ChannelImpl) channel).setDecorateThreadName(true);
         final Exchange exchange = channel.createExchange(Pattern.InOnly);
         exchange.setTarget(nmr.getEndpointRegistry().lookup(props));
         
@@ -235,6 +252,313 @@ public class ChannelImplTest extends TestCase {
                    findThread(exchange.getId()));
     }
 
+    public void testSyncExchangeThreadNameNotChangedByDefault() throws Exception {
+        final BlockingEndpoint blocking = new BlockingEndpoint(1);
+        final Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "blocking");
+        nmr.getEndpointRegistry().register(blocking, props);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final Channel channel = nmr.createChannel();
+        final Exchange exchange = channel.createExchange(Pattern.InOnly);
+        exchange.setTarget(nmr.getEndpointRegistry().lookup(props));
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                channel.sendSync(exchange);
+                done.countDown();
+            }
+        });
+        thread.start();
+
+        blocking.expected.await(5, TimeUnit.SECONDS);
+        assertNull("The waiting thread should not have been renamed", findThread(exchange.getId()));
+
+        blocking.lock.release();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Status.Done, exchange.getStatus());
+    }
+
+    public void testSendSyncTimeout() throws Exception {
+        final BlockingEndpoint blocking = new BlockingEndpoint(1);
+        final Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "blocking");
+        nmr.getEndpointRegistry().register(blocking, props);
+
+        Channel channel = nmr.createChannel();
+        Exchange exchange = channel.createExchange(Pattern.InOnly);
+        exchange.setTarget(nmr.getEndpointRegistry().lookup(props));
+
+        assertFalse(channel.sendSync(exchange, 100));
+        assertTrue(exchange.getError() instanceof AbortedException);
+        blocking.lock.release();
+    }
+
+    public void testSendSyncReused() throws Exception {
+        Channel channel = nmr.createChannel();
+        PingPongEndpoint pingPong = new PingPongEndpoint();
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "pingpong");
+        nmr.getEndpointRegistry().register(pingPong, props);
+        for (int i = 0; i < 100; i++) {
+            Exchange exchange = channel.createExchange(Pattern.InOut);
+            exchange.setTarget(nmr.getEndpointRegistry().lookup(props));
+            exchange.getIn().setBody(PingPongEndpoint.PING);
+            assertTrue(channel.sendSync(exchange, 5000));
+            assertEquals(PingPongEndpoint.PONG, exchange.getOut().getBody(String.class));
+            exchange.setStatus(Status.Done);
+            channel.send(exchange);
+        }
+    }
+
+    public void testSendAsync() throws Exception {
+        Channel channel = nmr.createChannel();
+        PingPongEndpoint pingPong = new PingPongEndpoint();
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "pingpong");
+        nmr.getEndpointRegistry().register(pingPong, props);
+
+        final CountDownLatch latch = new CountDownLatch(10);
+        List<ExchangeFuture> futures = new ArrayList<ExchangeFuture>();
+        for (int i = 0; i < 10; i++) {
+            Exchange exchange = channel.createExchange(Pattern.InOut);
+            exchange.setTarget(nmr.getEndpointRegistry().lookup(props));
+            exchange.getIn().setBody(PingPongEndpoint.PING);
+            ExchangeFuture future = channel.sendAsync(exchange);
+            future.addCallback(new ExchangeCallback() {
+                public void exchangeCompleted(Exchange exchange) {
+                    latch.countDown();
+                }
+                public void exchangeAborted(Exchange exchange) {
+                }
+            });
+            futures.add(future);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (ExchangeFuture future : futures) {
+            Exchange exchange = future.get(5, TimeUnit.SECONDS);
+            assertTrue(future.isDone());
+            assertEquals(Role.Consumer, exchange.getRole());
+            assertEquals(PingPongEndpoint.PONG, exchange.getOut().getBody(String.class));
+            exchange.setStatus(Status.Done);
+            channel.send(exchange);
+        }
+    }
+
+    public void testSendAsyncCancel() throws Exception {
+        final BlockingEndpoint blocking = new BlockingEndpoint(1);
+        final Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "blocking");
+        nmr.getEndpointRegistry().register(blocking, props);
+
+        Channel channel = nmr.createChannel();
+        Exchange exchange = channel.createExchange(Pattern.InOnly);
+        exchange.setTarget(nmr.getEndpointRegistry().lookup(props));
+        ExchangeFuture future = channel.sendAsync(exchange);
+        assertTrue(blocking.expected.await(5, TimeUnit.SECONDS));
+        try {
+            future.get(50, TimeUnit.MILLISECONDS);
+            fail("Exchange should not have been completed");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(exchange.getError() instanceof AbortedException);
+        try {
+            future.get();
+            fail("Future should have been cancelled");
+        } catch (CancellationException e) {
+            // expected
+        }
+        blocking.lock.release();
+    }
+
+    public void testMaxInFlightFail() throws Exception {
+        BlockingEndpoint blocking = new BlockingEndpoint(1);
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "blocking",
+                                                            Endpoint.MAX_IN_FLIGHT, "1",
+                                                            Endpoint.OVERFLOW_POLICY, "fail");
+        nmr.getEndpointRegistry().register(blocking, props);
+
+        Channel channel = nmr.createChannel();
+        Exchange e1 = channel.createExchange(Pattern.InOnly);
+        e1.setTarget(nmr.getEndpointRegistry().lookup(props));
+        channel.send(e1);
+        assertTrue(blocking.expected.await(5, TimeUnit.SECONDS));
+        assertEquals(1, ((ChannelImpl) blocking.channel).getInFlightCount());
+
+        Exchange e2 = channel.createExchange(Pattern.InOnly);
+        e2.setTarget(nmr.getEndpointRegistry().lookup(props));
+        try {
+            channel.send(e2);
+            fail("Exchange should have been rejected");
+        } catch (EndpointOverloadedException e) {
+            // expected
+        }
+        assertTrue(e2.getError() instanceof EndpointOverloadedException);
+        blocking.lock.release();
+    }
+
+    public void testMaxInFlightReleasedWhenConsumerClosed() throws Exception {
+        BlockingEndpoint blocking = new BlockingEndpoint(1);
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "blocking",
+                                                            Endpoint.MAX_IN_FLIGHT, "1");
+        nmr.getEndpointRegistry().register(blocking, props);
+
+        Channel channel = nmr.createChannel();
+        Exchange e1 = channel.createExchange(Pattern.InOnly);
+        e1.setTarget(nmr.getEndpointRegistry().lookup(props));
+        channel.send(e1);
+        assertTrue(blocking.expected.await(5, TimeUnit.SECONDS));
+        assertEquals(1, ((ChannelImpl) blocking.channel).getInFlightCount());
+
+        // the reply can not be delivered to the closed consumer, but the provider is done
+        channel.close();
+        blocking.lock.release();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (((ChannelImpl) blocking.channel).getInFlightCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, ((ChannelImpl) blocking.channel).getInFlightCount());
+    }
+
+    public void testMaxInFlightBlock() throws Exception {
+        BlockingEndpoint blocking = new BlockingEndpoint(2);
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "blocking",
+                                                            Endpoint.MAX_IN_FLIGHT, "1");
+        nmr.getEndpointRegistry().register(blocking, props);
+
+        final Channel channel = nmr.createChannel();
+        Exchange e1 = channel.createExchange(Pattern.InOnly);
+        e1.setTarget(nmr.getEndpointRegistry().lookup(props));
+        channel.send(e1);
+
+        final Exchange e2 = channel.createExchange(Pattern.InOnly);
+        e2.setTarget(nmr.getEndpointRegistry().lookup(props));
+        final CountDownLatch sent = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            public void run() {
+                channel.send(e2);
+                sent.countDown();
+            }
+        }).start();
+        assertFalse("Sender should be blocked", sent.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, blocking.expected.getCount());
+
+        // complete the first exchange, which lets the second one in
+        blocking.lock.release(2);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertTrue(blocking.expected.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testMaxQueuedDivert() throws Exception {
+        BlockingEndpoint blocking = new BlockingEndpoint(1);
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "blocking",
+                                                            Endpoint.MAX_QUEUED, "1",
+                                                            Endpoint.OVERFLOW_POLICY, "divert",
+                                                            Endpoint.OVERFLOW_ENDPOINT, "ep2");
+        // use a single thread so that exchanges are queued while the endpoint is busy
+        Map<String, Object> config = new HashMap<String, Object>(props);
+        config.put(ExecutorFactory.CORE_POOL_SIZE, 1);
+        config.put(ExecutorFactory.MAXIMUM_POOL_SIZE, 1);
+        nmr.getEndpointRegistry().register(blocking, config);
+        ChannelImpl blockingChannel = (ChannelImpl) blocking.channel;
+
+        Channel channel = nmr.createChannel();
+        Exchange e1 = channel.createExchange(Pattern.InOnly);
+        e1.setTarget(nmr.getEndpointRegistry().lookup(props));
+        channel.send(e1);
+        assertTrue(blocking.expected.await(5, TimeUnit.SECONDS));
+        assertEquals(0, blockingChannel.getQueuedCount());
+
+        // the endpoint is busy with e1, so e2 waits in the executor queue
+        Exchange e2 = channel.createExchange(Pattern.InOnly);
+        e2.setTarget(nmr.getEndpointRegistry().lookup(props));
+        Exchange e3 = channel.createExchange(Pattern.InOnly);
+        e3.setTarget(nmr.getEndpointRegistry().lookup(props));
+        channel.send(e2);
+        channel.send(e3);
+        assertEquals(1, blockingChannel.getQueuedCount());
+        synchronized (ep2) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ep2.exchange == null && System.currentTimeMillis() < deadline) {
+                ep2.wait(100);
+            }
+        }
+        assertSame(e3, ep2.exchange);
+        blocking.lock.release(2);
+    }
+
+    public void testExchangeExpiry() throws Exception {
+        BlockingEndpoint blocking = new BlockingEndpoint(1);
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "blocking",
+                                                            Endpoint.MAX_IN_FLIGHT, "1");
+        nmr.getEndpointRegistry().register(blocking, props);
+        final CountDownLatch failed = new CountDownLatch(1);
+        final AtomicReference<String> failedThread = new AtomicReference<String>();
+        final AtomicInteger delivered = new AtomicInteger();
+        nmr.getListenerRegistry().register(new ExchangeListener() {
+            public void exchangeSent(Exchange exchange) {
+            }
+            public void exchangeDelivered(Exchange exchange) {
+                delivered.incrementAndGet();
+            }
+            public void exchangeFailed(Exchange exchange) {
+                failedThread.set(Thread.currentThread().getName());
+                failed.countDown();
+            }
+        }, null);
+
+        Channel channel = nmr.createChannel();
+        Exchange exchange = channel.createExchange(Pattern.InOnly);
+        exchange.setTarget(nmr.getEndpointRegistry().lookup(props));
+        exchange.setProperty(Exchange.TIME_TO_LIVE, 100L);
+        channel.sendSync(exchange);
+        assertEquals(Status.Error, exchange.getStatus());
+        assertTrue(exchange.getError() instanceof AbortedException);
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        // listeners are not called by the timer thread
+        assertFalse(failedThread.get().startsWith("nmr.expiry"));
+        // the room reserved on the provider channel has been released
+        assertEquals(0, ((ChannelImpl) blocking.channel).getInFlightCount());
+
+        // the late reply of the provider is dropped
+        int count = delivered.get();
+        blocking.lock.release();
+        Thread.sleep(100);
+        assertEquals(count, delivered.get());
+        assertEquals(0, ((ChannelImpl) blocking.channel).getInFlightCount());
+        assertTrue(exchange.getError() instanceof AbortedException);
+    }
+
+    public void testInvalidTimeToLive() throws Exception {
+        Channel channel = ep2.channel;
+        Exchange exchange = channel.createExchange(Pattern.InOnly);
+        exchange.setTarget(nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.NAME, "ep1")));
+        exchange.setProperty(Exchange.TIME_TO_LIVE, "soon");
+        channel.send(exchange);
+        synchronized (ep1) {
+            while (ep1.exchange == null) {
+                ep1.wait(1000);
+            }
+        }
+        assertNull(((InternalExchange) exchange).getExpiry());
+        ep1.done();
+    }
+
+    public void testExchangeExpiryCancelled() throws Exception {
+        ((ServiceMix) nmr).setDefaultTimeToLive(100);
+        Channel channel = ep2.channel;
+        Exchange exchange = channel.createExchange(Pattern.InOnly);
+        exchange.setTarget(nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.NAME, "ep1")));
+        channel.send(exchange);
+        synchronized (ep1) {
+            while (ep1.exchange == null) {
+                ep1.wait(1000);
+            }
+        }
+        ep1.done();
+        assertTrue(((InternalExchange) exchange).getExpiry() == null);
+        Thread.sleep(200);
+        assertEquals(Status.Done, exchange.getStatus());
+    }
+
     private Object findThread(String id) {
         ThreadMXBean threads = ManagementFactory.getThreadMXBean();
         ThreadInfo[]  threadInfos = threads.getThreadInfo(threads.getAllThreadIds(), 0);
@@ -274,6 +598,140 @@ public class ChannelImplTest extends TestCase {
 
     }
 
+    public void testSendBatch() throws Exception {
+        BatchingEndpoint batching = new BatchingEndpoint();
+        Map<String, Object> batchProps = ServiceHelper.createMap(Endpoint.NAME, "batching");
+        nmr.getEndpointRegistry().register(batching, batchProps);
+        final CountDownLatch processed = new CountDownLatch(5);
+        Endpoint single = new Endpoint() {
+            private Channel channel;
+            public void setChannel(Channel channel) {
+                this.channel = channel;
+            }
+            public void process(Exchange exchange) {
+                exchange.setStatus(Status.Done);
+                channel.send(exchange);
+                processed.countDown();
+            }
+        };
+        Map<String, Object> singleProps = ServiceHelper.createMap(Endpoint.NAME, "single");
+        nmr.getEndpointRegistry().register(single, singleProps);
+        // Use an endpoint channel so that the done exchanges are given back to an endpoint
+        PingPongEndpoint consumer = new PingPongEndpoint();
+        nmr.getEndpointRegistry().register(consumer, ServiceHelper.createMap(Endpoint.NAME, "consumer"));
+
+        final AtomicInteger sent = new AtomicInteger();
+        nmr.getListenerRegistry().register(new ExchangeListener() {
+            public void exchangeSent(Exchange exchange) {
+                sent.incrementAndGet();
+            }
+            public void exchangeDelivered(Exchange exchange) {
+            }
+            public void exchangeFailed(Exchange exchange) {
+            }
+        }, new HashMap<String, Object>());
+
+        Reference batchTarget = nmr.getEndpointRegistry().lookup(batchProps);
+        Reference singleTarget = nmr.getEndpointRegistry().lookup(singleProps);
+        List<Exchange> exchanges = new ArrayList<Exchange>();
+        for (int i = 0; i < 5; i++) {
+            Exchange exchange = consumer.channel.createExchange(Pattern.InOnly);
+            exchange.setTarget(batchTarget);
+            exchanges.add(exchange);
+            exchange = consumer.channel.createExchange(Pattern.InOnly);
+            exchange.setTarget(singleTarget);
+            exchanges.add(exchange);
+        }
+        consumer.channel.sendBatch(exchanges);
+
+        assertTrue(batching.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, batching.batches.size());
+        assertEquals(5, batching.batches.get(0).intValue());
+        assertTrue(sent.get() >= 10);
+    }
+
+    public void testSendBatchFailure() throws Exception {
+        BatchingEndpoint batching = new BatchingEndpoint();
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "batching");
+        nmr.getEndpointRegistry().register(batching, props);
+        PingPongEndpoint consumer = new PingPongEndpoint();
+        nmr.getEndpointRegistry().register(consumer, ServiceHelper.createMap(Endpoint.NAME, "consumer"));
+
+        Exchange good = consumer.channel.createExchange(Pattern.InOnly);
+        good.setTarget(nmr.getEndpointRegistry().lookup(props));
+        Exchange bad = consumer.channel.createExchange(Pattern.InOnly);
+        bad.setTarget(nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.NAME, "unknown")));
+        try {
+            consumer.channel.sendBatch(Arrays.asList(bad, good));
+            fail("Exchange with no matching endpoint should have failed");
+        } catch (ServiceMixException e) {
+            // expected
+        }
+        assertNotNull(bad.getError());
+        assertTrue(batching.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, batching.batches.get(0).intValue());
+        assertNull(good.getError());
+    }
+
+    public void testSendBatchPartialFailure() throws Exception {
+        Endpoint batching = new BatchEndpoint() {
+            private Channel channel;
+            public void setChannel(Channel channel) {
+                this.channel = channel;
+            }
+            public void process(List<Exchange> exchanges) {
+                Exchange first = exchanges.get(0);
+                first.getOut().setBody("answer");
+                channel.send(first);
+                throw new IllegalStateException("Unable to process the second exchange");
+            }
+            public void process(Exchange exchange) {
+                fail("Exchanges should have been delivered as a batch");
+            }
+        };
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.NAME, "batching");
+        nmr.getEndpointRegistry().register(batching, props);
+        RecordingEndpoint consumer = new RecordingEndpoint(2);
+        nmr.getEndpointRegistry().register(consumer, ServiceHelper.createMap(Endpoint.NAME, "consumer"));
+        Channel consumerChannel = consumer.channel;
+
+        Exchange first = consumerChannel.createExchange(Pattern.InOut);
+        first.setTarget(nmr.getEndpointRegistry().lookup(props));
+        Exchange second = consumerChannel.createExchange(Pattern.InOut);
+        second.setTarget(nmr.getEndpointRegistry().lookup(props));
+        consumerChannel.sendBatch(Arrays.asList(first, second));
+
+        assertTrue(consumer.latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        // the answered exchange must not be failed and sent back a second time
+        assertEquals(2, consumer.received.size());
+        assertNull(first.getError());
+        assertEquals(Status.Active, first.getStatus());
+        assertEquals(Status.Error, second.getStatus());
+        assertTrue(second.getError() instanceof IllegalStateException);
+    }
+
+    private static class RecordingEndpoint implements Endpoint {
+
+        private final List<Exchange> received = new CopyOnWriteArrayList<Exchange>();
+        private final CountDownLatch latch;
+        private Channel channel;
+
+        public RecordingEndpoint(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        public void setChannel(Channel channel) {
+            this.channel = channel;
+        }
+
+        public void process(Exchange exchange) {
+            received.add(exchange);
+            latch.countDown();
+        }
+    }
+
     protected static class PingPongEndpoint implements Endpoint {
 
         protected static final String PING = "ping";
@@ -295,6 +753,30 @@ public class ChannelImplTest extends TestCase {
         }
     }
     
+    private static class BatchingEndpoint implements BatchEndpoint {
+
+        private final List<Integer> batches = new CopyOnWriteArrayList<Integer>();
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private Channel channel;
+
+        public void setChannel(Channel channel) {
+            this.channel = channel;
+        }
+
+        public void process(List<Exchange> exchanges) {
+            batches.add(exchanges.size());
+            for (Exchange exchange : exchanges) {
+                exchange.setStatus(Status.Done);
+                channel.send(exchange);
+            }
+            latch.countDown();
+        }
+
+        public void process(Exchange exchange) {
+            fail("Exchanges should have been delivered as a batch");
+        }
+    }
+
     private static class BlockingEndpoint implements Endpoint {
 
         private final CountDownLatch expected;
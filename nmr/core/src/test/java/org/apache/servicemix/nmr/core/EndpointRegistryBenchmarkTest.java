@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.Channel;
+import org.apache.servicemix.nmr.api.Endpoint;
+import org.apache.servicemix.nmr.api.EndpointRegistry;
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.internal.InternalReference;
+import org.apache.servicemix.nmr.api.service.ServiceHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Micro benchmark reporting the cost of endpoint lookups with a small
+ * and a large number of registered endpoints, which should be similar.
+ */
+public class EndpointRegistryBenchmarkTest extends TestCase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EndpointRegistryBenchmarkTest.class);
+
+    private static final int LOOKUPS = 2000;
+
+    public void testLookupCostIsFlat() throws Exception {
+        long small = measure(100);
+        long large = measure(10000);
+        // timings depend too much on the machine to be asserted, so only report them
+        LOG.info("Average lookup cost: " + small + " ns with 100 endpoints, " + large + " ns with 10000 endpoints");
+    }
+
+    private long measure(int nbEndpoints) {
+        ServiceMix smx = new ServiceMix();
+        smx.init();
+        EndpointRegistry registry = smx.getEndpointRegistry();
+        for (int i = 0; i < nbEndpoints; i++) {
+            registry.register(new NoopEndpoint(), ServiceHelper.createMap(Endpoint.NAME, "ep" + i,
+                                                                          Endpoint.SERVICE_NAME, "test:service" + i,
+                                                                          Endpoint.ENDPOINT_NAME, "endpoint",
+                                                                          Endpoint.CHANNEL_SYNC_DELIVERY, "true"));
+        }
+        // warm up
+        lookup(registry, nbEndpoints, LOOKUPS);
+        long start = System.nanoTime();
+        lookup(registry, nbEndpoints, LOOKUPS);
+        return (System.nanoTime() - start) / LOOKUPS;
+    }
+
+    private void lookup(EndpointRegistry registry, int nbEndpoints, int nbLookups) {
+        for (int i = 0; i < nbLookups; i++) {
+            Map<String, Object> props = ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service" + (i % nbEndpoints),
+                                                                Endpoint.ENDPOINT_NAME, "endpoint");
+            InternalReference ref = (InternalReference) registry.lookup(props);
+            assertTrue(ref.choose(registry).iterator().hasNext());
+        }
+    }
+
+    protected static class NoopEndpoint implements Endpoint {
+        public void setChannel(Channel channel) {
+        }
+        public void process(Exchange exchange) {
+        }
+    }
+}
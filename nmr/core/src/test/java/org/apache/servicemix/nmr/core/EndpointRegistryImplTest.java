@@ -17,9 +17,11 @@
 package org.apache.servicemix.nmr.core;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -33,10 +35,13 @@ import org.apache.servicemix.nmr.api.EndpointRegistry;
 import org.apache.servicemix.nmr.api.Exchange;
 import org.apache.servicemix.nmr.api.NMR;
 import org.apache.servicemix.nmr.api.Reference;
+import org.apache.servicemix.nmr.api.event.EndpointBatchListener;
 import org.apache.servicemix.nmr.api.event.EndpointListener;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
 import org.apache.servicemix.nmr.api.internal.InternalReference;
 import org.apache.servicemix.nmr.api.service.ServiceHelper;
+import org.apache.servicemix.nmr.core.util.Filter;
+import org.w3c.dom.Document;
 
 public class EndpointRegistryImplTest extends TestCase {
 
@@ -80,6 +85,80 @@ public class EndpointRegistryImplTest extends TestCase {
         assertFalse(r.choose(registry).iterator().hasNext());
     }
 
+    public void testIndexedQuery() throws Exception {
+        Endpoint ep1 = new DummyEndpoint();
+        Endpoint ep2 = new DummyEndpoint();
+        Endpoint ep3 = new DummyEndpoint();
+        registry.register(ep1, ServiceHelper.createMap(Endpoint.NAME, "ep1",
+                                                       Endpoint.SERVICE_NAME, "test:service",
+                                                       Endpoint.ENDPOINT_NAME, "ep1"));
+        registry.register(ep2, ServiceHelper.createMap(Endpoint.NAME, "ep2",
+                                                       Endpoint.SERVICE_NAME, "test:service",
+                                                       Endpoint.ENDPOINT_NAME, "ep2"));
+        registry.register(ep3, ServiceHelper.createMap(Endpoint.NAME, "ep3",
+                                                       Endpoint.SERVICE_NAME, "test:other",
+                                                       Endpoint.ENDPOINT_NAME, "ep1"));
+
+        assertEquals(2, registry.query(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service")).size());
+        assertEquals(1, registry.query(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service",
+                                                               Endpoint.ENDPOINT_NAME, "ep1")).size());
+        assertEquals(0, registry.query(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:other",
+                                                               Endpoint.ENDPOINT_NAME, "ep2")).size());
+        assertEquals(0, registry.query(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:unknown")).size());
+        assertEquals(3, registry.query(ServiceHelper.createMap()).size());
+
+        InternalReference ref = (InternalReference) registry.lookup(
+                ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service"));
+        assertEquals(2, count(ref.choose(registry)));
+
+        registry.unregister(ep1, null);
+        assertEquals(1, registry.query(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service")).size());
+        assertEquals(0, registry.query(ServiceHelper.createMap(Endpoint.NAME, "ep1")).size());
+        assertEquals(1, count(ref.choose(registry)));
+    }
+
+    public void testLookupReturnsSharedReference() throws Exception {
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service");
+        Reference ref1 = registry.lookup(props);
+        Reference ref2 = registry.lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service"));
+        assertSame(ref1, ref2);
+
+        // modifying the map used for the lookup must not change the shared reference
+        props.put(Endpoint.ENDPOINT_NAME, "endpoint");
+        Reference ref3 = registry.lookup(props);
+        assertNotSame(ref1, ref3);
+        assertSame(ref1, registry.lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service")));
+
+        registry.register(new DummyEndpoint(), ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service",
+                                                                       Endpoint.ENDPOINT_NAME, "endpoint"));
+        assertEquals(1, count(((InternalReference) ref1).choose(registry)));
+        assertEquals(1, count(((InternalReference) ref3).choose(registry)));
+    }
+
+    public void testReferenceSnapshotInvalidation() throws Exception {
+        EndpointRegistryImpl reg = (EndpointRegistryImpl) registry;
+        InternalReference ref = (InternalReference) registry.lookup(ServiceHelper.createMap(Endpoint.NAME, "id"));
+        Iterable<InternalEndpoint> matches = ref.choose(registry);
+        assertSame(matches, ref.choose(registry));
+
+        long generation = reg.getGeneration();
+        Endpoint endpoint = new DummyEndpoint();
+        registry.register(endpoint, ServiceHelper.createMap(Endpoint.NAME, "id"));
+        assertTrue(reg.getGeneration() > generation);
+        assertNotSame(matches, ref.choose(registry));
+        assertEquals(1, count(ref.choose(registry)));
+
+        DynamicReference dynamic = new DynamicReference(new Filter<InternalEndpoint>() {
+            public boolean match(InternalEndpoint endpoint) {
+                return "id".equals(endpoint.getMetaData().get(Endpoint.NAME));
+            }
+        });
+        assertEquals(1, count(dynamic.choose(registry)));
+        registry.unregister(endpoint, null);
+        assertEquals(0, count(ref.choose(registry)));
+        assertEquals(0, count(dynamic.choose(registry)));
+    }
+
     public void testRegisterWithoutSyncChannel() throws Exception {
         DummyEndpoint endpoint = new DummyEndpoint();
 
@@ -150,6 +229,100 @@ public class EndpointRegistryImplTest extends TestCase {
         registry.unregister(endpoint, null);
         assertTrue(unregLatch.await(1, TimeUnit.SECONDS));
     }
+
+    public void testBatch() throws Exception {
+        final EndpointRegistryImpl reg = (EndpointRegistryImpl) registry;
+        final Endpoint ep1 = new DummyEndpoint();
+        final Endpoint ep2 = new DummyEndpoint();
+        final Endpoint ep3 = new DummyEndpoint();
+        reg.register(ep3, ServiceHelper.createMap(Endpoint.NAME, "ep3"));
+
+        final List<String> events = new ArrayList<String>();
+        final List<List<InternalEndpoint>> batches = new ArrayList<List<InternalEndpoint>>();
+        nmr.getListenerRegistry().register(new EndpointListener() {
+            public void endpointRegistered(InternalEndpoint endpoint) {
+                events.add("reg:" + endpoint.getMetaData().get(Endpoint.NAME));
+            }
+            public void endpointUnregistered(InternalEndpoint endpoint) {
+                events.add("unreg:" + endpoint.getMetaData().get(Endpoint.NAME));
+            }
+        }, new HashMap<String,Object>());
+        nmr.getListenerRegistry().register(new EndpointBatchListener() {
+            public void endpointsChanged(List<InternalEndpoint> registered, List<InternalEndpoint> unregistered) {
+                batches.add(registered);
+                batches.add(unregistered);
+            }
+            public void endpointRegistered(InternalEndpoint endpoint) {
+                fail("Batch listeners should receive a single event");
+            }
+            public void endpointUnregistered(InternalEndpoint endpoint) {
+                fail("Batch listeners should receive a single event");
+            }
+        }, new HashMap<String,Object>());
+
+        final Reference ref = registry.lookup(ServiceHelper.createMap(Endpoint.NAME, "ep1"));
+        assertFalse(((InternalReference) ref).choose(registry).iterator().hasNext());
+        final Reference ref3 = registry.lookup(ServiceHelper.createMap(Endpoint.NAME, "ep3"));
+        assertTrue(((InternalReference) ref3).choose(registry).iterator().hasNext());
+        final long generation = reg.getGeneration();
+        reg.batch(new Runnable() {
+            public void run() {
+                reg.register(ep1, ServiceHelper.createMap(Endpoint.NAME, "ep1"));
+                reg.batch(new Runnable() {
+                    public void run() {
+                        reg.register(ep2, ServiceHelper.createMap(Endpoint.NAME, "ep2"));
+                    }
+                });
+                assertEquals(generation, reg.getGeneration());
+                reg.unregister(ep3, null);
+                // endpoints are registered, but changes are published at the end,
+                // except for unregistrations which invalidate references immediately
+                assertEquals(1, reg.query(ServiceHelper.createMap(Endpoint.NAME, "ep1")).size());
+                assertEquals(generation + 1, reg.getGeneration());
+                assertFalse(((InternalReference) ref3).choose(registry).iterator().hasNext());
+                assertTrue(events.isEmpty());
+                assertTrue(batches.isEmpty());
+            }
+        });
+        assertEquals(generation + 2, reg.getGeneration());
+        assertTrue(((InternalReference) ref).choose(registry).iterator().hasNext());
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals("ep1", batches.get(0).get(0).getMetaData().get(Endpoint.NAME));
+        assertEquals("ep2", batches.get(0).get(1).getMetaData().get(Endpoint.NAME));
+        assertEquals(1, batches.get(1).size());
+        assertEquals("ep3", batches.get(1).get(0).getMetaData().get(Endpoint.NAME));
+        assertEquals(3, events.size());
+        assertEquals("reg:ep1", events.get(0));
+        assertEquals("reg:ep2", events.get(1));
+        assertEquals("unreg:ep3", events.get(2));
+
+        // changes made before a failure are still published
+        batches.clear();
+        try {
+            reg.batch(new Runnable() {
+                public void run() {
+                    reg.unregister(ep1, null);
+                    throw new IllegalStateException();
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(1).size());
+
+        // empty batches do not invalidate anything
+        batches.clear();
+        long current = reg.getGeneration();
+        reg.batch(new Runnable() {
+            public void run() {
+            }
+        });
+        assertEquals(current, reg.getGeneration());
+        assertTrue(batches.isEmpty());
+    }
     
     public void testHandleWiring() throws Exception {
         final Map<String, Object> from = ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:wired-service",
@@ -225,6 +398,35 @@ public class EndpointRegistryImplTest extends TestCase {
         assertTrue(reference.choose(registry).iterator().hasNext());
     }
 
+    public void testInvalidChannelLimits() throws Exception {
+        DummyEndpoint endpoint = new DummyEndpoint();
+        registry.register(endpoint, ServiceHelper.createMap(Endpoint.NAME, "id",
+                                                            Endpoint.MAX_IN_FLIGHT, "many",
+                                                            Endpoint.MAX_QUEUED, " 5 "));
+        assertEquals(0, endpoint.channel.getMaxInFlight());
+        assertEquals(5, endpoint.channel.getMaxQueued());
+    }
+
+    public void testReferenceWithOtherRegistry() throws Exception {
+        // a registry without generations must not leave the reference with stale endpoints
+        EndpointRegistry other = new DelegatingRegistry(registry);
+        InternalReference reference = new PropertyMatchingReference(ServiceHelper.createMap(Endpoint.NAME, "id"));
+        assertEquals(0, count(reference.choose(other)));
+        Endpoint endpoint = new DummyEndpoint();
+        registry.register(endpoint, ServiceHelper.createMap(Endpoint.NAME, "id"));
+        assertEquals(1, count(reference.choose(other)));
+        registry.unregister(endpoint, null);
+        assertEquals(0, count(reference.choose(other)));
+    }
+
+    private static int count(Iterable<InternalEndpoint> endpoints) {
+        int count = 0;
+        for (InternalEndpoint ep : endpoints) {
+            count++;
+        }
+        return count;
+    }
+
     private Endpoint createWiredEndpoint(Map<String, Object> from) {
         return createWiredEndpoint(from, ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service",
                                                                  Endpoint.ENDPOINT_NAME, "endpoint"));
@@ -246,4 +448,39 @@ public class EndpointRegistryImplTest extends TestCase {
         public void process(Exchange exchange) {
         }
     }
+
+    protected static class DelegatingRegistry implements EndpointRegistry {
+        private final EndpointRegistry delegate;
+
+        public DelegatingRegistry(EndpointRegistry delegate) {
+            this.delegate = delegate;
+        }
+        public void register(Endpoint endpoint, Map<String, ?> properties) {
+            delegate.register(endpoint, properties);
+        }
+        public void unregister(Endpoint endpoint, Map<String, ?> properties) {
+            delegate.unregister(endpoint, properties);
+        }
+        public void batch(Runnable changes) {
+            delegate.batch(changes);
+        }
+        public List<Endpoint> query(Map<String, ?> properties) {
+            return delegate.query(properties);
+        }
+        public Reference lookup(Map<String, ?> properties) {
+            return delegate.lookup(properties);
+        }
+        public Reference lookup(Document xml) {
+            return delegate.lookup(xml);
+        }
+        public Reference lookup(String filter) {
+            return delegate.lookup(filter);
+        }
+        public Set<Endpoint> getServices() {
+            return delegate.getServices();
+        }
+        public Map<String, ?> getProperties(Endpoint endpoint) {
+            return delegate.getProperties(endpoint);
+        }
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import javax.xml.namespace.QName;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.core.util.StringSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Micro benchmark comparing the size and cost of the binary exchange
+ * format with java serialization.
+ */
+public class ExchangeCodecBenchmarkTest extends TestCase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExchangeCodecBenchmarkTest.class);
+
+    private static final int ITERATIONS = 2000;
+
+    public void testCodecVersusSerialization() throws Exception {
+        Exchange exchange = createExchange();
+        byte[] serialized = serialize(exchange);
+        byte[] encoded = ExchangeCodec.encode(exchange);
+
+        // warm up
+        for (int i = 0; i < ITERATIONS; i++) {
+            deserialize(serialize(exchange));
+            ExchangeCodec.decodeExchange(ExchangeCodec.encode(exchange));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            deserialize(serialize(exchange));
+        }
+        long serialization = (System.nanoTime() - start) / ITERATIONS;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ExchangeCodec.decodeExchange(ExchangeCodec.encode(exchange));
+        }
+        long codec = (System.nanoTime() - start) / ITERATIONS;
+
+        LOG.info("Java serialization: " + serialized.length + " bytes, " + serialization + " ns per round trip");
+        LOG.info("Exchange codec: " + encoded.length + " bytes, " + codec + " ns per round trip");
+        assertTrue("Encoded exchange is larger than the serialized one: " + encoded.length + " vs " + serialized.length,
+                   encoded.length < serialized.length);
+    }
+
+    private Exchange createExchange() {
+        Exchange exchange = new ExchangeImpl(Pattern.InOut);
+        exchange.setOperation(new QName("urn:test", "operation"));
+        exchange.setProperty("JbiCorrelationId", "ID-1234567890");
+        exchange.setProperty("ClusterCorrId.cluster", exchange.getId());
+        exchange.setProperty("ClusterRollbackOnErrors.cluster", Boolean.TRUE);
+        exchange.getIn().setBody(new StringSource("<echo xmlns='urn:test'><text>Hello world</text></echo>"));
+        exchange.getIn().setHeader("SOAPAction", "urn:test:echo");
+        exchange.getIn().setHeader("Content-Length", 52);
+        return exchange;
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(object);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws Exception {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        return ois.readObject();
+    }
+}
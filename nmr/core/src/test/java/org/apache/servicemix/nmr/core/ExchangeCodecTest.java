@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import javax.xml.namespace.QName;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.Message;
+import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.Role;
+import org.apache.servicemix.nmr.api.Status;
+import org.apache.servicemix.nmr.core.util.CachedOutputStream;
+import org.apache.servicemix.nmr.core.util.CachedSource;
+import org.apache.servicemix.nmr.core.util.StringSource;
+
+public class ExchangeCodecTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        ExchangeImpl exchange = new ExchangeImpl(Pattern.InOut);
+        exchange.setOperation(new QName("urn:test", "op", "t"));
+        exchange.setRole(Role.Provider);
+        exchange.setProperty("string", "value");
+        exchange.setProperty("int", 12);
+        exchange.setProperty("long", 1234567890123L);
+        exchange.setProperty("bool", Boolean.TRUE);
+        exchange.setProperty("qname", new QName("urn:test", "name"));
+        exchange.setProperty("bytes", new byte[] { 1, 2, 3 });
+        exchange.setProperty("serializable", new java.util.Date(0));
+        exchange.getIn().setBody(new StringSource("<hello/>"));
+        exchange.getIn().setHeader("header", 'c');
+        exchange.getIn().addAttachment("att", "attachment");
+        exchange.getIn().setContentType("text/xml");
+        exchange.getOut().setBody(new ByteArrayInputStream("out".getBytes()));
+
+        byte[] data = ExchangeCodec.encode(exchange);
+        assertTrue(ExchangeCodec.isEncoded(data));
+        Exchange copy = ExchangeCodec.decodeExchange(data);
+
+        assertEquals(exchange.getId(), copy.getId());
+        assertEquals(Pattern.InOut, copy.getPattern());
+        assertEquals(Status.Active, copy.getStatus());
+        assertEquals(Role.Provider, copy.getRole());
+        assertEquals(exchange.getOperation(), copy.getOperation());
+        assertEquals("t", copy.getOperation().getPrefix());
+        assertEquals("value", copy.getProperty("string"));
+        assertEquals(12, copy.getProperty("int"));
+        assertEquals(1234567890123L, copy.getProperty("long"));
+        assertEquals(Boolean.TRUE, copy.getProperty("bool"));
+        assertEquals(new QName("urn:test", "name"), copy.getProperty("qname"));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) copy.getProperty("bytes")));
+        assertEquals(new java.util.Date(0), copy.getProperty("serializable"));
+        assertEquals("<hello/>", ((StringSource) copy.getIn().getBody()).getText());
+        assertEquals('c', copy.getIn().getHeader("header"));
+        assertEquals("attachment", copy.getIn().getAttachment("att"));
+        assertEquals("text/xml", copy.getIn().getContentType());
+        assertEquals("out", copy.getOut().getBody(String.class));
+        assertEquals("out", exchange.getOut().getBody(String.class));
+        assertNull(copy.getFault(false));
+    }
+
+    public void testError() throws Exception {
+        Exchange exchange = new ExchangeImpl(Pattern.InOnly);
+        exchange.setError(new Exception("failure"));
+        Exchange copy = ExchangeCodec.decodeExchange(ExchangeCodec.encode(exchange));
+        assertEquals(Status.Error, copy.getStatus());
+        assertEquals("failure", copy.getError().getMessage());
+    }
+
+    public void testCachedSource() throws Exception {
+        CachedOutputStream cache = new CachedOutputStream(16);
+        for (int i = 0; i < 100; i++) {
+            cache.write("<a>text</a>".getBytes("UTF-8"));
+        }
+        Message message = new MessageImpl();
+        message.setBody(new CachedSource(cache.getInputStream()));
+        Message copy = ExchangeCodec.decodeMessage(ExchangeCodec.encode(message));
+        InputStream is = ((CachedSource) copy.getBody()).getInputStream();
+        int length = 0;
+        while (is.read() >= 0) {
+            length++;
+        }
+        assertEquals(1100, length);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(message);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        Message deserialized = (Message) ois.readObject();
+        assertEquals(1100, ((StringSource) deserialized.getBody()).getText().length());
+    }
+
+    public void testInvalidData() throws Exception {
+        assertFalse(ExchangeCodec.isEncoded(new byte[] { 1, 2, 3, 4 }));
+        byte[] data = ExchangeCodec.encode(new MessageImpl());
+        try {
+            ExchangeCodec.decodeExchange(data);
+            fail("A message should not be decoded as an exchange");
+        } catch (java.io.StreamCorruptedException e) {
+            // expected
+        }
+    }
+
+}
@@ -33,9 +33,12 @@ import javax.xml.namespace.QName;
 import org.apache.servicemix.nmr.api.Exchange;
 import org.apache.servicemix.nmr.api.Message;
 import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.PropertyKey;
+import org.apache.servicemix.nmr.api.Role;
 import org.apache.servicemix.nmr.api.Status;
 import org.apache.servicemix.nmr.api.Type;
 import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.apache.servicemix.nmr.core.util.PropertyMap;
 
 import junit.framework.TestCase;
 
@@ -54,6 +57,8 @@ public class ExchangeImplTest extends TestCase {
         ObjectOutputStream os = new ObjectOutputStream(baos);
         os.writeObject(e);
         os.close();
+        // nodes without the property map class must be able to read the exchange
+        assertFalse(new String(baos.toByteArray(), "ISO-8859-1").contains(PropertyMap.class.getName()));
         ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
         Exchange cpy = (Exchange) is.readObject();
         assertNotNull(cpy);
@@ -163,6 +168,34 @@ public class ExchangeImplTest extends TestCase {
         assertNotNull(e.getProperty("name"));
     }
 
+    public void testPropertyKeys() {
+        PropertyKey<String> key = PropertyKey.get("test.key", String.class);
+        assertSame(key, PropertyKey.get("test.key", String.class));
+        assertSame(key.child("child"), key.child("child"));
+        assertEquals("test.key.child", key.child("child").getName());
+        Exchange e = new ExchangeImpl(Pattern.InOnly);
+        assertNull(e.getProperty(key));
+        e.setProperty(key, "value");
+        assertEquals("value", e.getProperty(key));
+        assertEquals("value", e.getProperty("test.key"));
+        e.setProperty("test.key", "other");
+        assertEquals("other", e.getProperty(key));
+        Exchange copy = e.copy();
+        assertEquals("other", copy.getProperty(key));
+        assertEquals("other", e.removeProperty(key));
+        assertNull(e.getProperty("test.key"));
+        e.setProperties(createMap("test.key", "val"));
+        assertEquals("val", e.getProperty(key));
+        e.setProperty(key, "value");
+        assertEquals("value", e.getProperties().get("test.key"));
+        try {
+            PropertyKey.get("test.key", Integer.class);
+            fail("Key should not be redefined with another type");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
     public void testDisplay() {
         Exchange e = new ExchangeImpl(Pattern.InOut);
         e.toString();
@@ -232,6 +265,40 @@ public class ExchangeImplTest extends TestCase {
         assertEquals(Status.Error, e.getStatus());
     }
 
+    public void testCancelSync() throws InterruptedException {
+        final InternalExchange e = new ExchangeImpl(Pattern.InOnly);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    e.beginSync(Role.Consumer);
+                    if (e.awaitSync(0)) {
+                        latch.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    fail(e.getMessage());
+                }
+            }
+        };
+        thread.start();
+        //let's sleep for a moment to make sure the thread is waiting
+        Thread.sleep(150);
+        assertTrue(e.isSyncPending(Role.Consumer));
+        e.cancel();
+        assertTrue("Exchange should have been cancelled", latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Status.Error, e.getStatus());
+        assertFalse(e.isSyncPending(Role.Consumer));
+    }
+
+    public void testSyncTimeout() throws InterruptedException {
+        InternalExchange e = new ExchangeImpl(Pattern.InOnly);
+        e.beginSync(Role.Consumer);
+        assertFalse(e.awaitSync(50));
+        assertFalse(e.isSyncPending(Role.Consumer));
+        assertFalse("Late completion should be ignored", e.completeSync(Role.Consumer));
+    }
+
     public static Map<String, Object> createMap(String... data) {
         Map<String, Object> props = new HashMap<String, Object>();
         for (int i = 0; i < data.length / 2; i++) {
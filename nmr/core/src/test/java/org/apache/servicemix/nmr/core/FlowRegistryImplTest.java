@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.security.auth.Subject;
+import javax.xml.namespace.QName;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.Channel;
+import org.apache.servicemix.nmr.api.Endpoint;
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.NMR;
+import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.ServiceMixException;
+import org.apache.servicemix.nmr.api.internal.Flow;
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+import org.apache.servicemix.nmr.api.internal.InternalExchange;
+import org.apache.servicemix.nmr.api.security.AuthorizationService;
+import org.apache.servicemix.nmr.api.security.GroupPrincipal;
+import org.apache.servicemix.nmr.api.service.ServiceHelper;
+import org.apache.servicemix.nmr.core.security.DefaultAuthorizationEntry;
+import org.apache.servicemix.nmr.core.security.DefaultAuthorizationService;
+
+public class FlowRegistryImplTest extends TestCase {
+
+    private NMR nmr;
+    private int processed;
+
+    public void setUp() {
+        ServiceMix smx = new ServiceMix();
+        smx.init();
+        nmr = smx;
+        nmr.getEndpointRegistry().register(new Endpoint() {
+            public void setChannel(Channel channel) {
+            }
+            public void process(Exchange exchange) {
+                processed++;
+            }
+        }, ServiceHelper.createMap(Endpoint.NAME, "ep", Endpoint.CHANNEL_SYNC_DELIVERY, "true"));
+    }
+
+    public void testSpecificFlowsArePreferred() throws Exception {
+        Channel client = nmr.createChannel();
+        send(client, "first");
+        assertEquals(1, processed);
+
+        PropertyFlow flow = new PropertyFlow();
+        nmr.getFlowRegistry().register(flow, ServiceHelper.createMap(Flow.ID, "property"));
+        send(client, "first");
+        send(client, "intercept");
+        assertEquals(2, processed);
+        assertEquals(1, flow.dispatched);
+
+        nmr.getFlowRegistry().unregister(flow, null);
+        send(client, "intercept");
+        assertEquals(3, processed);
+        assertEquals(1, flow.dispatched);
+    }
+
+    public void testAuthorization() throws Exception {
+        DefaultAuthorizationService authorizationService = new DefaultAuthorizationService();
+        authorizationService.register(new DefaultAuthorizationEntry("*", null, "role1"), null);
+        ((FlowRegistryImpl) nmr.getFlowRegistry()).setAuthorizationService(authorizationService);
+        Channel client = nmr.createChannel();
+
+        for (int i = 0; i < 3; i++) {
+            send(client, "first", new GroupPrincipal("role1"));
+        }
+        assertEquals(3, processed);
+        try {
+            send(client, "first", new GroupPrincipal("role2"));
+            fail("Subject should not have been authorized");
+        } catch (ServiceMixException e) {
+            // expected
+        }
+        try {
+            send(client, "first");
+            fail("Exchange without subject should not have been authorized");
+        } catch (ServiceMixException e) {
+            // expected
+        }
+        assertEquals(3, processed);
+
+        // Cached decisions must not survive a change of the entries
+        authorizationService.register(new DefaultAuthorizationEntry("*", null, "role2"), null);
+        send(client, "first", new GroupPrincipal("role2"));
+        assertEquals(4, processed);
+    }
+
+    public void testCustomAuthorizationService() throws Exception {
+        final Set<GroupPrincipal> acls = new HashSet<GroupPrincipal>();
+        acls.add(new GroupPrincipal("role1"));
+        ((FlowRegistryImpl) nmr.getFlowRegistry()).setAuthorizationService(new AuthorizationService() {
+            public Set<GroupPrincipal> getAcls(String endpoint, QName operation) {
+                return acls;
+            }
+        });
+        Channel client = nmr.createChannel();
+
+        send(client, "first", new GroupPrincipal("role1"));
+        assertEquals(1, processed);
+
+        // Decisions are not cached for services that may update their ACLs in place
+        acls.clear();
+        acls.add(new GroupPrincipal("role2"));
+        try {
+            send(client, "first", new GroupPrincipal("role1"));
+            fail("Subject should not have been authorized");
+        } catch (ServiceMixException e) {
+            // expected
+        }
+        assertEquals(1, processed);
+    }
+
+    private void send(Channel client, String property, Principal... principals) {
+        Exchange e = client.createExchange(Pattern.InOnly);
+        e.setProperty("flow", property);
+        e.setTarget(nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.NAME, "ep")));
+        if (principals.length > 0) {
+            e.getIn().setSecuritySubject(new Subject(false, new HashSet<Principal>(Arrays.asList(principals)),
+                    new HashSet<Object>(), new HashSet<Object>()));
+        }
+        client.send(e);
+    }
+
+    protected static class PropertyFlow implements Flow {
+        private int dispatched;
+
+        public boolean canDispatch(InternalExchange exchange, InternalEndpoint endpoint) {
+            return "intercept".equals(exchange.getProperty("flow"));
+        }
+
+        public void dispatch(InternalExchange exchange) {
+            dispatched++;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.event.EndpointListener;
+import org.apache.servicemix.nmr.api.event.ExchangeListener;
+import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+
+public class ListenerRegistryImplTest extends TestCase {
+
+    public void testListenersByType() {
+        ListenerRegistryImpl registry = new ListenerRegistryImpl();
+        assertEquals(0, registry.getListenerArray(ExchangeListener.class).length);
+
+        ExchangeListener exchangeListener = new DummyExchangeListener();
+        EndpointListener endpointListener = new DummyEndpointListener();
+        registry.register(exchangeListener, null);
+        registry.register(endpointListener, null);
+
+        ExchangeListener[] listeners = registry.getListenerArray(ExchangeListener.class);
+        assertEquals(1, listeners.length);
+        assertSame(exchangeListener, listeners[0]);
+        assertSame(listeners, registry.getListenerArray(ExchangeListener.class));
+
+        Iterator<EndpointListener> it = registry.getListeners(EndpointListener.class).iterator();
+        assertTrue(it.hasNext());
+        assertSame(endpointListener, it.next());
+        assertFalse(it.hasNext());
+
+        registry.unregister(exchangeListener, null);
+        assertEquals(0, registry.getListenerArray(ExchangeListener.class).length);
+        assertEquals(1, registry.getListenerArray(EndpointListener.class).length);
+    }
+
+    protected static class DummyExchangeListener implements ExchangeListener {
+        public void exchangeSent(Exchange exchange) {
+        }
+        public void exchangeDelivered(Exchange exchange) {
+        }
+        public void exchangeFailed(Exchange exchange) {
+        }
+    }
+
+    protected static class DummyEndpointListener implements EndpointListener {
+        public void endpointRegistered(InternalEndpoint endpoint) {
+        }
+        public void endpointUnregistered(InternalEndpoint endpoint) {
+        }
+    }
+}
@@ -130,6 +130,15 @@ public class MessageImplTest extends TestCase {
         assertNotNull(cpy);
         assertNotNull(cpy.getHeader("header"));
         assertNotNull(cpy.getAttachment("id"));
+
+        cpy.setHeader("header", "other");
+        cpy.removeAttachment("id");
+        msg.setHeader("another", "value");
+        assertEquals("value", msg.getHeader("header"));
+        assertEquals("att", msg.getAttachment("id"));
+        assertEquals("other", cpy.getHeader("header"));
+        assertNull(cpy.getAttachment("id"));
+        assertNull(cpy.getHeader("another"));
     }
 
     public void testWrite() throws Exception {
@@ -21,6 +21,7 @@ import java.util.Map;
 
 import junit.framework.TestCase;
 
+import org.apache.servicemix.nmr.api.Endpoint;
 import org.apache.servicemix.nmr.api.Wire;
 import org.apache.servicemix.nmr.api.WireRegistry;
 import org.apache.servicemix.nmr.api.service.ServiceHelper;
@@ -66,6 +67,46 @@ public class WireRegistryImplTest extends TestCase {
         assertEquals(null, registry.getProperties(wire));
     }
     
+    public void testPrecedence() {
+        WireRegistry registry = new WireRegistryImpl();
+        Wire broad = ServiceHelper.createWire(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "{urn:test}service",
+                                                                      Endpoint.ENDPOINT_NAME, "endpoint"),
+                                              ServiceHelper.createMap(Endpoint.NAME, "broad"));
+        Wire first = ServiceHelper.createWire(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "{urn:test}service",
+                                                                      Endpoint.ENDPOINT_NAME, "other"),
+                                              ServiceHelper.createMap(Endpoint.NAME, "first"));
+        Wire exact = ServiceHelper.createWire(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "{urn:test}service"),
+                                              ServiceHelper.createMap(Endpoint.NAME, "exact"));
+        registry.register(broad);
+        registry.register(first);
+        Map<String, Object> props = ServiceHelper.createMap(Endpoint.SERVICE_NAME, "{urn:test}service");
+        assertSame(broad, registry.getWire(props));
+        registry.register(exact);
+        assertSame(exact, registry.getWire(props));
+        assertSame(first, registry.getWire(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "{urn:test}service",
+                                                                   Endpoint.ENDPOINT_NAME, "other")));
+        registry.unregister(exact);
+        assertSame(broad, registry.getWire(props));
+        assertNull(registry.getWire(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "{urn:test}unknown")));
+        assertNull(registry.getWire(null));
+    }
+
+    public void testManyWires() {
+        WireRegistryImpl registry = new WireRegistryImpl();
+        registry.setCacheSize(16);
+        for (int i = 0; i < 1000; i++) {
+            registry.register(ServiceHelper.createWire(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "service" + i),
+                                                       ServiceHelper.createMap(Endpoint.NAME, "target" + i)));
+        }
+        for (int j = 0; j < 2; j++) {
+            for (int i = 0; i < 1000; i++) {
+                Wire wire = registry.getWire(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "service" + i));
+                assertEquals("target" + i, wire.getTo().get(Endpoint.NAME));
+            }
+        }
+        assertNull(registry.getWire(ServiceHelper.createMap("custom", "value")));
+    }
+
     private static final class MockWire implements Wire {
 
         public Map<String, ?> getFrom() {
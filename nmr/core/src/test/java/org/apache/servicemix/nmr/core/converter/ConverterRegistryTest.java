@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.core.util.StringSource;
+import org.w3c.dom.Document;
+
+public class ConverterRegistryTest extends TestCase {
+
+    private ConverterRegistry registry;
+
+    protected void setUp() {
+        registry = new ConverterRegistry();
+    }
+
+    public void testDefaultConverters() throws Exception {
+        assertEquals("<hello/>", registry.convert(new StringSource("<hello/>"), String.class));
+        assertEquals("<hello/>", registry.convert("<hello/>", StringSource.class).getText());
+        assertTrue(registry.convert("<hello/>", Source.class) instanceof StringSource);
+
+        DOMSource dom = registry.convert(new StringSource("<hello/>"), DOMSource.class);
+        assertEquals("hello", ((Document) dom.getNode()).getDocumentElement().getLocalName());
+        StreamSource stream = registry.convert(dom, StreamSource.class);
+        assertTrue(registry.convert(stream, String.class).indexOf("<hello/>") >= 0);
+        assertTrue(registry.convert(dom, String.class).indexOf("<hello/>") >= 0);
+
+        byte[] data = new byte[] { 1, 2, 3 };
+        InputStream is = registry.convert(data, InputStream.class);
+        assertTrue(Arrays.equals(data, registry.convert(is, byte[].class)));
+        assertTrue(Arrays.equals(data, registry.convert(new ByteArrayInputStream(data), byte[].class)));
+    }
+
+    public void testLookupIsRemembered() throws Exception {
+        assertNull(registry.lookup(Integer.class, StringBuffer.class));
+        assertNull(registry.convert(1, StringBuffer.class));
+        TypeConverter converter = new TypeConverter() {
+            public Object convert(Object value) {
+                return new StringBuffer(value.toString());
+            }
+        };
+        registry.register(Number.class, StringBuffer.class, converter);
+        assertSame(converter, registry.lookup(Integer.class, StringBuffer.class));
+        assertSame(registry.lookup(Integer.class, StringBuffer.class), registry.lookup(Integer.class, StringBuffer.class));
+        assertEquals("1", registry.convert(1, StringBuffer.class).toString());
+    }
+
+    public void testLoadIndex() throws Exception {
+        File dir = new File("target/converter-index");
+        File index = new File(dir, ConverterRegistry.INDEX);
+        index.getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream(index);
+        os.write(("# test index\n"
+                + "java.lang.Integer java.lang.StringBuffer " + IntegerConverter.class.getName() + "\n"
+                + "java.lang.Integer unknown.Class " + IntegerConverter.class.getName() + "\n").getBytes("UTF-8"));
+        os.close();
+        registry.loadIndex(new URLClassLoader(new URL[] { dir.toURI().toURL() }, getClass().getClassLoader()));
+        assertEquals("42", registry.convert(42, StringBuffer.class).toString());
+    }
+
+    public void testLookupsAreBounded() throws Exception {
+        registry.setCacheSize(1);
+        URL classes = IntegerConverter.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[] { classes }, null);
+        Class<?> clazz = loader.loadClass(Dummy.class.getName());
+        assertNotSame(Dummy.class, clazz);
+        assertNull(registry.lookup(clazz, String.class));
+        WeakReference<ClassLoader> ref = new WeakReference<ClassLoader>(loader);
+        loader = null;
+        clazz = null;
+        // remembering another lookup evicts the first one
+        assertNull(registry.lookup(Integer.class, StringBuffer.class));
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(ref.get());
+    }
+
+    public static class Dummy {
+    }
+
+    public static class IntegerConverter implements TypeConverter {
+        public Object convert(Object value) {
+            return new StringBuffer(value.toString());
+        }
+    }
+
+}
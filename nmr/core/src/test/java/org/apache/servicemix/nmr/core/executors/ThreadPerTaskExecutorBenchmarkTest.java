@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.executors;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.executors.Executor;
+import org.apache.servicemix.executors.ExecutorFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Micro benchmark comparing the pooled executor with the thread per task
+ * executor for tasks blocking on I/O.
+ */
+public class ThreadPerTaskExecutorBenchmarkTest extends TestCase {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadPerTaskExecutorBenchmarkTest.class);
+
+    private static final int TASKS = 500;
+    private static final int BLOCKING_TIME = 20;
+
+    public void testBlockingThroughput() throws Exception {
+        EndpointExecutorFactory factory = new EndpointExecutorFactory();
+        Map<String, Object> props = Collections.<String, Object>singletonMap(ExecutorFactory.QUEUE_SIZE, TASKS);
+        Executor pooled = factory.createExecutor("nmr.endpoint.pooled", props);
+        factory.setThreadPerTask("nmr.endpoint.virtual", 200);
+        Executor threadPerTask = factory.createExecutor("nmr.endpoint.virtual");
+        assertTrue(threadPerTask instanceof ThreadPerTaskExecutor);
+
+        // warm up
+        measure(pooled);
+        measure(threadPerTask);
+
+        long[] pooledResult = measure(pooled);
+        long[] threadPerTaskResult = measure(threadPerTask);
+        // timings depend too much on the machine to be asserted, so only report them
+        LOG.info("Pooled executor: " + TASKS * 1000L / pooledResult[0] + " tasks/s, " + pooledResult[1] / 1024 + " kB");
+        LOG.info("Thread per task executor (virtual threads: " + ThreadPerTaskExecutor.isVirtualThreadSupported()
+                 + "): " + TASKS * 1000L / threadPerTaskResult[0] + " tasks/s, " + threadPerTaskResult[1] / 1024 + " kB");
+
+        pooled.shutdown();
+        threadPerTask.shutdown();
+    }
+
+    /*
+     * Returns the elapsed time in milliseconds and the heap growth in bytes
+     */
+    private long[] measure(Executor executor) throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long memory = runtime.totalMemory() - runtime.freeMemory();
+        final CountDownLatch done = new CountDownLatch(TASKS);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < TASKS; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(BLOCKING_TIME);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        long used = runtime.totalMemory() - runtime.freeMemory() - memory;
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        return new long[] { Math.max(System.currentTimeMillis() - start, 1), Math.max(used, 0) };
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.executors;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.executors.Executor;
+
+public class ThreadPerTaskExecutorTest extends TestCase {
+
+    public void testMaxConcurrency() throws Exception {
+        ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor("test", 5);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    int current = active.incrementAndGet();
+                    while (true) {
+                        int m = max.get();
+                        if (current <= m || max.compareAndSet(m, current)) {
+                            break;
+                        }
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    active.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue("Too many concurrent tasks: " + max.get(), max.get() <= 5);
+        assertEquals(0, executor.size());
+    }
+
+    public void testFailingTask() throws Exception {
+        ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor("test", 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("expected");
+            }
+        });
+        executor.execute(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testInvalidMaxConcurrency() throws Exception {
+        EndpointExecutorFactory factory = new EndpointExecutorFactory();
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(EndpointExecutorFactory.EXECUTOR_MODE, EndpointExecutorFactory.MODE_VIRTUAL);
+        props.put(EndpointExecutorFactory.MAX_CONCURRENCY, "lots");
+        Executor executor = factory.createExecutor("test", props);
+        assertTrue(executor instanceof ThreadPerTaskExecutor);
+        assertEquals(getDefaultCapacity(), ((ThreadPerTaskExecutor) executor).capacity());
+        executor.shutdown();
+
+        props.remove(EndpointExecutorFactory.MAX_CONCURRENCY);
+        executor = factory.createExecutor("test", props);
+        assertEquals(getDefaultCapacity(), ((ThreadPerTaskExecutor) executor).capacity());
+        executor.shutdown();
+
+        props.put(EndpointExecutorFactory.MAX_CONCURRENCY, 8);
+        executor = factory.createExecutor("test", props);
+        assertEquals(8, ((ThreadPerTaskExecutor) executor).capacity());
+        executor.shutdown();
+    }
+
+    public void testDefaultMaxConcurrency() throws Exception {
+        ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor("test", 0);
+        assertEquals(getDefaultCapacity(), executor.capacity());
+        executor.shutdown();
+    }
+
+    private static int getDefaultCapacity() {
+        return ThreadPerTaskExecutor.isVirtualThreadSupported()
+                ? Integer.MAX_VALUE : ThreadPerTaskExecutor.DEFAULT_MAX_CONCURRENCY;
+    }
+
+}
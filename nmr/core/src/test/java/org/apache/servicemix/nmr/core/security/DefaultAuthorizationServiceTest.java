@@ -77,6 +77,19 @@ public class DefaultAuthorizationServiceTest extends TestCase {
         assertTrue(acls.contains(GroupPrincipal.ANY));
     }
 
+    public void testMatchOverride() {
+        service = new DefaultAuthorizationService() {
+            protected boolean match(AuthorizationEntry entry, String endpoint, QName operation) {
+                return endpoint.equalsIgnoreCase(entry.getEndpoint());
+            }
+        };
+        addEntry("ep1", null, "role1", AuthorizationEntry.Type.Add);
+
+        Set<GroupPrincipal> acls = service.getAcls("EP1", null);
+        assertEquals(1, acls.size());
+        assertTrue(acls.contains(new GroupPrincipal("role1")));
+    }
+
     protected void addEntry(String endpoint, QName operation, String roles) {
         addEntry(endpoint, operation, roles, AuthorizationEntry.Type.Add);
     }
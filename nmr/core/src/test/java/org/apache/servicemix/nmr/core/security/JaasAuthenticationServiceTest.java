@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.security;
+
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.security.GroupPrincipal;
+import org.apache.servicemix.nmr.api.security.UserPrincipal;
+
+public class JaasAuthenticationServiceTest extends TestCase {
+
+    private static final AtomicInteger LOGINS = new AtomicInteger();
+
+    private Configuration previous;
+    private JaasAuthenticationService service;
+
+    protected void setUp() {
+        try {
+            previous = Configuration.getConfiguration();
+        } catch (SecurityException e) {
+            previous = null;
+        }
+        Configuration.setConfiguration(new Configuration() {
+            public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+                return new AppConfigurationEntry[] {
+                    new AppConfigurationEntry(TestLoginModule.class.getName(),
+                            AppConfigurationEntry.LoginModuleControlFlag.REQUIRED,
+                            Collections.<String, Object>emptyMap())
+                };
+            }
+            public void refresh() {
+            }
+        });
+        LOGINS.set(0);
+        service = new JaasAuthenticationService();
+    }
+
+    protected void tearDown() {
+        Configuration.setConfiguration(previous);
+    }
+
+    public void testNoCacheByDefault() throws Exception {
+        authenticate("user", "secret");
+        authenticate("user", "secret");
+        assertEquals(2, LOGINS.get());
+        assertEquals(0, service.getCacheHitCount());
+    }
+
+    public void testCache() throws Exception {
+        service.setCacheTimeToLive(60000);
+        Subject subject = authenticate("user", "secret");
+        assertEquals(1, subject.getPrincipals(UserPrincipal.class).size());
+        subject = authenticate("user", "secret");
+        assertEquals(1, LOGINS.get());
+        assertEquals(1, subject.getPrincipals(UserPrincipal.class).size());
+        assertEquals(1, service.getCacheHitCount());
+        assertEquals(1, service.getCacheMissCount());
+
+        // Other credentials must not match the cached subject
+        try {
+            authenticate("user", "wrong");
+            fail("Authentication should have failed");
+        } catch (FailedLoginException e) {
+            // expected
+        }
+        assertEquals(2, LOGINS.get());
+
+        service.invalidateCache();
+        authenticate("user", "secret");
+        assertEquals(3, LOGINS.get());
+    }
+
+    public void testCacheExpiry() throws Exception {
+        service.setCacheTimeToLive(50);
+        authenticate("user", "secret");
+        Thread.sleep(100);
+        authenticate("user", "secret");
+        assertEquals(2, LOGINS.get());
+        assertEquals(0, service.getCacheHitCount());
+    }
+
+    public void testCacheKeyFields() throws Exception {
+        service.setCacheTimeToLive(60000);
+        Subject subject = new Subject();
+        service.authenticate(subject, "test|a", "b", "secret");
+        subject = new Subject();
+        service.authenticate(subject, "test", "a|b", "secret");
+        assertEquals(2, LOGINS.get());
+        assertEquals("a|b", subject.getPrincipals(UserPrincipal.class).iterator().next().getName());
+    }
+
+    public void testCacheOnlyAddedPrincipals() throws Exception {
+        service.setCacheTimeToLive(60000);
+        Subject subject = new Subject();
+        subject.getPrincipals().add(new GroupPrincipal("caller"));
+        service.authenticate(subject, "test", "user", "secret");
+        subject = authenticate("user", "secret");
+        assertEquals(1, LOGINS.get());
+        assertEquals(1, subject.getPrincipals(UserPrincipal.class).size());
+        assertTrue(subject.getPrincipals(GroupPrincipal.class).isEmpty());
+    }
+
+    private Subject authenticate(String user, String password) throws GeneralSecurityException {
+        Subject subject = new Subject();
+        service.authenticate(subject, "test", user, password);
+        return subject;
+    }
+
+    public static class TestLoginModule implements LoginModule {
+
+        private Subject subject;
+        private CallbackHandler handler;
+        private String user;
+
+        public void initialize(Subject subject, CallbackHandler callbackHandler,
+                               Map<String, ?> sharedState, Map<String, ?> options) {
+            this.subject = subject;
+            this.handler = callbackHandler;
+        }
+
+        public boolean login() throws LoginException {
+            LOGINS.incrementAndGet();
+            NameCallback name = new NameCallback("user");
+            PasswordCallback password = new PasswordCallback("password", false);
+            try {
+                handler.handle(new Callback[] {name, password});
+            } catch (Exception e) {
+                throw new LoginException(e.toString());
+            }
+            if (!"secret".equals(new String(password.getPassword()))) {
+                throw new FailedLoginException();
+            }
+            user = name.getName();
+            return true;
+        }
+
+        public boolean commit() throws LoginException {
+            subject.getPrincipals().add(new UserPrincipal(user));
+            return true;
+        }
+
+        public boolean abort() throws LoginException {
+            return true;
+        }
+
+        public boolean logout() throws LoginException {
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.selector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.Channel;
+import org.apache.servicemix.nmr.api.Endpoint;
+import org.apache.servicemix.nmr.api.Exchange;
+import org.apache.servicemix.nmr.api.NMR;
+import org.apache.servicemix.nmr.api.Pattern;
+import org.apache.servicemix.nmr.api.Reference;
+import org.apache.servicemix.nmr.api.Status;
+import org.apache.servicemix.nmr.api.service.ServiceHelper;
+import org.apache.servicemix.nmr.core.ChannelImpl;
+import org.apache.servicemix.nmr.core.FlowRegistryImpl;
+import org.apache.servicemix.nmr.core.PropertyMatchingReference;
+import org.apache.servicemix.nmr.core.ServiceMix;
+
+public class EndpointSelectorTest extends TestCase {
+
+    private NMR nmr;
+    private List<CountingEndpoint> endpoints;
+    private Channel client;
+
+    public void setUp() {
+        ServiceMix smx = new ServiceMix();
+        smx.init();
+        nmr = smx;
+        endpoints = new ArrayList<CountingEndpoint>();
+        for (int i = 0; i < 3; i++) {
+            CountingEndpoint ep = new CountingEndpoint();
+            nmr.getEndpointRegistry().register(ep, ServiceHelper.createMap(Endpoint.NAME, "ep" + i,
+                                                                           Endpoint.SERVICE_NAME, "test:service",
+                                                                           Endpoint.CHANNEL_SYNC_DELIVERY, "true",
+                                                                           WeightedSelector.WEIGHT, i == 2 ? "0" : "1"));
+            endpoints.add(ep);
+        }
+        client = nmr.createChannel();
+    }
+
+    public void testFirstEndpointByDefault() throws Exception {
+        send(nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service")), 9);
+        int used = 0;
+        for (CountingEndpoint ep : endpoints) {
+            if (ep.count > 0) {
+                assertEquals(9, ep.count);
+                used++;
+            }
+        }
+        assertEquals(1, used);
+    }
+
+    public void testRoundRobinPerReference() throws Exception {
+        Reference ref = nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service"));
+        send(new SelectingReference(ref, new RoundRobinSelector()), 9);
+        for (CountingEndpoint ep : endpoints) {
+            assertEquals(3, ep.count);
+        }
+    }
+
+    public void testRoundRobinBatch() throws Exception {
+        Reference ref = new SelectingReference(
+                nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service")),
+                new RoundRobinSelector());
+        List<Exchange> batch = new ArrayList<Exchange>();
+        for (int i = 0; i < 9; i++) {
+            Exchange e = client.createExchange(Pattern.InOnly);
+            e.setTarget(ref);
+            batch.add(e);
+        }
+        client.sendBatch(batch);
+        for (CountingEndpoint ep : endpoints) {
+            assertEquals(3, ep.count);
+        }
+    }
+
+    public void testSerialization() throws Exception {
+        Reference ref = nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service"));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(new SelectingReference(ref, new RoundRobinSelector()));
+        oos.close();
+        Object copy = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+        assertTrue(copy instanceof PropertyMatchingReference);
+        send((Reference) copy, 3);
+        assertEquals(3, endpoints.get(0).count + endpoints.get(1).count + endpoints.get(2).count);
+    }
+
+    public void testWeightedPerServiceName() throws Exception {
+        ((FlowRegistryImpl) nmr.getFlowRegistry()).setSelector("test:service", new WeightedSelector());
+        send(nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service")), 50);
+        assertEquals(50, endpoints.get(0).count + endpoints.get(1).count);
+        assertEquals(0, endpoints.get(2).count);
+    }
+
+    public void testRandomDefaultSelector() throws Exception {
+        ((FlowRegistryImpl) nmr.getFlowRegistry()).setDefaultSelector(new RandomSelector());
+        send(nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service")), 30);
+        assertEquals(30, endpoints.get(0).count + endpoints.get(1).count + endpoints.get(2).count);
+    }
+
+    public void testLeastInFlight() throws Exception {
+        for (CountingEndpoint ep : endpoints) {
+            ep.complete = false;
+        }
+        Reference ref = new SelectingReference(
+                nmr.getEndpointRegistry().lookup(ServiceHelper.createMap(Endpoint.SERVICE_NAME, "test:service")),
+                new LeastInFlightSelector());
+        send(ref, 6);
+        for (CountingEndpoint ep : endpoints) {
+            assertEquals(2, ep.count);
+            assertEquals(2, ep.channel.getInFlightCount());
+        }
+        endpoints.get(1).done();
+        assertEquals(0, endpoints.get(1).channel.getInFlightCount());
+        send(ref, 2);
+        assertEquals(4, endpoints.get(1).count);
+    }
+
+    private void send(Reference target, int nb) {
+        for (int i = 0; i < nb; i++) {
+            Exchange e = client.createExchange(Pattern.InOnly);
+            e.setTarget(target);
+            client.send(e);
+        }
+    }
+
+    protected static class CountingEndpoint implements Endpoint {
+        private ChannelImpl channel;
+        private int count;
+        private boolean complete = true;
+        private List<Exchange> pending = new ArrayList<Exchange>();
+
+        public void setChannel(Channel channel) {
+            this.channel = (ChannelImpl) channel;
+        }
+
+        public void process(Exchange exchange) {
+            if (exchange.getStatus() == Status.Active) {
+                count++;
+                pending.add(exchange);
+                if (complete) {
+                    done();
+                }
+            }
+        }
+
+        public void done() {
+            for (Exchange exchange : pending) {
+                exchange.setStatus(Status.Done);
+                channel.send(exchange);
+            }
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import junit.framework.TestCase;
+
+public class BoundedCacheTest extends TestCase {
+
+    public void test() {
+        BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(3);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, Integer.toString(i));
+            assertEquals(Integer.toString(i), cache.get(i));
+            assertTrue(cache.size() <= 3);
+        }
+        cache.put(9, "nine");
+        assertEquals("nine", cache.get(9));
+        assertEquals(3, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(9));
+    }
+
+}
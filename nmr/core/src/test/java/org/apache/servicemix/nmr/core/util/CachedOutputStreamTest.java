@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class CachedOutputStreamTest extends TestCase {
+
+    public void testInMemory() throws Exception {
+        byte[] data = createData(3 * BufferPool.CHUNK_SIZE + 17);
+        CachedOutputStream cos = new CachedOutputStream(data.length);
+        cos.write(data, 0, 10);
+        cos.write(data[10]);
+        cos.write(data, 11, data.length - 11);
+        CachedInputStream cis = cos.getInputStream();
+        assertFalse(cis.isSpilled());
+        assertEquals(data.length, cis.length());
+        assertTrue(Arrays.equals(data, read(cis)));
+        cis.reset();
+        assertTrue(Arrays.equals(data, read(cis)));
+        assertTrue(Arrays.equals(data, read(cis.newInputStream())));
+        cis.dispose();
+        try {
+            cis.newInputStream().read();
+            fail("Disposed content should not be readable");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testSpill() throws Exception {
+        byte[] data = createData(5 * BufferPool.CHUNK_SIZE + 3);
+        CachedOutputStream cos = new CachedOutputStream(2 * BufferPool.CHUNK_SIZE);
+        assertEquals(data.length, cos.readFrom(new ByteArrayInputStream(data)));
+        assertTrue(cos.isSpilled());
+        CachedInputStream cis = cos.getInputStream();
+        assertTrue(cis.isSpilled());
+        assertEquals(data.length, cis.length());
+
+        assertEquals(data[0], (byte) cis.read());
+        cis.mark(0);
+        assertEquals(100, cis.skip(100));
+        assertEquals(data[101], (byte) cis.read());
+        cis.reset();
+        assertEquals(data[1], (byte) cis.read());
+        cis.close();
+
+        assertTrue(Arrays.equals(data, read(cis.newInputStream())));
+        File file = new File(cis.toString().substring(cis.toString().indexOf("file=") + 5, cis.toString().length() - 1));
+        assertTrue(file.exists());
+        cis.dispose();
+        assertFalse(file.exists());
+    }
+
+    public void testSpilledContentCollected() throws Exception {
+        CachedOutputStream cos = new CachedOutputStream(16);
+        cos.readFrom(new ByteArrayInputStream(createData(100)));
+        String name = cos.getInputStream().toString();
+        File file = new File(name.substring(name.indexOf("file=") + 5, name.length() - 1));
+        assertTrue(file.exists());
+        cos = null;
+        // the file is deleted when another content is spilled once the first one has been collected
+        for (int i = 0; i < 50 && file.exists(); i++) {
+            System.gc();
+            Thread.sleep(20);
+            CachedOutputStream other = new CachedOutputStream(16);
+            other.readFrom(new ByteArrayInputStream(createData(100)));
+            other.getInputStream().dispose();
+        }
+        assertFalse(file.exists());
+    }
+
+    public void testSerializeSourceEncoding() throws Exception {
+        String text = "<hello>caf\u00e9</hello>";
+        assertSerialized(text, "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" + text, "ISO-8859-1");
+        assertSerialized(text, "<?xml version='1.0' encoding='UTF-16'?>" + text, "UTF-16");
+        assertSerialized(text, text, "UTF-8");
+    }
+
+    private void assertSerialized(String expected, String xml, String encoding) throws Exception {
+        CachedOutputStream cos = new CachedOutputStream();
+        cos.readFrom(new ByteArrayInputStream(xml.getBytes(encoding)));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(new CachedSource(cos.getInputStream()));
+        oos.close();
+        StringSource copy = (StringSource) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+        assertTrue(copy.getText().endsWith(expected));
+        assertTrue(copy.getText().startsWith("<"));
+    }
+
+    public void testEmpty() throws Exception {
+        CachedOutputStream cos = new CachedOutputStream();
+        assertEquals(0, cos.readFrom(new ByteArrayInputStream(new byte[0])));
+        CachedInputStream cis = cos.getInputStream();
+        assertEquals(0, cis.length());
+        assertEquals(-1, cis.read());
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        CachedOutputStream cos = new CachedOutputStream(Long.MAX_VALUE);
+        cos.readFrom(is);
+        return ExchangeUtilsTest.toByteArray(cos.getInputStream());
+    }
+
+}
@@ -31,6 +31,11 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.dom.DOMSource;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 
 public class ExchangeUtilsTest extends TestCase {
 
@@ -73,19 +78,92 @@ public class ExchangeUtilsTest extends TestCase {
         assertNotNull(msg.getBody());
         assertTrue(msg.getBody() instanceof StringSource);
         assertNotNull(msg.getAttachment("id"));
-        assertTrue(msg.getAttachment("id") instanceof ByteArrayInputStream);
+        assertTrue(msg.getAttachment("id") instanceof BufferedInputStream);
         assertTrue(str.indexOf("<hello/>") != -1);
+        assertTrue(str.indexOf("[1, 2, 3, 4]") != -1);
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4 }, toByteArray((InputStream) msg.getAttachment("id"))));
 
         // now switch to suppression mode
-        System.setProperty(ExchangeUtils.SYSTEM_PROPERTY_SUPPRESS_CONTENT, "true");
+        ExchangeUtils.setSuppressContent(true);
+        try {
+            str = e.display(true);
+            logger.info(str);
+            assertNotNull(msg.getBody());
+            assertTrue(msg.getBody() instanceof StringSource);
+            assertTrue(str.indexOf("<hello/>") == -1);
+        } finally {
+            ExchangeUtils.setSuppressContent(false);
+        }
+    }
 
-        str = e.display(true);
-        logger.info(str);
-        assertNotNull(msg.getBody());
-        assertTrue(msg.getBody() instanceof StringSource);
-        assertNotNull(msg.getAttachment("id"));
-        assertTrue(msg.getAttachment("id") instanceof ByteArrayInputStream);
-        assertTrue(str.indexOf("<hello/>") == -1);
+    public void testDisplayDoesNotReadWholeContent() throws Exception {
+        byte[] data = new byte[100 * ExchangeUtils.MAX_MSG_DISPLAY_SIZE];
+        Arrays.fill(data, (byte) 'a');
+        final int[] read = new int[1];
+        InputStream body = new FilterInputStream(new ByteArrayInputStream(data)) {
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                read[0] += Math.max(n, 0);
+                return n;
+            }
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        Exchange e = new ExchangeImpl(Pattern.InOnly);
+        e.getIn().setBody(body);
+
+        String str = e.display(true);
+        assertTrue(str.indexOf("aaaa...") != -1);
+        assertTrue(read[0] <= ExchangeUtils.MAX_MSG_DISPLAY_SIZE + 1);
+        assertTrue(Arrays.equals(data, toByteArray((InputStream) e.getIn().getBody())));
+    }
+
+    public void testReReadableLargeContent() throws Exception {
+        long threshold = CachedOutputStream.getDefaultThreshold();
+        CachedOutputStream.setDefaultThreshold(4 * BufferPool.CHUNK_SIZE);
+        try {
+            StringBuilder sb = new StringBuilder("<hello>");
+            for (int i = 0; i < 10000; i++) {
+                sb.append("<world/>");
+            }
+            sb.append("</hello>");
+            byte[] data = sb.toString().getBytes("UTF-8");
+
+            Exchange e = new ExchangeImpl(Pattern.InOnly);
+            Message msg = e.getIn();
+            msg.addAttachment("id", new BufferedInputStream(new ByteArrayInputStream(data)));
+            msg.setBody(new DOMSource(parse(sb.toString())));
+
+            e.ensureReReadable();
+
+            assertTrue(msg.getBody() instanceof CachedSource);
+            assertTrue(((CachedSource) msg.getBody()).getContent().isSpilled());
+            assertTrue(msg.getAttachment("id") instanceof CachedInputStream);
+            CachedInputStream attachment = (CachedInputStream) msg.getAttachment("id");
+            assertEquals(data.length, attachment.length());
+            assertTrue(Arrays.equals(data, toByteArray(attachment.newInputStream())));
+            assertTrue(Arrays.equals(data, toByteArray(attachment.newInputStream())));
+
+            String str = e.display(true);
+            assertTrue(str.indexOf("<hello><world/>") != -1);
+            assertSame(attachment, msg.getAttachment("id"));
+
+            ((CachedSource) msg.getBody()).dispose();
+            attachment.dispose();
+        } finally {
+            CachedOutputStream.setDefaultThreshold(threshold);
+        }
+    }
+
+    static byte[] toByteArray(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int len;
+        while ((len = is.read(buffer)) >= 0) {
+            baos.write(buffer, 0, len);
+        }
+        return baos.toByteArray();
     }
 
     private Document parse(String str) throws Exception {
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.servicemix.nmr.api.PropertyKey;
+
+public class PropertyMapTest extends TestCase {
+
+    public void testCompact() {
+        PropertyMap map = new PropertyMap();
+        Map<String, Object> ref = new HashMap<String, Object>();
+        for (int i = 0; i < PropertyMap.MAX_COMPACT_SIZE; i++) {
+            map.put("key" + i, i);
+            ref.put("key" + i, i);
+        }
+        assertEquals(ref, map);
+        assertEquals(map, ref);
+        assertEquals(ref.hashCode(), map.hashCode());
+        assertEquals(3, map.get(new String("key3")));
+        assertEquals(3, map.put("key3", "three"));
+        assertEquals("three", map.remove("key3"));
+        assertFalse(map.containsKey("key3"));
+        assertEquals(PropertyMap.MAX_COMPACT_SIZE - 1, map.size());
+        assertNull(map.get("unknown"));
+        assertNull(map.get(null));
+    }
+
+    public void testGrow() {
+        PropertyMap map = new PropertyMap();
+        for (int i = 0; i < 3 * PropertyMap.MAX_COMPACT_SIZE; i++) {
+            map.put("key" + i, i);
+        }
+        assertEquals(3 * PropertyMap.MAX_COMPACT_SIZE, map.size());
+        for (int i = 0; i < 3 * PropertyMap.MAX_COMPACT_SIZE; i++) {
+            assertEquals(i, map.get("key" + i));
+        }
+        PropertyMap copy = new PropertyMap(map);
+        assertEquals(map, copy);
+        map.clear();
+        assertTrue(map.isEmpty());
+        map.put("key", "value");
+        assertEquals("value", map.get("key"));
+    }
+
+    public void testIteratorRemove() {
+        PropertyMap map = new PropertyMap();
+        for (int i = 0; i < 6; i++) {
+            map.put("key" + i, i);
+        }
+        for (Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Object> e = it.next();
+            if (((Integer) e.getValue()) % 2 == 0) {
+                it.remove();
+            }
+        }
+        assertEquals(3, map.size());
+        assertEquals(1, map.get("key1"));
+        assertEquals(3, map.get("key3"));
+        assertEquals(5, map.get("key5"));
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            e.setValue("x");
+        }
+        assertEquals("x", map.get("key5"));
+    }
+
+    public void testCopyOnWrite() {
+        checkCopyOnWrite(3);
+        checkCopyOnWrite(3 * PropertyMap.MAX_COMPACT_SIZE);
+    }
+
+    private void checkCopyOnWrite(int nb) {
+        PropertyMap map = new PropertyMap();
+        for (int i = 0; i < nb; i++) {
+            map.put("key" + i, i);
+        }
+        PropertyMap copy = new PropertyMap(map);
+        assertEquals(map, copy);
+        copy.put("key0", "changed");
+        copy.put("new", "value");
+        assertEquals(0, map.get("key0"));
+        assertNull(map.get("new"));
+        assertEquals(nb, map.size());
+
+        PropertyMap other = new PropertyMap(map);
+        map.remove("key1");
+        assertEquals(1, other.get("key1"));
+        assertEquals(nb, other.size());
+
+        PropertyMap third = new PropertyMap(other);
+        for (Iterator<Map.Entry<String, Object>> it = third.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Object> e = it.next();
+            if (e.getKey().equals("key2")) {
+                e.setValue("two");
+            } else {
+                it.remove();
+            }
+        }
+        assertEquals(1, third.size());
+        assertEquals("two", third.get("key2"));
+        assertEquals(nb, other.size());
+        assertEquals(2, other.get("key2"));
+
+        PropertyMap cleared = new PropertyMap(other);
+        cleared.clear();
+        assertTrue(cleared.isEmpty());
+        assertEquals(nb, other.size());
+        cleared.put("key", "value");
+        assertNull(other.get("key"));
+    }
+
+    public void testKeys() {
+        PropertyKey<String> key = PropertyKey.get("PropertyMapTest.key", String.class);
+        PropertyMap map = new PropertyMap();
+        map.putValue(key, "value");
+        assertEquals("value", map.getValue(key));
+        assertEquals("value", map.get("PropertyMapTest.key"));
+        assertEquals("value", map.removeValue(key));
+        assertNull(map.getValue(key));
+    }
+
+    public void testSerialize() throws Exception {
+        PropertyMap map = new PropertyMap();
+        map.put("key", "value");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(map);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        Object copy = ois.readObject();
+        // the serialized form must not depend on this class
+        assertEquals(HashMap.class, copy.getClass());
+        assertEquals(map, copy);
+    }
+
+}
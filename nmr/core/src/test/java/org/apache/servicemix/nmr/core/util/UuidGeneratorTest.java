@@ -26,4 +26,14 @@ public class UuidGeneratorTest extends TestCase {
 		assertNotSame(id1, id2);
 	}
 
+	public void testFormat() throws Exception {
+		UuidGenerator generator = UuidGenerator.getInstance();
+		long seq = generator.nextSequence();
+		String id = generator.toId(seq);
+		assertTrue(id, id.matches("[0-9]+-[0-9]+-[0-9]+-[0-9]+-[0-9]+"));
+		assertTrue(id.endsWith("-" + seq));
+		assertEquals(id, generator.toId(seq));
+		assertFalse(id.equals(UuidGenerator.getUUID()));
+	}
+
 }
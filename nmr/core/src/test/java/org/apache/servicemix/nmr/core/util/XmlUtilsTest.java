@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.servicemix.nmr.core.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+public class XmlUtilsTest extends TestCase {
+
+    private static final String XML = "<?xml version='1.0' encoding='ISO-8859-1'?>\n"
+            + "<!-- comment -->\n"
+            + "<a:root xmlns:a='urn:a' xmlns='urn:default' a:attr='1' attr='&lt;2&gt;'>"
+            + "<child>caf\u00e9 &amp; <![CDATA[<data>]]></child><?pi data?><empty/></a:root>";
+
+    public void testStreamSourceCopy() throws Exception {
+        byte[] data = XML.getBytes("ISO-8859-1");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XmlUtils.write(new StreamSource(new ByteArrayInputStream(data)), baos);
+        String copy = new String(baos.toByteArray(), "UTF-8");
+
+        StringWriter expected = new StringWriter();
+        XmlUtils.transform(new StreamSource(new ByteArrayInputStream(data)), new StreamResult(expected));
+
+        Document doc1 = XmlUtils.parse(new InputSource(new StringReader(copy)));
+        Document doc2 = XmlUtils.parse(new InputSource(new StringReader(expected.toString())));
+        doc1.normalizeDocument();
+        doc2.normalizeDocument();
+        assertTrue(copy, doc1.isEqualNode(doc2));
+        assertTrue(copy.contains("caf\u00e9"));
+    }
+
+    public void testToString() throws Exception {
+        String xml = "<hello xmlns='urn:test'>world</hello>";
+        String fromStream = XmlUtils.toString(new StreamSource(new StringReader(xml)));
+        Document doc = XmlUtils.parse(new InputSource(new StringReader(xml)));
+        String fromDom = XmlUtils.toString(new DOMSource(doc));
+        assertTrue(fromStream, fromStream.endsWith("<hello xmlns=\"urn:test\">world</hello>"));
+        assertTrue(fromDom, fromDom.endsWith("<hello xmlns=\"urn:test\">world</hello>"));
+    }
+
+    public void testOutputProperties() throws Exception {
+        Document doc = XmlUtils.parse(new InputSource(new StringReader("<a><b/></a>")));
+        Properties props = new Properties();
+        props.setProperty(OutputKeys.INDENT, "yes");
+        props.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        StringWriter indented = new StringWriter();
+        XmlUtils.transform(new DOMSource(doc), new StreamResult(indented), props);
+        assertTrue(indented.toString(), indented.toString().indexOf('\n') > 0);
+        // pooled transformers are not affected
+        assertTrue(XmlUtils.toString(new DOMSource(doc)).endsWith("<a><b/></a>"));
+    }
+
+    public void testDocumentBuilders() throws Exception {
+        DocumentBuilder builder = XmlUtils.borrowDocumentBuilder();
+        assertTrue(builder.isNamespaceAware());
+        XmlUtils.releaseDocumentBuilder(builder);
+    }
+
+}
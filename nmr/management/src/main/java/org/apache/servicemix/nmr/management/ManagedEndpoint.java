@@ -25,6 +25,7 @@ import javax.management.StandardMBean;
 
 import org.apache.servicemix.nmr.api.Endpoint;
 import org.apache.servicemix.nmr.api.internal.InternalEndpoint;
+import org.apache.servicemix.nmr.core.ChannelImpl;
 import org.fusesource.commons.management.ManagementStrategy;
 import org.fusesource.commons.management.Statistic;
 import org.fusesource.commons.management.Statistic.UpdateMode;
@@ -127,6 +128,26 @@ public class ManagedEndpoint extends StandardMBean implements ManagedEndpointMBe
         return getRate(outboundExchangeRate);
     }
 
+    /**
+     * Get the number of exchanges delivered to the endpoint and not sent back yet
+     *
+     * @return the number of exchanges in flight
+     */
+    public int getInFlightExchangeCount() {
+        return endpoint.getChannel() instanceof ChannelImpl
+                ? ((ChannelImpl) endpoint.getChannel()).getInFlightCount() : 0;
+    }
+
+    /**
+     * Get the number of exchanges waiting for a thread to be processed by the endpoint
+     *
+     * @return the number of queued exchanges
+     */
+    public int getQueuedExchangeCount() {
+        return endpoint.getChannel() instanceof ChannelImpl
+                ? ((ChannelImpl) endpoint.getChannel()).getQueuedCount() : 0;
+    }
+
     /**
      * reset the Stats
      */
@@ -180,6 +201,12 @@ public class ManagedEndpoint extends StandardMBean implements ManagedEndpointMBe
         if ("outboundExchangeRate".equalsIgnoreCase(info.getName())) {
             return "Exchanges sent per second";
         }
+        if ("inFlightExchangeCount".equalsIgnoreCase(info.getName())) {
+            return "Number of exchanges being processed by the endpoint";
+        }
+        if ("queuedExchangeCount".equalsIgnoreCase(info.getName())) {
+            return "Number of exchanges waiting to be processed by the endpoint";
+        }
         if ("reset".equalsIgnoreCase(info.getName())) {
             return "Reset statistics";
         }
@@ -28,6 +28,8 @@ public interface ManagedEndpointMBean {
     public double getInboundExchangeRate();
     public long getOutboundExchangeCount();
     public double getOutboundExchangeRate();
+    public int getInFlightExchangeCount();
+    public int getQueuedExchangeCount();
 
     void reset();
 
@@ -18,6 +18,7 @@ package org.apache.servicemix.nmr.osgi;
 
 import org.apache.servicemix.executors.impl.ExecutorConfig;
 import org.apache.servicemix.executors.impl.ExecutorFactoryImpl;
+import org.apache.servicemix.nmr.core.executors.EndpointExecutorFactory;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 
@@ -46,10 +47,18 @@ public class ExecutorConfigurator {
             executorFactory.setDefaultConfig(new ExecutorConfig(true, null));
         }
         Map<String, ExecutorConfig> configs = new HashMap<String, ExecutorConfig>();
+        Map<String, Integer> threadPerTask = new HashMap<String, Integer>();
+        Map<String, Integer> maxConcurrency = new HashMap<String, Integer>();
         if (properties != null) {
             for (Object keyObject : properties.keySet()) {
                 String key = (String) keyObject;
-                if (key.endsWith(".corePoolSize")) {
+                if (key.endsWith("." + EndpointExecutorFactory.EXECUTOR_MODE)) {
+                    if (EndpointExecutorFactory.MODE_VIRTUAL.equals(properties.get(key).toString())) {
+                        threadPerTask.put(getName(key), 0);
+                    }
+                } else if (key.endsWith("." + EndpointExecutorFactory.MAX_CONCURRENCY)) {
+                    maxConcurrency.put(getName(key), getInt(properties, key));
+                } else if (key.endsWith(".corePoolSize")) {
                     getConfig(configs, key).setCorePoolSize(getInt(properties, key));
                 } else if (key.endsWith(".maximumPoolSize")) {
                     getConfig(configs, key).setMaximumPoolSize(getInt(properties, key));
@@ -89,10 +98,23 @@ public class ExecutorConfigurator {
             }
         }
         executorFactory.setConfigs(configs);
+        if (executorFactory instanceof EndpointExecutorFactory) {
+            for (Map.Entry<String, Integer> entry : threadPerTask.entrySet()) {
+                Integer max = maxConcurrency.get(entry.getKey());
+                if (max != null) {
+                    entry.setValue(max);
+                }
+            }
+            ((EndpointExecutorFactory) executorFactory).setThreadPerTask(threadPerTask);
+        }
+    }
+
+    private String getName(String key) {
+        return key.substring(0, key.lastIndexOf('.'));
     }
 
     private ExecutorConfig getConfig(Map<String, ExecutorConfig> configs, String key) {
-        String name = key.substring(0, key.lastIndexOf('.'));
+        String name = getName(key);
         ExecutorConfig config = configs.get(name);
         if (config == null) {
             config = new ExecutorConfig(false, executorFactory.getDefaultConfig());
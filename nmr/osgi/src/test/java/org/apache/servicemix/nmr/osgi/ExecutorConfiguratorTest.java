@@ -16,8 +16,13 @@
  */
 package org.apache.servicemix.nmr.osgi;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import junit.framework.TestCase;
 import org.apache.servicemix.executors.impl.ExecutorFactoryImpl;
+import org.apache.servicemix.nmr.core.executors.EndpointExecutorFactory;
+import org.apache.servicemix.nmr.core.executors.ThreadPerTaskExecutor;
 import org.osgi.service.cm.ConfigurationException;
 
 /**
@@ -37,4 +42,22 @@ public class ExecutorConfiguratorTest extends TestCase {
             fail("Should not throw exception: " + e);
         }
     }    
+
+    public void testVirtualExecutorMode() throws Exception {
+        EndpointExecutorFactory factory = new EndpointExecutorFactory();
+        ExecutorConfigurator configurator = new ExecutorConfigurator();
+        configurator.setExecutorFactory(factory);
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("nmr.endpoint.blocking.executorMode", "virtual");
+        properties.put("nmr.endpoint.blocking.maxConcurrency", "50");
+        properties.put("nmr.endpoint.pooled.executorMode", "pool");
+        properties.put("nmr.endpoint.pooled.corePoolSize", "2");
+        configurator.update(properties);
+
+        assertEquals(Integer.valueOf(50), factory.getThreadPerTask().get("nmr.endpoint.blocking"));
+        assertFalse(factory.getThreadPerTask().containsKey("nmr.endpoint.pooled"));
+        assertTrue(factory.createExecutor("nmr.endpoint.blocking") instanceof ThreadPerTaskExecutor);
+        assertFalse(factory.createExecutor("nmr.endpoint.pooled") instanceof ThreadPerTaskExecutor);
+    }
 }